@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A stream of many blobs, so they can be sent in one request instead of one
+ * request per blob.
+ *
+ * Each record is: data length (int), hash length (unsigned short), hash
+ * (ascii), data. There is no header or trailer, the pack ends at the end of the
+ * stream. Records are read one at a time, so a pack can be processed as it
+ * arrives without buffering all of it
+ *
+ * @author brad
+ */
+public class BlobPack {
+
+    public static final String CONTENT_TYPE = "application/x-spliffy-blobpack";
+    /**
+     * Sanity limit on the size of a single blob, to protect against corrupt
+     * or malicious length fields
+     */
+    public static final int MAX_BLOB_LENGTH = 16 * 1024 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public static class Writer {
+
+        private final DataOutputStream out;
+        private int count;
+
+        public Writer(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public void write(String hash, byte[] bytes) throws IOException {
+            byte[] hashBytes = hash.getBytes(ASCII);
+            out.writeInt(bytes.length);
+            out.writeShort(hashBytes.length);
+            out.write(hashBytes);
+            out.write(bytes);
+            count++;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    public static class Reader {
+
+        private final DataInputStream in;
+        private String hash;
+        private byte[] bytes;
+
+        public Reader(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        /**
+         * Read the next record
+         *
+         * @return - false if at the end of the pack
+         * @throws IOException - if the pack is truncated or corrupt
+         */
+        public boolean next() throws IOException {
+            int dataLength;
+            try {
+                dataLength = in.readInt();
+            } catch (EOFException e) {
+                hash = null;
+                bytes = null;
+                return false;
+            }
+            if (dataLength < 0 || dataLength > MAX_BLOB_LENGTH) {
+                throw new IOException("Invalid blob length in pack: " + dataLength);
+            }
+            int hashLength = in.readUnsignedShort();
+            byte[] hashBytes = new byte[hashLength];
+            in.readFully(hashBytes);
+            hash = new String(hashBytes, ASCII);
+            bytes = new byte[dataLength];
+            in.readFully(bytes);
+            return true;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+}
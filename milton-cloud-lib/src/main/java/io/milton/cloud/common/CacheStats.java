@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread safe hit, miss and eviction counters for a cache.
+ *
+ * Every logEvery lookups the counters are logged at info level to this class's
+ * logger, so the effectiveness of all caches can be watched, or silenced, by
+ * configuring the io.milton.cloud.common.CacheStats category
+ *
+ * @author brad
+ */
+public class CacheStats {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheStats.class);
+    private final String name;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long logEvery = 10000;
+
+    public CacheStats(String name) {
+        this.name = name;
+    }
+
+    public void hit() {
+        looked(hits.incrementAndGet() + misses.get());
+    }
+
+    public void miss() {
+        looked(misses.incrementAndGet() + hits.get());
+    }
+
+    public void evicted() {
+        evictions.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getLogEvery() {
+        return logEvery;
+    }
+
+    /**
+     * Number of lookups between logging the counters, or zero to never log
+     *
+     * @param logEvery
+     */
+    public void setLogEvery(long logEvery) {
+        this.logEvery = logEvery;
+    }
+
+    private void looked(long lookups) {
+        long n = logEvery;
+        if (n > 0 && lookups % n == 0) {
+            log.info(toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        long h = hits.get();
+        long m = misses.get();
+        long ratio = (h + m) == 0 ? 0 : h * 100 / (h + m);
+        return name + ": hits=" + h + " misses=" + m + " evictions=" + evictions.get() + " hit ratio=" + ratio + "%";
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe bloom filter for hash strings. If mightContain returns false
+ * the hash has definitely not been added, if true then it probably has.
+ *
+ * Since the values are hashes already the bit positions are derived from the
+ * string's own hashCode, mixed with a different seed for each probe.
+ *
+ * @author brad
+ */
+public class HashBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numProbes;
+
+    /**
+     *
+     * @param expectedItems - the number of items expected to be added
+     * @param bitsPerItem - about 10 gives a false positive rate of 1%
+     */
+    public HashBloomFilter(long expectedItems, int bitsPerItem) {
+        long n = Math.max(64, expectedItems * bitsPerItem);
+        int words = (int) Math.min(Integer.MAX_VALUE, (n + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.numBits = words * 64L;
+        this.numProbes = Math.max(1, (int) Math.round(bitsPerItem * Math.log(2)));
+    }
+
+    public void add(String hash) {
+        long h = seed(hash);
+        for (int i = 0; i < numProbes; i++) {
+            long bit = position(h, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << (bit & 63);
+            long cur = bits.get(word);
+            while ((cur & mask) == 0 && !bits.compareAndSet(word, cur, cur | mask)) {
+                cur = bits.get(word);
+            }
+        }
+    }
+
+    public boolean mightContain(String hash) {
+        long h = seed(hash);
+        for (int i = 0; i < numProbes; i++) {
+            long bit = position(h, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long seed(String hash) {
+        long h = 1125899906842597L;
+        for (int i = 0; i < hash.length(); i++) {
+            h = 31 * h + hash.charAt(i);
+        }
+        return h;
+    }
+
+    private long position(long h, int probe) {
+        long x = h + probe * 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        x = x ^ (x >>> 33);
+        return (x & Long.MAX_VALUE) % numBits;
+    }
+}
@@ -45,8 +45,9 @@ public class HashCalc {
         MessageDigest crypto = Parser.getCrypt();
         for (ITriplet r : childDirEntries) {
             String line = toHashableText(r.getName(), r.getHash(), r.getType());
-            appendLine(line, crypto);
-            out.write(line.getBytes());
+            byte[] arr = line.getBytes();
+            crypto.update(arr);
+            out.write(arr);
         }
         return Parser.toHex(crypto);
     }
@@ -74,6 +75,35 @@ public class HashCalc {
 
     }
 
+    /**
+     * Parse a directory listing which is already in memory. The separators are
+     * found in the bytes, so for each line only the name and hash strings are
+     * allocated, rather than a reader, the line and a split array. Colons and
+     * newlines are single bytes which can't appear inside a multibyte
+     * character, so this is safe for UTF-8
+     *
+     * @param arr
+     * @return
+     * @throws IOException
+     */
+    public List<ITriplet> parseTriplets(byte[] arr) throws IOException {
+        List<ITriplet> list = new ArrayList<>();
+        int start = 0;
+        while (start < arr.length) {
+            int end = start;
+            while (end < arr.length && arr[end] != '\n') {
+                end++;
+            }
+            int lineEnd = end;
+            if (lineEnd > start && arr[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            list.add(parse(arr, start, lineEnd));
+            start = end + 1;
+        }
+        return list;
+    }
+
     public List<ITriplet> parseTriplets(InputStream in) throws IOException {
         Reader reader = new InputStreamReader(in);
         BufferedReader bufIn = new BufferedReader(reader);
@@ -89,17 +119,47 @@ public class HashCalc {
 
     private Triplet parse(String line) {
         try {
-            String[] arr = line.split(":");
+            // parse from the end, so names may contain colons
+            int typePos = line.lastIndexOf(':');
+            int hashPos = line.lastIndexOf(':', typePos - 1);
             Triplet triplet = new Triplet();
-            triplet.setName(arr[0]);
-            triplet.setHash(arr[1]);
-            triplet.setType(arr[2]);
+            triplet.setName(line.substring(0, hashPos));
+            triplet.setHash(line.substring(hashPos + 1, typePos));
+            triplet.setType(line.substring(typePos + 1));
             return triplet;
         } catch (Throwable e) {
             throw new RuntimeException("Couldnt parse - " + line, e);
         }
     }
 
+    private Triplet parse(byte[] arr, int start, int end) {
+        int typePos = lastIndexOf(arr, start, end, ':');
+        int hashPos = lastIndexOf(arr, start, typePos, ':');
+        if (hashPos < 0) {
+            throw new RuntimeException("Couldnt parse - " + new String(arr, start, end - start));
+        }
+        Triplet triplet = new Triplet();
+        triplet.setName(new String(arr, start, hashPos - start));
+        triplet.setHash(new String(arr, hashPos + 1, typePos - hashPos - 1));
+        if (end - typePos == 2 && arr[typePos + 1] == 'f') {
+            triplet.setType("f");
+        } else if (end - typePos == 2 && arr[typePos + 1] == 'd') {
+            triplet.setType("d");
+        } else {
+            triplet.setType(new String(arr, typePos + 1, end - typePos - 1));
+        }
+        return triplet;
+    }
+
+    private static int lastIndexOf(byte[] arr, int start, int end, char c) {
+        for (int i = end - 1; i >= start; i--) {
+            if (arr[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public Map<String, ITriplet> toMap(List<ITriplet> triplets) {
         Map<String, ITriplet> map = new HashMap<>();
         for (ITriplet t : triplets) {
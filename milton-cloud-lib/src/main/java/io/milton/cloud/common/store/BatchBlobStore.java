@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.util.Map;
+import org.hashsplit4j.api.BlobStore;
+
+/**
+ * A BlobStore which can write many blobs more efficiently than with
+ * individual calls to setBlob
+ *
+ * @author brad
+ */
+public interface BatchBlobStore extends BlobStore {
+
+    /**
+     * Write all of the given blobs, keyed by hash. As with setBlob, blobs
+     * which already exist are not overwritten
+     *
+     * @param blobs
+     */
+    void setBlobs(Map<String, byte[]> blobs);
+}
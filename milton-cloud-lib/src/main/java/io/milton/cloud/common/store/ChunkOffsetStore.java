@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import org.hashsplit4j.api.HashStore;
+
+/**
+ * A HashStore which can give the ChunkOffsets index for a file, so that
+ * seeking within a file does not need every chunk fanout to be loaded
+ *
+ * @author brad
+ */
+public interface ChunkOffsetStore extends HashStore {
+
+    /**
+     *
+     * @param fileHash
+     * @return - the cumulative offsets of the chunk fanouts of the file, as
+     * described in ChunkOffsets, or null if the file fanout is not found or
+     * has no offsets recorded
+     */
+    long[] getChunkOffsets(String fileHash);
+}
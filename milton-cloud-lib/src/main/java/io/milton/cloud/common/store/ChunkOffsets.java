@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.util.List;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.HashStore;
+
+/**
+ * A cumulative offset index over the chunk fanouts of a file, so the chunk
+ * containing a byte offset can be found by binary search instead of summing
+ * the lengths of all chunks before it.
+ *
+ * The index is an array of length n + 1 for n chunk fanouts, where element i
+ * is the offset of the first byte of chunk i, and the last element is the
+ * length of the file
+ *
+ * @author brad
+ */
+public class ChunkOffsets {
+
+    /**
+     * Build the index by loading each chunk fanout
+     *
+     * @param chunkFanoutHashes
+     * @param hashStore
+     * @return
+     */
+    public static long[] calc(List<String> chunkFanoutHashes, HashStore hashStore) {
+        long[] offsets = new long[chunkFanoutHashes.size() + 1];
+        long pos = 0;
+        int i = 0;
+        for (String hash : chunkFanoutHashes) {
+            Fanout fanout = hashStore.getChunkFanout(hash);
+            if (fanout == null) {
+                throw new RuntimeException("Chunk fanout not found: " + hash);
+            }
+            offsets[i++] = pos;
+            pos += fanout.getActualContentLength();
+        }
+        offsets[i] = pos;
+        return offsets;
+    }
+
+    /**
+     *
+     * @param offsets
+     * @param pos
+     * @return - the index of the chunk containing the given byte offset, or the
+     * number of chunks if pos is at or beyond the end of the file
+     */
+    public static int findChunk(long[] offsets, long pos) {
+        int numChunks = offsets.length - 1;
+        if (pos >= offsets[numChunks]) {
+            return numChunks;
+        }
+        int low = 0;
+        int high = numChunks - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= pos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Format as comma seperated values for persisting
+     *
+     * @param offsets
+     * @return
+     */
+    public static String format(long[] offsets) {
+        StringBuilder sb = new StringBuilder(offsets.length * 8);
+        for (int i = 0; i < offsets.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(offsets[i]);
+        }
+        return sb.toString();
+    }
+
+    public static long[] parse(String s) {
+        String[] parts = s.split(",");
+        long[] offsets = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            offsets[i] = Long.parseLong(parts[i]);
+        }
+        return offsets;
+    }
+}
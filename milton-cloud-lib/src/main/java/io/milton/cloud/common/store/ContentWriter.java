@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.HashStore;
+
+/**
+ * Writes file content, or a range of it, given the file's list of chunk
+ * fanout hashes.
+ *
+ * Chunk fanouts wholly before the start of the range are skipped using their
+ * content length, so none of their blobs are read. If a ChunkOffsets index is
+ * given the first chunk is found by binary search, so the chunk fanouts before
+ * it are not loaded either. If the BlobStore is a
+ * StreamingBlobStore then blobs before the start are also skipped by length,
+ * and blobs are transferred to the output with FileChannel.transferTo instead
+ * of being loaded into memory
+ *
+ * @author brad
+ */
+public class ContentWriter {
+
+    private final HashStore hashStore;
+    private final BlobStore blobStore;
+
+    public ContentWriter(HashStore hashStore, BlobStore blobStore) {
+        this.hashStore = hashStore;
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Write a range as given in an HTTP Range header, where start may be null
+     * meaning the last "finish" bytes of the file. Uses the ChunkOffsets index
+     * if the HashStore is a ChunkOffsetStore
+     *
+     * @param fileHash
+     * @param fanoutHashes - the chunk fanout hashes of the file
+     * @param contentLength - the length of the file
+     * @param out
+     * @param start
+     * @param finish
+     * @throws IOException
+     */
+    public void writeRange(String fileHash, List<String> fanoutHashes, long contentLength, OutputStream out, Long start, Long finish) throws IOException {
+        long from;
+        if (start == null) {
+            from = Math.max(0, contentLength - (finish == null ? contentLength : finish));
+            finish = null;
+        } else {
+            from = start;
+        }
+        write(fanoutHashes, findOffsets(fileHash, from), out, from, finish);
+    }
+
+    /**
+     *
+     * @param fileHash
+     * @param start
+     * @return - the ChunkOffsets index for the file if its worth using to find
+     * start, otherwise null
+     */
+    public long[] findOffsets(String fileHash, long start) {
+        if (start > 0 && hashStore instanceof ChunkOffsetStore) {
+            return ((ChunkOffsetStore) hashStore).getChunkOffsets(fileHash);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param fanoutHashes - the chunk fanout hashes of the file
+     * @param out
+     * @param start - first byte to write
+     * @param finish - last byte to write (inclusive), or null to write to the
+     * end
+     * @throws IOException
+     */
+    public void write(List<String> fanoutHashes, OutputStream out, long start, Long finish) throws IOException {
+        write(fanoutHashes, null, out, start, finish);
+    }
+
+    /**
+     *
+     * @param fanoutHashes - the chunk fanout hashes of the file
+     * @param offsets - optional, the ChunkOffsets index for the file
+     * @param out
+     * @param start - first byte to write
+     * @param finish - last byte to write (inclusive), or null to write to the
+     * end
+     * @throws IOException
+     */
+    public void write(List<String> fanoutHashes, long[] offsets, OutputStream out, long start, Long finish) throws IOException {
+        StreamingBlobStore streamingStore = null;
+        WritableByteChannel channel = null;
+        if (blobStore instanceof StreamingBlobStore) {
+            streamingStore = (StreamingBlobStore) blobStore;
+            channel = Channels.newChannel(out);
+        }
+        long end = finish == null ? Long.MAX_VALUE : finish + 1; // exclusive
+        long pos = 0;
+        int first = 0;
+        if (offsets != null && offsets.length == fanoutHashes.size() + 1) {
+            first = ChunkOffsets.findChunk(offsets, start);
+            if (first < fanoutHashes.size()) {
+                pos = offsets[first];
+            }
+        }
+        for (String fanoutHash : fanoutHashes.subList(first, fanoutHashes.size())) {
+            if (pos >= end) {
+                break;
+            }
+            Fanout fanout = hashStore.getChunkFanout(fanoutHash);
+            if (fanout == null) {
+                throw new IOException("Chunk fanout not found: " + fanoutHash);
+            }
+            long fanoutLength = fanout.getActualContentLength();
+            if (pos + fanoutLength <= start) {
+                pos += fanoutLength;
+                continue;
+            }
+            for (String blobHash : fanout.getHashes()) {
+                if (pos >= end) {
+                    break;
+                }
+                if (streamingStore != null) {
+                    long blobLength = streamingStore.getBlobLength(blobHash);
+                    if (blobLength < 0) {
+                        throw new IOException("Blob not found: " + blobHash);
+                    }
+                    if (pos + blobLength > start) {
+                        long from = Math.max(start - pos, 0);
+                        long to = Math.min(end - pos, blobLength);
+                        streamingStore.writeBlob(blobHash, from, to - from, channel);
+                    }
+                    pos += blobLength;
+                } else {
+                    byte[] blob = blobStore.getBlob(blobHash);
+                    if (blob == null) {
+                        throw new IOException("Blob not found: " + blobHash);
+                    }
+                    if (pos + blob.length > start) {
+                        int from = (int) Math.max(start - pos, 0);
+                        int to = (int) Math.min(end - pos, blob.length);
+                        out.write(blob, from, to - from);
+                    }
+                    pos += blob.length;
+                }
+            }
+        }
+        out.flush();
+    }
+}
@@ -1,15 +1,16 @@
 package io.milton.cloud.common.store;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import org.apache.commons.io.IOUtils;
-import org.hashsplit4j.api.BlobStore;
 
 /**
  * Stores blobs straight into a file system
  *
  * @author brad
  */
-public class FileSystemBlobStore implements BlobStore{
+public class FileSystemBlobStore implements StreamingBlobStore {
 
     private static org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileSystemBlobStore.class);
     
@@ -72,4 +73,31 @@ public class FileSystemBlobStore implements BlobStore{
         File blob = FsHashUtils.toFile(root, hash);
         return blob.exists();
     }
+
+    @Override
+    public long getBlobLength(String hash) {
+        File blob = FsHashUtils.toFile(root, hash);
+        if (!blob.exists()) {
+            return -1;
+        }
+        return blob.length();
+    }
+
+    @Override
+    public void writeBlob(String hash, long offset, long length, WritableByteChannel out) throws IOException {
+        File blob = FsHashUtils.toFile(root, hash);
+        try (FileInputStream fin = new FileInputStream(blob)) {
+            FileChannel ch = fin.getChannel();
+            long pos = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                long n = ch.transferTo(pos, remaining, out);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of blob: " + blob.getAbsolutePath());
+                }
+                pos += n;
+                remaining -= n;
+            }
+        }
+    }
 }
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores blobs by appending them to a small number of large segment files,
+ * instead of one file per blob like FileSystemBlobStore.
+ *
+ * Each record in a segment is: magic (int), hash length (short), hash (ascii),
+ * data length (int), data. The hash to location index is held in memory and
+ * is rebuilt by scanning the segment headers on startup, so no separate index
+ * file needs to be kept consistent. A partially written record at the end of
+ * the last segment (ie after a crash) is truncated away. Corrupt records
+ * anywhere else are logged and skipped, so the records after them are kept.
+ *
+ * Writes are serialised and fsync'd in batches, every syncEvery blobs, or when
+ * flush or close is called, and setBlobs writes all of its blobs with a single
+ * fsync. Reads are positional reads on a shared FileChannel, so they do not
+ * block each other or the writer.
+ *
+ * @author brad
+ */
+public class PackedBlobStore implements BatchBlobStore, StreamingBlobStore {
+
+    private static org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PackedBlobStore.class);
+    private static final int RECORD_MAGIC = 0x4d43424c; // "MCBL"
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private final File root;
+    private final ConcurrentHashMap<String, BlobLocation> index = new ConcurrentHashMap<>();
+    private final List<FileChannel> segments = new ArrayList<>();
+    private long maxSegmentSize = 1024 * 1024 * 1024; // 1GB
+    private int syncEvery = 100;
+    private FileChannel current;
+    private int currentSegment = -1;
+    private long currentPosition;
+    private int unsynced;
+
+    public PackedBlobStore(File root) throws IOException {
+        this.root = root;
+        if (!root.exists()) {
+            if (!root.mkdirs()) {
+                throw new IOException("Couldnt create blob directory: " + root.getAbsolutePath());
+            }
+        }
+        open();
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        if (index.containsKey(hash)) {
+            log.trace("PackedBlobStore: setBlob: blob exists: {}", hash);
+            return;
+        }
+        synchronized (this) {
+            if (index.containsKey(hash)) {
+                return;
+            }
+            byte[] hashBytes = hash.getBytes(ASCII);
+            ByteBuffer buf = ByteBuffer.allocate(4 + 2 + hashBytes.length + 4 + bytes.length);
+            buf.putInt(RECORD_MAGIC);
+            buf.putShort((short) hashBytes.length);
+            buf.put(hashBytes);
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+            buf.flip();
+            try {
+                if (current == null || currentPosition + buf.remaining() > maxSegmentSize) {
+                    rollSegment();
+                }
+                long dataOffset = currentPosition + 4 + 2 + hashBytes.length + 4;
+                while (buf.hasRemaining()) {
+                    currentPosition += current.write(buf, currentPosition);
+                }
+                index.put(hash, new BlobLocation(currentSegment, dataOffset, bytes.length));
+                if (++unsynced >= syncEvery) {
+                    sync();
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("Couldnt write blob: " + hash + " to segment: " + currentSegment, ex);
+            }
+        }
+        log.trace("PackedBlobStore: setBlob: wrote blob: {} with bytes: {}", hash, bytes.length);
+    }
+
+    @Override
+    public synchronized void setBlobs(Map<String, byte[]> blobs) {
+        int saveSyncEvery = syncEvery;
+        syncEvery = Integer.MAX_VALUE;
+        try {
+            for (Map.Entry<String, byte[]> e : blobs.entrySet()) {
+                setBlob(e.getKey(), e.getValue());
+            }
+        } finally {
+            syncEvery = saveSyncEvery;
+        }
+        flush();
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        BlobLocation loc = index.get(hash);
+        if (loc == null) {
+            return null;
+        }
+        FileChannel ch;
+        synchronized (segments) {
+            ch = segments.get(loc.segment);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(loc.length);
+        try {
+            long pos = loc.offset;
+            while (buf.hasRemaining()) {
+                int n = ch.read(buf, pos);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of segment: " + loc.segment);
+                }
+                pos += n;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt read blob: " + hash + " from segment: " + loc.segment, ex);
+        }
+        return buf.array();
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return index.containsKey(hash);
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        BlobLocation loc = index.get(hash);
+        if (loc == null) {
+            return -1;
+        }
+        return loc.length;
+    }
+
+    @Override
+    public void writeBlob(String hash, long offset, long length, WritableByteChannel out) throws IOException {
+        BlobLocation loc = index.get(hash);
+        if (loc == null) {
+            throw new IOException("Blob not found: " + hash);
+        }
+        if (offset < 0 || offset + length > loc.length) {
+            throw new IOException("Requested range is outside blob: " + hash);
+        }
+        FileChannel ch;
+        synchronized (segments) {
+            ch = segments.get(loc.segment);
+        }
+        long pos = loc.offset + offset;
+        long remaining = length;
+        while (remaining > 0) {
+            long n = ch.transferTo(pos, remaining, out);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of segment: " + loc.segment);
+            }
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Force any unsynced writes to disk
+     */
+    public synchronized void flush() {
+        try {
+            sync();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        synchronized (segments) {
+            for (FileChannel ch : segments) {
+                try {
+                    ch.close();
+                } catch (IOException ex) {
+                    log.warn("Exception closing segment", ex);
+                }
+            }
+            segments.clear();
+        }
+        current = null;
+    }
+
+    public int getBlobCount() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        synchronized (segments) {
+            return segments.size();
+        }
+    }
+
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    /**
+     * New records are written to a new segment once the current one would
+     * exceed this size
+     *
+     * @param maxSegmentSize
+     */
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    public int getSyncEvery() {
+        return syncEvery;
+    }
+
+    /**
+     * Number of blobs to write between each fsync. Set to 1 to sync on every
+     * write
+     *
+     * @param syncEvery
+     */
+    public void setSyncEvery(int syncEvery) {
+        this.syncEvery = syncEvery;
+    }
+
+    private void sync() throws IOException {
+        if (current != null && unsynced > 0) {
+            current.force(false);
+        }
+        unsynced = 0;
+    }
+
+    private void rollSegment() throws IOException {
+        sync();
+        int num = getSegmentCount();
+        File f = segmentFile(num);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        current = raf.getChannel();
+        currentSegment = num;
+        currentPosition = current.size();
+        synchronized (segments) {
+            segments.add(current);
+        }
+        log.info("PackedBlobStore: started new segment: {}", f.getAbsolutePath());
+    }
+
+    private void open() throws IOException {
+        File[] files = root.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].equals(segmentFile(i))) {
+                throw new IOException("Missing or misnamed segment, expected: " + segmentFile(i).getAbsolutePath() + " but found: " + files[i].getAbsolutePath());
+            }
+            RandomAccessFile raf = new RandomAccessFile(files[i], "rw");
+            FileChannel ch = raf.getChannel();
+            long end = scan(i, ch);
+            if (end < ch.size()) {
+                if (i == files.length - 1) {
+                    log.warn("PackedBlobStore: truncating incomplete record in segment: {} at: {}", files[i].getAbsolutePath(), end);
+                    ch.truncate(end);
+                } else {
+                    // sealed, so nothing more will be appended, just leave it
+                    log.warn("PackedBlobStore: ignoring incomplete record at end of segment: {} at: {}", files[i].getAbsolutePath(), end);
+                }
+            }
+            segments.add(ch);
+            current = ch;
+            currentSegment = i;
+            currentPosition = end;
+        }
+        log.info("PackedBlobStore: loaded {} blobs from {} segments in {}", new Object[]{index.size(), files.length, root.getAbsolutePath()});
+    }
+
+    /**
+     * Read all record headers in the segment, adding them to the index. If a
+     * record is not valid the following data is searched for the next valid
+     * record, so a corrupt record only loses that record
+     *
+     * @return - the position of the end of the last complete record
+     */
+    private long scan(int segmentNum, FileChannel ch) throws IOException {
+        long size = ch.size();
+        long pos = 0;
+        while (pos < size) {
+            Record r = readRecord(ch, pos, size);
+            if (r == null) {
+                long next = findNextRecord(ch, pos + 1, size);
+                if (next < 0) {
+                    break; // nothing valid after this, so its an incomplete record
+                }
+                log.warn("PackedBlobStore: skipping corrupt data in segment: {} from: {} to: {}", new Object[]{segmentNum, pos, next});
+                pos = next;
+                continue;
+            }
+            index.put(r.hash, new BlobLocation(segmentNum, r.dataOffset, r.length));
+            pos = r.dataOffset + r.length;
+        }
+        return pos;
+    }
+
+    /**
+     *
+     * @return - the record at the given position, or null if there isnt a
+     * complete and valid record there
+     */
+    private Record readRecord(FileChannel ch, long pos, long size) throws IOException {
+        if (pos + 6 > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(6);
+        readFully(ch, header, pos);
+        header.flip();
+        if (header.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        int hashLen = header.getShort();
+        if (hashLen <= 0 || pos + 6 + hashLen + 4 > size) {
+            return null;
+        }
+        ByteBuffer hashAndLength = ByteBuffer.allocate(hashLen + 4);
+        readFully(ch, hashAndLength, pos + 6);
+        hashAndLength.flip();
+        byte[] hashBytes = new byte[hashLen];
+        hashAndLength.get(hashBytes);
+        int dataLen = hashAndLength.getInt();
+        long dataOffset = pos + 6 + hashLen + 4;
+        if (dataLen < 0 || dataOffset + dataLen > size) {
+            return null;
+        }
+        return new Record(new String(hashBytes, ASCII), dataOffset, dataLen);
+    }
+
+    /**
+     *
+     * @return - the position of the next valid record at or after from, or -1
+     * if there isnt one
+     */
+    private long findNextRecord(FileChannel ch, long from, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long pos = from;
+        while (pos + 4 <= size) {
+            buf.clear();
+            if (buf.remaining() > size - pos) {
+                buf.limit((int) (size - pos));
+            }
+            readFully(ch, buf, pos);
+            buf.flip();
+            int n = buf.remaining();
+            for (int i = 0; i + 4 <= n; i++) {
+                if (buf.getInt(i) == RECORD_MAGIC && readRecord(ch, pos + i, size) != null) {
+                    return pos + i;
+                }
+            }
+            pos += n - 3; // overlap, in case the magic spans two reads
+        }
+        return -1;
+    }
+
+    private void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            pos += n;
+        }
+    }
+
+    private File segmentFile(int num) {
+        return new File(root, SEGMENT_PREFIX + String.format("%06d", num) + SEGMENT_SUFFIX);
+    }
+
+    private static class Record {
+
+        final String hash;
+        final long dataOffset;
+        final int length;
+
+        Record(String hash, long dataOffset, int length) {
+            this.hash = hash;
+            this.dataOffset = dataOffset;
+            this.length = length;
+        }
+    }
+
+    private static class BlobLocation {
+
+        final int segment;
+        final long offset;
+        final int length;
+
+        BlobLocation(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Copies all blobs from the one-file-per-blob layout written by
+ * FileSystemBlobStore into a PackedBlobStore. Blobs already present in the
+ * destination are skipped, so an interrupted migration can simply be re-run.
+ *
+ * Usage: PackedBlobStoreMigrator [source dir] [dest dir]
+ *
+ * @author brad
+ */
+public class PackedBlobStoreMigrator {
+
+    private static org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PackedBlobStoreMigrator.class);
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: PackedBlobStoreMigrator [source dir] [dest dir]");
+            return;
+        }
+        File source = new File(args[0]);
+        PackedBlobStore dest = new PackedBlobStore(new File(args[1]));
+        try {
+            long count = new PackedBlobStoreMigrator().migrate(source, dest);
+            System.out.println("Migrated " + count + " blobs");
+        } finally {
+            dest.close();
+        }
+    }
+
+    private long count;
+
+    /**
+     *
+     * @param source - the root directory of a FileSystemBlobStore
+     * @param dest
+     * @return - the number of blobs copied
+     */
+    public long migrate(File source, PackedBlobStore dest) throws IOException {
+        count = 0;
+        migrateDir(source, dest);
+        dest.flush();
+        return count;
+    }
+
+    private void migrateDir(File dir, PackedBlobStore dest) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File f : children) {
+            if (f.isDirectory()) {
+                migrateDir(f, dest);
+            } else {
+                // the file name is the hash, the parent dirs are just prefixes of it
+                String hash = f.getName();
+                if (!dest.hasBlob(hash)) {
+                    dest.setBlob(hash, FileUtils.readFileToByteArray(f));
+                    count++;
+                    if (count % 10000 == 0) {
+                        log.info("Migrated {} blobs", count);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import org.hashsplit4j.api.BlobStore;
+
+/**
+ * A BlobStore backed by files, which can give the length of a blob without
+ * reading it and can write a blob, or part of it, straight to a channel
+ * without copying it into a byte array
+ *
+ * @author brad
+ */
+public interface StreamingBlobStore extends BlobStore {
+
+    /**
+     *
+     * @param hash
+     * @return - the length of the blob in bytes, or -1 if not present
+     */
+    long getBlobLength(String hash);
+
+    /**
+     * Write length bytes of the blob, starting from offset within the blob, to
+     * the channel
+     *
+     * @param hash
+     * @param offset
+     * @param length
+     * @param out
+     * @throws IOException - if the blob is not present or cannot be read
+     */
+    void writeBlob(String hash, long offset, long length, WritableByteChannel out) throws IOException;
+}
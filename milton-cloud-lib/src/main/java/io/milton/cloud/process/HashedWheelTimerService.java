@@ -0,0 +1,488 @@
+package io.milton.cloud.process;
+
+import io.milton.cloud.common.CurrentDateService;
+import io.milton.cloud.common.DefaultCurrentDateService;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TimerService which holds armed process instances in a hashed timing wheel,
+ * so arming and disarming are constant time regardless of how many timers
+ * there are.
+ *
+ * While a process instance is in a state with an interval it is scanned once
+ * per interval. The wheel has wheelSize buckets, each covering tickMillis.
+ * Each tick the timers in the current bucket which are due are collected into
+ * batches of batchSize and given to a small pool of workers, which call
+ * fireTimers. Timers which are still armed after firing are put back on the
+ * wheel for their next interval
+ *
+ * Timers are persisted by subclasses, and all persisted timers are put on the
+ * wheel by start. Timers which were due while the server was down fire on the
+ * first tick
+ *
+ * Process instances can only be scanned if their process has been added with
+ * addProcess. Timers for unknown processes, or which fail, are retried after
+ * retryDelayMillis
+ *
+ * The wheel can also be driven without any threads, by calling initWheel and
+ * then tick, in which case due timers are fired on the calling thread
+ *
+ * @author brad
+ */
+public abstract class HashedWheelTimerService implements TimerService {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimerService.class);
+    private final Map<String, StateProcess> processes = new ConcurrentHashMap<>();
+    private CurrentDateService currentDateService = new DefaultCurrentDateService();
+    private long tickMillis = 1000;
+    private int wheelSize = 512;
+    private int batchSize = 100;
+    private int workers = 2;
+    private long retryDelayMillis = 60000;
+    // The wheel, guarded by this
+    private Set<Entry>[] buckets;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private long tick;
+    private ScheduledExecutorService ticker;
+    private volatile ExecutorService workerPool;
+    // metrics
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong fired = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalLatenessMillis = new AtomicLong();
+    private final AtomicLong maxLatenessMillis = new AtomicLong();
+
+    /**
+     * Persist that the process instance is armed, with the given interval and
+     * first due date. If the instance is already armed with the same interval
+     * its due date should be left unchanged
+     *
+     * @param instance
+     * @param intervalMillis
+     * @param due
+     * @return - an id for the timer, which must be the same each time the
+     * same process instance is armed
+     */
+    protected abstract long saveTimer(ProcessInstance instance, long intervalMillis, Date due);
+
+    /**
+     * Remove any persisted timer for the process instance
+     *
+     * @param instance
+     * @return - the id of the timer removed, or null if it was not armed
+     */
+    protected abstract Long deleteTimer(ProcessInstance instance);
+
+    /**
+     * Called from start. Call arm for each persisted timer
+     */
+    protected abstract void loadTimers();
+
+    /**
+     * Scan the process instances of the given timers, using scan(..), and
+     * record their next due dates.
+     *
+     * @param timerIds
+     * @return - for each timer which was fired, the next due date, or null if
+     * the timer is no longer armed. Timers which could not be fired should be
+     * left out, and will be retried
+     */
+    protected abstract Map<Long, Date> fireTimers(List<Long> timerIds);
+
+    public void start() {
+        initWheel();
+        workerPool = Executors.newFixedThreadPool(workers, new NamedThreadFactory("process-timer-worker"));
+        ticker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("process-timer"));
+        ticker.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Throwable e) {
+                    log.error("Exception processing timer tick", e);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the wheel and load the persisted timers, without starting the
+     * ticker or workers
+     */
+    @SuppressWarnings("unchecked")
+    protected void initWheel() {
+        synchronized (this) {
+            buckets = new Set[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new LinkedHashSet<>();
+            }
+        }
+        long tm = System.currentTimeMillis();
+        loadTimers();
+        log.info("Loaded " + getArmedCount() + " process timers in " + (System.currentTimeMillis() - tm) + "ms");
+    }
+
+    public void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+        if (workerPool != null) {
+            workerPool.shutdown();
+            workerPool = null;
+        }
+    }
+
+    /**
+     * Processes must be added before their timers can be fired
+     *
+     * @param process
+     */
+    public void addProcess(StateProcess process) {
+        processes.put(process.getName(), process);
+    }
+
+    public StateProcess getProcess(String name) {
+        return processes.get(name);
+    }
+
+    @Override
+    public void registerTimer(ProcessContext context) {
+        State state = context.getCurrentState();
+        long interval = intervalMillis(state == null ? null : state.getInterval());
+        if (interval <= 0) {
+            unRegisterTimer(context);
+            return;
+        }
+        Date due = new Date(currentDateService.getNow().getTime() + interval);
+        long id = saveTimer(context.getProcessInstance(), interval, due);
+        synchronized (this) {
+            Entry e = entries.get(id);
+            if (e != null && e.intervalMillis == interval) {
+                return; // already armed
+            }
+        }
+        arm(id, interval, due);
+    }
+
+    @Override
+    public void unRegisterTimer(ProcessContext context) {
+        Long id = deleteTimer(context.getProcessInstance());
+        if (id != null) {
+            disarm(id);
+        }
+    }
+
+    /**
+     * Scan a process instance whose timer is due. For use by fireTimers
+     *
+     * @param instance
+     * @return - false if the process is not known, so the instance could not
+     * be scanned
+     */
+    protected boolean scan(ProcessInstance instance) {
+        StateProcess process = processes.get(instance.getProcessName());
+        if (process == null) {
+            log.warn("Process not found: " + instance.getProcessName() + ". Has it been added to the timer service?");
+            return false;
+        }
+        ProcessContext context = new ProcessContext(instance, process, this, currentDateService);
+        context.scan();
+        return true;
+    }
+
+    /**
+     * Put a timer on the wheel, replacing it if its already there
+     *
+     * @param id
+     * @param intervalMillis
+     * @param due
+     */
+    protected synchronized void arm(long id, long intervalMillis, Date due) {
+        if (buckets == null) {
+            throw new IllegalStateException("Not started");
+        }
+        Entry e = entries.remove(id);
+        if (e != null) {
+            e.bucket.remove(e);
+        }
+        long delay = due.getTime() - currentDateService.getNow().getTime();
+        long ticks = Math.max(1, (delay + tickMillis - 1) / tickMillis);
+        e = new Entry(id, intervalMillis, due.getTime());
+        e.rounds = (ticks - 1) / wheelSize;
+        e.bucket = buckets[(int) ((tick + ticks) % wheelSize)];
+        e.bucket.add(e);
+        entries.put(id, e);
+    }
+
+    protected synchronized void disarm(long id) {
+        Entry e = entries.remove(id);
+        if (e != null) {
+            e.bucket.remove(e);
+        }
+    }
+
+    /**
+     * Advance the wheel by one bucket and fire the timers which are due. Called
+     * every tickMillis by the ticker thread once started
+     */
+    protected void tick() {
+        long now = currentDateService.getNow().getTime();
+        List<Entry> due = new ArrayList<>();
+        synchronized (this) {
+            tick++;
+            Set<Entry> bucket = buckets[(int) (tick % wheelSize)];
+            Iterator<Entry> it = bucket.iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.rounds > 0) {
+                    e.rounds--;
+                } else {
+                    it.remove();
+                    entries.remove(e.id);
+                    due.add(e);
+                }
+            }
+        }
+        for (Entry e : due) {
+            recordLateness(Math.max(0, now - e.dueMillis));
+        }
+        for (int i = 0; i < due.size(); i += batchSize) {
+            submit(new ArrayList<>(due.subList(i, Math.min(due.size(), i + batchSize))));
+        }
+    }
+
+    private void recordLateness(long lateness) {
+        totalLatenessMillis.addAndGet(lateness);
+        long max = maxLatenessMillis.get();
+        while (lateness > max && !maxLatenessMillis.compareAndSet(max, lateness)) {
+            max = maxLatenessMillis.get();
+        }
+    }
+
+    private void submit(final List<Entry> batch) {
+        ExecutorService pool = workerPool;
+        if (pool == null) {
+            fire(batch);
+            return;
+        }
+        pending.addAndGet(batch.size());
+        pool.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    fire(batch);
+                } finally {
+                    pending.addAndGet(-batch.size());
+                }
+            }
+        });
+    }
+
+    private void fire(List<Entry> batch) {
+        List<Long> ids = new ArrayList<>(batch.size());
+        for (Entry e : batch) {
+            ids.add(e.id);
+        }
+        Map<Long, Date> results;
+        try {
+            results = fireTimers(ids);
+        } catch (Throwable e) {
+            log.error("Exception firing " + batch.size() + " process timers", e);
+            results = new HashMap<>();
+        }
+        Date retry = new Date(currentDateService.getNow().getTime() + retryDelayMillis);
+        for (Entry e : batch) {
+            if (results.containsKey(e.id)) {
+                fired.incrementAndGet();
+                Date next = results.get(e.id);
+                if (next != null) {
+                    rearm(e, next);
+                }
+            } else {
+                failures.incrementAndGet();
+                rearm(e, retry);
+            }
+        }
+    }
+
+    /**
+     * Put a fired timer back on the wheel, unless it was re-registered while
+     * firing
+     */
+    private synchronized void rearm(Entry e, Date next) {
+        if (buckets != null && !entries.containsKey(e.id)) {
+            arm(e.id, e.intervalMillis, next);
+        }
+    }
+
+    public static long intervalMillis(State.TimeDependentInterval interval) {
+        if (interval == null) {
+            return 0;
+        }
+        switch (interval) {
+            case MINUTE:
+                return 60 * 1000L;
+            case HOUR:
+                return 60 * 60 * 1000L;
+            case DAY:
+                return 24 * 60 * 60 * 1000L;
+            case WEEK:
+                return 7 * 24 * 60 * 60 * 1000L;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     *
+     * @return - number of timers on the wheel
+     */
+    public synchronized int getArmedCount() {
+        return entries.size();
+    }
+
+    /**
+     *
+     * @return - number of timers which are due but have not yet been fired
+     */
+    public long getBacklog() {
+        return pending.get();
+    }
+
+    public long getFiredCount() {
+        return fired.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     *
+     * @return - average time between timers being due and being taken off the
+     * wheel
+     */
+    public long getAverageLatenessMillis() {
+        long n = fired.get() + failures.get();
+        return n == 0 ? 0 : totalLatenessMillis.get() / n;
+    }
+
+    public long getMaxLatenessMillis() {
+        return maxLatenessMillis.get();
+    }
+
+    public CurrentDateService getCurrentDateService() {
+        return currentDateService;
+    }
+
+    public void setCurrentDateService(CurrentDateService currentDateService) {
+        this.currentDateService = currentDateService;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Duration of each bucket of the wheel, which is the resolution of timers.
+     * Must be set before start
+     *
+     * @param tickMillis
+     */
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    public int getWheelSize() {
+        return wheelSize;
+    }
+
+    /**
+     * Number of buckets in the wheel. Must be set before start
+     *
+     * @param wheelSize
+     */
+    public void setWheelSize(int wheelSize) {
+        this.wheelSize = wheelSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Maximum number of timers given to fireTimers at once
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    public void setRetryDelayMillis(long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    private static class Entry {
+
+        private final long id;
+        private final long intervalMillis;
+        private final long dueMillis;
+        private long rounds;
+        private Set<Entry> bucket;
+
+        Entry(long id, long intervalMillis, long dueMillis) {
+            this.id = id;
+            this.intervalMillis = intervalMillis;
+            this.dueMillis = dueMillis;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
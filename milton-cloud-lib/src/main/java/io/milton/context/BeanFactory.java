@@ -102,7 +102,7 @@ public class BeanFactory implements Factory {
         }
     }
 
-    private boolean isRequestScope() {
+    boolean isRequestScope() {
         return scope.equals(SCOPE_REQUEST);
     }
 
@@ -1,14 +1,23 @@
 package io.milton.context;
 
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /** Basic context functionality. Use either a RootContext or RequestContext
+ * 
+ *  Registrations are held in maps which are only created when something is
+ *  first put into the context. They are not thread safe, so subclasses which
+ *  are shared between threads must override the find, add and remove methods
  */
 public abstract class Context implements Contextual { 
     
-    protected HashMap<Class,Registration> itemByClass = new HashMap<>();
-    protected HashMap<String,Registration> itemByName = new HashMap<>();
+    private Map<Class,Registration> itemByClass;
+    private Map<String,Registration> itemByName;
     
     /** If creating, the item is inserted into the given context
      *
@@ -28,7 +37,7 @@ public abstract class Context implements Contextual {
     }
     
     public int numItemsById() {
-        return itemByName.size();
+        return itemByName == null ? 0 : itemByName.size();
     }
     
     @Override
@@ -91,14 +100,54 @@ public abstract class Context implements Contextual {
     }
     
     protected <T> Registration<T> getRegistration(Class<T> c) {
-        Registration<T> reg = itemByClass.get(c);
+        Registration<T> reg = findByClass(c);
         return reg;
     }
         
     protected <T> Registration<T> getRegistration(String id) {
-        Registration<T> o = itemByName.get(id);
+        Registration<T> o = findByName(id);
         return o;
     }    
+
+    protected Registration findByClass(Class c) {
+        if( itemByClass == null ) return null;
+        return itemByClass.get(c);
+    }
+
+    protected Registration findByName(String id) {
+        if( itemByName == null ) return null;
+        return itemByName.get(id);
+    }
+
+    /** Key the registration by all of the given classes at once
+     */
+    protected void addByClass(Collection<Class> classes, Registration reg) {
+        if( itemByClass == null ) itemByClass = new HashMap<>();
+        for( Class c : classes ) {
+            itemByClass.put(c, reg);
+        }
+    }
+
+    protected void addByName(String id, Registration reg) {
+        if( itemByName == null ) itemByName = new HashMap<>();
+        itemByName.put(id, reg);
+    }
+
+    protected void removeByClass(Collection<Class> classes) {
+        if( itemByClass != null ) itemByClass.keySet().removeAll(classes);
+    }
+
+    protected void removeByName(String id) {
+        if( itemByName != null ) itemByName.remove(id);
+    }
+
+    /** A copy of the registrations keyed by class. A registration will appear
+     *  once for each class it is keyed by
+     */
+    protected Collection<Registration> registrations() {
+        if( itemByClass == null ) return Collections.emptyList();
+        return new ArrayList<>(itemByClass.values());
+    }
     
     /** Place o into context, keying by the given id
      */
@@ -116,7 +165,12 @@ public abstract class Context implements Contextual {
     public <T> Registration<T> put( T o, RemovalCallback f ) {
         if( o == null ) throw new NullPointerException("o is null");
         Registration<T> reg = new Registration<>(o,f,this);
-        register( o.getClass(), o, reg );
+        List<Class> classes = new ArrayList<>();
+        findKeyClasses( o.getClass(), classes );
+        for( Class c : classes ) {
+            reg.addKey(c);
+        }
+        addByClass(classes,reg);
         return reg;
     }
     
@@ -126,21 +180,22 @@ public abstract class Context implements Contextual {
     public <T> Registration<T> put( String id, T o, Factory f ) {
         Registration<T> reg = new Registration<>(o,f,this);
         reg.addKey(id);
-        itemByName.put(id,reg);
+        addByName(id,reg);
         return reg;
     }
     
-    private void register(Class c, Object o, Registration reg ) {
+    /** The class, its superclasses and all of their interfaces, except Object
+     */
+    private void findKeyClasses(Class c, List<Class> classes ) {
         if( c == null ) return ;
         if( c == Object.class ) return ;        
-        itemByClass.put(c,reg);
-        reg.addKey(c);
+        classes.add(c);
         for( Class i : c.getInterfaces() ) {
-            if( !reg.contains(i) ) {
-                register( i, o, reg );
+            if( !classes.contains(i) ) {
+                findKeyClasses( i, classes );
             }
         }
-        register( c.getSuperclass(), o, reg );
+        findKeyClasses( c.getSuperclass(), classes );
     }            
     
     protected void debug(Object o) {
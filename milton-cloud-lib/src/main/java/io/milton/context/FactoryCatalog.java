@@ -72,9 +72,9 @@ public class FactoryCatalog {
     public Factory get(Class c) throws IllegalArgumentException {
         Factory factory = factoriesByClass.get(c);
         if( factory == null ) {
-            log.warn("No factory found for: " + c.getCanonicalName());
-            for( Class cc : factoriesByClass.keySet() ) {
-                log.warn("  key: " + cc.getCanonicalName());
+            // This is normal for optional lookups, so dont log above debug
+            if( log.isDebugEnabled() ) {
+                log.debug("No factory found for: " + c.getCanonicalName());
             }
             return null;
         }
@@ -62,14 +62,12 @@ import java.util.Stack;
             }
             if( keyIds != null ) {
                 for( String id : keyIds ) {
-                    context().itemByName.remove(id);
+                    context().removeByName(id);
                 }
                 keyIds = null;
             }
             if( keyClasses != null ) {
-                for( Class c : keyClasses ) {
-                    context().itemByClass.remove(c);
-                }
+                context().removeByClass(keyClasses);
                 keyClasses = null;
             }
         }    
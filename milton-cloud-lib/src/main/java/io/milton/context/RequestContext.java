@@ -1,7 +1,5 @@
 package io.milton.context;
 
-import java.util.ArrayList;
-
 public class RequestContext extends Context implements RemovalCallback {
     
     private static final ThreadLocal<RequestContext> tlContext = new ThreadLocal<>();
@@ -110,8 +108,7 @@ public class RequestContext extends Context implements RemovalCallback {
     @Override
     public void onRemove(Object item) {
         tlContext.set(null);
-        ArrayList<Registration> items = new ArrayList<Registration>(this.itemByClass.values());        
-        for( Registration reg : items ) {
+        for( Registration reg : registrations() ) {
             reg.remove();
         }
     }    
@@ -1,17 +1,30 @@
 package io.milton.context;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+/** The context shared by all requests
+ * 
+ *  Lookups are made by every request thread, but registrations are rare, so
+ *  registrations are held in an immutable snapshot which is replaced (under
+ *  a lock) whenever anything is added or removed. Lookups just read the
+ *  current snapshot, without locking
+ */
 public class RootContext extends Context implements Closeable {
     
     private static final Logger log = LoggerFactory.getLogger(RootContext.class);
     
     private final FactoryCatalog factoryCatalog;
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot = new Snapshot(Collections.<Class,Registration>emptyMap(), Collections.<String,Registration>emptyMap());
     
     public RootContext() {
         factoryCatalog = new FactoryCatalog();
@@ -112,7 +125,16 @@ public class RootContext extends Context implements Closeable {
         if( reg != null ) return reg;
         Factory f = factoryCatalog.get(c);
         if( f == null ) return null;
-        reg = f.insert(this, context);
+        if( isRootScoped(f) ) {
+            // Only create root scoped beans once, even if several threads ask at once
+            synchronized(f) {
+                reg = super.getRegistration(c);
+                if( reg != null ) return reg;
+                reg = f.insert(this, context);
+            }
+        } else {
+            reg = f.insert(this, context);
+        }
         if( reg == null ) throw new NullPointerException("factory " + f.getClass().getName() + " returned null reg");
         return reg;
     }
@@ -123,14 +145,99 @@ public class RootContext extends Context implements Closeable {
         Factory f = factoryCatalog.get(id);
         if( f == null ) return null;
         //if( f == null ) throw new IllegalArgumentException("No item of ID: " + id );
+        if( isRootScoped(f) ) {
+            synchronized(f) {
+                reg = super.getRegistration(id);
+                if( reg != null ) return reg;
+                return f.insert(this, context);
+            }
+        }
         return f.insert(this, context);
     }
+
+    /** True if the factory is known to insert into the root context. Other
+     *  factories might insert into the request context, eg a connection per
+     *  request, so they are not serialised
+     */
+    private boolean isRootScoped(Factory f) {
+        if( f instanceof SingletonFactory || f instanceof CtxRootFolderFactory ) {
+            return true;
+        }
+        if( f instanceof BeanFactory ) {
+            return !((BeanFactory)f).isRequestScope();
+        }
+        return false;
+    }
+
+    @Override
+    protected Registration findByClass(Class c) {
+        return snapshot.itemByClass.get(c);
+    }
+
+    @Override
+    protected Registration findByName(String id) {
+        return snapshot.itemByName.get(id);
+    }
+
+    @Override
+    protected void addByClass(Collection<Class> classes, Registration reg) {
+        synchronized(lock) {
+            Map<Class,Registration> map = new HashMap<>(snapshot.itemByClass);
+            for( Class c : classes ) {
+                map.put(c, reg);
+            }
+            snapshot = new Snapshot(map, snapshot.itemByName);
+        }
+    }
+
+    @Override
+    protected void addByName(String id, Registration reg) {
+        synchronized(lock) {
+            Map<String,Registration> map = new HashMap<>(snapshot.itemByName);
+            map.put(id, reg);
+            snapshot = new Snapshot(snapshot.itemByClass, map);
+        }
+    }
+
+    @Override
+    protected void removeByClass(Collection<Class> classes) {
+        synchronized(lock) {
+            Map<Class,Registration> map = new HashMap<>(snapshot.itemByClass);
+            if( !map.keySet().removeAll(classes) ) return;
+            snapshot = new Snapshot(map, snapshot.itemByName);
+        }
+    }
+
+    @Override
+    protected void removeByName(String id) {
+        synchronized(lock) {
+            if( !snapshot.itemByName.containsKey(id) ) return;
+            Map<String,Registration> map = new HashMap<>(snapshot.itemByName);
+            map.remove(id);
+            snapshot = new Snapshot(snapshot.itemByClass, map);
+        }
+    }
+
+    @Override
+    protected Collection<Registration> registrations() {
+        return new ArrayList<>(snapshot.itemByClass.values());
+    }
+
+    @Override
+    public int numItemsById() {
+        return snapshot.itemByName.size();
+    }
+
+    @Override
+    public void tearDown() {
+        synchronized(lock) {
+            snapshot = new Snapshot(Collections.<Class,Registration>emptyMap(), Collections.<String,Registration>emptyMap());
+        }
+    }
     
     public void shutdown() {
         log.warn( "shutdown");
-        Object[] items = itemByClass.values().toArray();
-        for( Object o : items ) {
-            Registration r = (Registration)o;
+        for( Registration r : registrations() ) {
             try {
                 log.debug( "remove: " + r.item.getClass());
                 r.remove();
@@ -163,4 +270,17 @@ public class RootContext extends Context implements Closeable {
     public void close() {
         shutdown();
     }
+
+    /** A copy of the registrations, which is safely published by the volatile
+     *  snapshot field. The maps are never modified once given to a snapshot
+     */
+    private static class Snapshot {
+        private final Map<Class,Registration> itemByClass;
+        private final Map<String,Registration> itemByName;
+
+        Snapshot(Map<Class,Registration> itemByClass, Map<String,Registration> itemByName) {
+            this.itemByClass = itemByClass;
+            this.itemByName = itemByName;
+        }
+    }
 }
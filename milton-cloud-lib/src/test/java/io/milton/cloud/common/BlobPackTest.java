@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class BlobPackTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        BlobPack.Writer writer = new BlobPack.Writer(bout);
+        writer.write("aaa", new byte[]{1, 2, 3});
+        writer.write("bbb", new byte[0]);
+        writer.flush();
+        assertEquals(2, writer.getCount());
+
+        BlobPack.Reader reader = new BlobPack.Reader(new ByteArrayInputStream(bout.toByteArray()));
+        assertTrue(reader.next());
+        assertEquals("aaa", reader.getHash());
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, reader.getBytes()));
+        assertTrue(reader.next());
+        assertEquals("bbb", reader.getHash());
+        assertEquals(0, reader.getBytes().length);
+        assertFalse(reader.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        BlobPack.Writer writer = new BlobPack.Writer(bout);
+        writer.write("aaa", new byte[]{1, 2, 3});
+        writer.flush();
+        byte[] arr = Arrays.copyOf(bout.toByteArray(), bout.size() - 1);
+
+        BlobPack.Reader reader = new BlobPack.Reader(new ByteArrayInputStream(arr));
+        reader.next();
+    }
+}
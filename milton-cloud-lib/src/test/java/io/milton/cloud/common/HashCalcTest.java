@@ -16,8 +16,11 @@ package io.milton.cloud.common;
 
 import io.milton.cloud.common.HashCalc;
 import io.milton.cloud.common.Triplet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -58,5 +61,39 @@ public class HashCalcTest {
         System.out.println("hash: " + hash);
         assertEquals("27f807e686f714a769b6bdd52f848446e8565b59", hash);
     }
+
+    @Test
+    public void testParseTriplets_BytesSameAsStream() throws IOException {
+        ArrayList<Triplet> list = new ArrayList<>();
+        list.add(triplet("a.txt", "27f807e686f714a769b6bdd52f848446e8565b59", "f"));
+        list.add(triplet("sub dir", "be1bdec0aa74b4dcb079943e70528096cca985f8", "d"));
+        list.add(triplet("notes:1", "0123456789abcdef0123456789abcdef01234567", "f"));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        hashCalc.calcHash(list, bout);
+        List<ITriplet> fromBytes = hashCalc.parseTriplets(bout.toByteArray());
+        List<ITriplet> fromStream = hashCalc.parseTriplets(new ByteArrayInputStream(bout.toByteArray()));
+        assertEquals(list.size(), fromBytes.size());
+        assertEquals(list.size(), fromStream.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(list.get(i).getName(), fromBytes.get(i).getName());
+            assertEquals(list.get(i).getHash(), fromBytes.get(i).getHash());
+            assertEquals(list.get(i).getType(), fromBytes.get(i).getType());
+            assertEquals(fromStream.get(i).getName(), fromBytes.get(i).getName());
+        }
+        assertEquals(hashCalc.calcHash(list), hashCalc.calcHash(fromBytes));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testParseTriplets_Malformed() throws IOException {
+        hashCalc.parseTriplets("a:f\n".getBytes());
+    }
+
+    private Triplet triplet(String name, String hash, String type) {
+        Triplet t = new Triplet();
+        t.setName(name);
+        t.setHash(hash);
+        t.setType(type);
+        return t;
+    }
     
 }
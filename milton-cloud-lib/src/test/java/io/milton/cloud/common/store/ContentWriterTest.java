@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutImpl;
+import org.hashsplit4j.api.HashStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class ContentWriterTest {
+
+    File root;
+    PackedBlobStore packedStore;
+    MapStore mapStore;
+    List<String> fanoutHashes = Arrays.asList("f1", "f2");
+    String content = "hello world!";
+
+    @Before
+    public void setup() throws IOException {
+        root = File.createTempFile("contentwriter", "");
+        root.delete();
+        packedStore = new PackedBlobStore(root);
+        mapStore = new MapStore();
+        blob("a", "hello");
+        blob("b", " ");
+        blob("c", "world!");
+        mapStore.fanouts.put("f1", new FanoutImpl(Arrays.asList("a", "b"), 6));
+        mapStore.fanouts.put("f2", new FanoutImpl(Arrays.asList("c"), 6));
+    }
+
+    @After
+    public void tearDown() {
+        packedStore.close();
+        for (File f : root.listFiles()) {
+            f.delete();
+        }
+        root.delete();
+    }
+
+    @Test
+    public void testWholeFile() throws IOException {
+        assertEquals(content, write(packedStore, 0, null));
+        assertEquals(content, write(mapStore, 0, null));
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        for (BlobStore store : Arrays.asList(packedStore, mapStore)) {
+            assertEquals("world!", write(store, 6, null));
+            assertEquals("lo w", write(store, 3, 6L));
+            assertEquals("o", write(store, 7, 7L));
+            assertEquals("h", write(store, 0, 0L));
+            assertEquals("!", write(store, 11, 100L));
+        }
+    }
+
+    @Test
+    public void testSkipsChunksBeforeStart() throws IOException {
+        // blob a is in the first chunk fanout, so should never be read
+        mapStore.blobs.remove("a");
+        assertEquals("world!", write(mapStore, 6, null));
+    }
+
+    @Test
+    public void testChunkOffsets() throws IOException {
+        long[] offsets = ChunkOffsets.calc(fanoutHashes, mapStore);
+        assertEquals("0,6,12", ChunkOffsets.format(offsets));
+        assertTrue(Arrays.equals(offsets, ChunkOffsets.parse("0,6,12")));
+        assertEquals(0, ChunkOffsets.findChunk(offsets, 0));
+        assertEquals(0, ChunkOffsets.findChunk(offsets, 5));
+        assertEquals(1, ChunkOffsets.findChunk(offsets, 6));
+        assertEquals(1, ChunkOffsets.findChunk(offsets, 11));
+        assertEquals(2, ChunkOffsets.findChunk(offsets, 12));
+
+        // with the index the first chunk fanout should not be loaded
+        mapStore.fanouts.remove("f1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ContentWriter(mapStore, packedStore).write(fanoutHashes, offsets, out, 7, null);
+        assertEquals("orld!", out.toString("UTF-8"));
+    }
+
+    private String write(BlobStore store, long start, Long finish) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ContentWriter(mapStore, store).write(fanoutHashes, out, start, finish);
+        return out.toString("UTF-8");
+    }
+
+    private void blob(String hash, String s) {
+        packedStore.setBlob(hash, s.getBytes());
+        mapStore.setBlob(hash, s.getBytes());
+    }
+
+    private static class MapStore implements BlobStore, HashStore {
+
+        final Map<String, byte[]> blobs = new HashMap<>();
+        final Map<String, Fanout> fanouts = new HashMap<>();
+
+        @Override
+        public void setBlob(String hash, byte[] bytes) {
+            blobs.put(hash, bytes);
+        }
+
+        @Override
+        public byte[] getBlob(String hash) {
+            return blobs.get(hash);
+        }
+
+        @Override
+        public boolean hasBlob(String hash) {
+            return blobs.containsKey(hash);
+        }
+
+        @Override
+        public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+            fanouts.put(hash, new FanoutImpl(blobHashes, actualContentLength));
+        }
+
+        @Override
+        public Fanout getChunkFanout(String fanoutHash) {
+            return fanouts.get(fanoutHash);
+        }
+
+        @Override
+        public boolean hasChunk(String fanoutHash) {
+            return fanouts.containsKey(fanoutHash);
+        }
+
+        @Override
+        public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        }
+
+        @Override
+        public Fanout getFileFanout(String fileHash) {
+            return null;
+        }
+
+        @Override
+        public boolean hasFile(String fileHash) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.common.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class PackedBlobStoreTest {
+
+    File root;
+
+    @Before
+    public void setup() throws IOException {
+        root = File.createTempFile("packedblobs", "");
+        root.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        root.delete();
+    }
+
+    @Test
+    public void testSetAndGet() throws IOException {
+        PackedBlobStore store = new PackedBlobStore(root);
+        store.setBlob("aaa", "hello".getBytes());
+        store.setBlob("bbb", "world!".getBytes());
+        assertTrue(store.hasBlob("aaa"));
+        assertFalse(store.hasBlob("ccc"));
+        assertEquals("hello", new String(store.getBlob("aaa")));
+        assertEquals("world!", new String(store.getBlob("bbb")));
+        assertNull(store.getBlob("ccc"));
+        store.close();
+    }
+
+    @Test
+    public void testReopen_RebuildsIndexAndTruncatesPartialRecord() throws IOException {
+        PackedBlobStore store = new PackedBlobStore(root);
+        store.setBlob("aaa", "hello".getBytes());
+        store.setBlob("bbb", "world!".getBytes());
+        store.close();
+
+        // simulate a crash part way through writing a record
+        File seg = new File(root, "segment-000000.dat");
+        long goodLength = seg.length();
+        try (RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+            raf.seek(goodLength);
+            raf.write(new byte[]{0x4d, 0x43, 0x42, 0x4c, 0, 3, 'c'});
+        }
+
+        store = new PackedBlobStore(root);
+        assertEquals(2, store.getBlobCount());
+        assertEquals("world!", new String(store.getBlob("bbb")));
+        assertEquals(goodLength, seg.length());
+        store.setBlob("ccc", "again".getBytes());
+        assertEquals("again", new String(store.getBlob("ccc")));
+        store.close();
+    }
+
+    @Test
+    public void testReopen_SkipsCorruptRecordInSealedSegment() throws IOException {
+        PackedBlobStore store = new PackedBlobStore(root);
+        store.setMaxSegmentSize(60);
+        store.setBlob("aaa", "0123456789".getBytes());
+        store.setBlob("bbb", "0123456789".getBytes());
+        store.setBlob("ccc", "0123456789".getBytes());
+        assertEquals(2, store.getSegmentCount());
+        store.close();
+
+        // corrupt the magic of the first record in the sealed first segment
+        File seg = new File(root, "segment-000000.dat");
+        long length = seg.length();
+        try (RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+            raf.seek(0);
+            raf.write(0);
+        }
+
+        store = new PackedBlobStore(root);
+        assertFalse(store.hasBlob("aaa"));
+        assertEquals("0123456789", new String(store.getBlob("bbb")));
+        assertEquals("0123456789", new String(store.getBlob("ccc")));
+        assertEquals(length, seg.length());
+        store.close();
+    }
+
+    @Test
+    public void testRollsSegments() throws IOException {
+        PackedBlobStore store = new PackedBlobStore(root);
+        store.setMaxSegmentSize(30);
+        store.setBlob("aaa", "0123456789".getBytes());
+        store.setBlob("bbb", "0123456789".getBytes());
+        assertEquals(2, store.getSegmentCount());
+        store.close();
+
+        store = new PackedBlobStore(root);
+        assertEquals(2, store.getSegmentCount());
+        assertEquals("0123456789", new String(store.getBlob("aaa")));
+        assertEquals("0123456789", new String(store.getBlob("bbb")));
+        store.close();
+    }
+}
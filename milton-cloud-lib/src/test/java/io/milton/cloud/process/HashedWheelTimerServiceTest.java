@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.process;
+
+import io.milton.cloud.common.CurrentDateService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class HashedWheelTimerServiceTest {
+
+    @Test
+    public void testDueTimersFireAndDisarmedDoNot() {
+        TestTimerService service = new TestTimerService();
+        service.setTickMillis(10);
+        service.setWheelSize(8);
+        service.initWheel();
+        long now = service.clock.now;
+        service.arm(1, 60000, new Date(now));
+        service.arm(2, 60000, new Date(now + 50));
+        service.arm(3, 60000, new Date(now + 200)); // more than one round
+        service.arm(4, 60000, new Date(now + 50));
+        service.disarm(4);
+        assertEquals(3, service.getArmedCount());
+
+        service.advance(1);
+        assertEquals(Arrays.asList(1L), service.fired);
+        service.advance(4);
+        assertEquals(Arrays.asList(1L, 2L), service.fired);
+        service.advance(14);
+        assertEquals(2, service.fired.size());
+        service.advance(1);
+        assertEquals(Arrays.asList(1L, 2L, 3L), service.fired);
+        assertEquals(0, service.getArmedCount());
+        assertEquals(3, service.getFiredCount());
+        assertEquals(10, service.getMaxLatenessMillis()); // timer 1 was due before the first tick
+    }
+
+    @Test
+    public void testFailedTimersAreRetried() {
+        TestTimerService service = new TestTimerService();
+        service.setTickMillis(10);
+        service.setRetryDelayMillis(30);
+        service.fail = true;
+        service.initWheel();
+        service.arm(1, 60000, new Date(service.clock.now));
+        service.advance(10); // fails on ticks 1, 4, 7 and 10
+        assertEquals(4, service.getFailureCount());
+        assertEquals(0, service.getFiredCount());
+        assertEquals(1, service.getArmedCount());
+    }
+
+    @Test
+    public void testIntervalMillis() {
+        assertEquals(0, HashedWheelTimerService.intervalMillis(null));
+        assertEquals(0, HashedWheelTimerService.intervalMillis(State.TimeDependentInterval.NONE));
+        assertEquals(60000, HashedWheelTimerService.intervalMillis(State.TimeDependentInterval.MINUTE));
+    }
+
+    private static class TestTimerService extends HashedWheelTimerService {
+
+        private final TestClock clock = new TestClock();
+        private final List<Long> fired = new ArrayList<>();
+        private boolean fail;
+
+        TestTimerService() {
+            setCurrentDateService(clock);
+        }
+
+        /**
+         * Move the clock forward and tick, once per tick
+         */
+        void advance(int ticks) {
+            for (int i = 0; i < ticks; i++) {
+                clock.now += getTickMillis();
+                tick();
+            }
+        }
+
+        @Override
+        protected long saveTimer(ProcessInstance instance, long intervalMillis, Date due) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected Long deleteTimer(ProcessInstance instance) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void loadTimers() {
+        }
+
+        @Override
+        protected Map<Long, Date> fireTimers(List<Long> timerIds) {
+            Map<Long, Date> map = new HashMap<>();
+            if (fail) {
+                return map;
+            }
+            for (Long id : timerIds) {
+                fired.add(id);
+                map.put(id, null);
+            }
+            return map;
+        }
+    }
+
+    private static class TestClock implements CurrentDateService {
+
+        private long now = 1000000;
+
+        @Override
+        public Date getNow() {
+            return new Date(now);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.context;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class RootContextTest {
+
+    @Test
+    public void testPutAndGetByClassAndInterface() {
+        RootContext root = new RootContext();
+        ArrayList<String> list = new ArrayList<>();
+        root.put(list);
+        root.put("name", "value");
+        assertSame(list, root.get(ArrayList.class));
+        assertSame(list, root.get(List.class));
+        assertEquals("value", root.get("name"));
+        assertNull(root.get(Runnable.class));
+    }
+
+    @Test
+    public void testRequestContextFallsThroughToRoot() {
+        final RootContext root = new RootContext();
+        final ArrayList<String> list = new ArrayList<>();
+        root.put(list);
+        root.execute(new Executable2() {
+
+            @Override
+            public void execute(Context context) {
+                assertSame(list, RequestContext._(List.class));
+                assertSame(this, RequestContext._(Executable2.class));
+            }
+        });
+        assertNull(RequestContext.peekInstance());
+        assertNull(root.get(Executable2.class));
+        assertSame(list, root.get(List.class));
+    }
+
+    @Test
+    public void testSingletonFactoryInsertedOnceByConcurrentLookups() throws Exception {
+        final AtomicInteger inserts = new AtomicInteger();
+        SingletonFactory f = new SingletonFactory() {
+
+            @Override
+            public Registration insert(RootContext context, Context requestContext) {
+                inserts.incrementAndGet();
+                Thread.yield();
+                return super.insert(context, requestContext);
+            }
+        };
+        final StringBuilder bean = new StringBuilder();
+        f.setBean(bean);
+        FactoryCatalog catalog = new FactoryCatalog();
+        catalog.setFactories(Arrays.<Factory>asList(f));
+        final RootContext root = new RootContext(catalog);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Object> found = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    found.add(root.get(CharSequence.class));
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, inserts.get());
+        assertEquals(8, found.size());
+        for (Object o : found) {
+            assertSame(bean, o);
+        }
+        assertSame(bean, root.get(StringBuilder.class));
+    }
+
+    @Test
+    public void testRemove() {
+        RootContext root = new RootContext();
+        Registration<ArrayList> reg = root.put(new ArrayList<String>());
+        assertNotNull(root.get(List.class));
+        reg.remove();
+        assertNull(root.get(List.class));
+        assertNull(root.get(ArrayList.class));
+    }
+}
@@ -24,7 +24,9 @@ import io.milton.cloud.server.manager.MCRootContext;
 import io.milton.cloud.server.web.GroupResource;
 import io.milton.cloud.server.web.PrincipalResource;
 import io.milton.cloud.server.web.ResourceList;
+import io.milton.cloud.server.web.templating.HtmlTemplater;
 import io.milton.cloud.server.web.templating.MenuItem;
+import io.milton.vfs.db.utils.ChangeVersion;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -39,8 +41,10 @@ import io.milton.resource.Resource;
 import io.milton.vfs.db.Organisation;
 import io.milton.vfs.db.Website;
 import io.milton.vfs.db.utils.SessionManager;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.mail.internet.MimeMessage;
 
 /**
@@ -60,6 +64,10 @@ public class ApplicationManager {
     private File appsConfigDir;
     private MCRootContext rootContext;
     private List<EmailTriggerType> emailTriggerTypes = new ArrayList<>();
+    // changes to a parent organisation affect its descendants, so any AppControl change clears the whole cache
+    private final ChangeVersion.VersionedCache<String, List<Application>> activeAppsCache = AppControl.getVersion().newCache(Integer.MAX_VALUE);
+    private final AtomicLong activeAppsHits = new AtomicLong();
+    private final AtomicLong activeAppsMisses = new AtomicLong();
 
     public ApplicationManager(List<Application> initialApps, CurrentRootFolderService currentRootFolderService) {
         this.currentRootFolderService = currentRootFolderService;
@@ -255,20 +263,47 @@ public class ApplicationManager {
         }
     }
 
+    /**
+     * Active apps are those which are active for the website's organisation,
+     * and have an enabled AppControl record for the website. The result is
+     * cached until AppControl records are changed
+     *
+     * @param website
+     * @return - an unmodifiable list
+     */
     public List<Application> findActiveApps(io.milton.vfs.db.Website website) {
+        String key = "w" + website.getId();
+        long version = activeAppsCache.checkVersion();
+        List<Application> active = activeAppsCache.get(key);
+        if (active != null) {
+            activeAppsHits.incrementAndGet();
+            return active;
+        }
+        activeAppsMisses.incrementAndGet();
         List<Application> available = findActiveApps(website.getOrganisation());
         List<AppControl> appControls = AppControl.find(website, SessionManager.session());
-        return findActiveApps(available, appControls);
+        active = Collections.unmodifiableList(findActiveApps(available, appControls));
+        activeAppsCache.cacheIfUnchanged(key, active, version);
+        return active;
     }
 
     /**
      * Active apps are those which are active for the parent organisation, and
-     * have an AppControl record which has enabled = true
+     * have an AppControl record which has enabled = true. The result is cached
+     * until AppControl records are changed
      *
      * @param org
-     * @return
+     * @return - an unmodifiable list
      */
     public List<Application> findActiveApps(Organisation org) {
+        String key = "o" + org.getId();
+        long version = activeAppsCache.checkVersion();
+        List<Application> active = activeAppsCache.get(key);
+        if (active != null) {
+            activeAppsHits.incrementAndGet();
+            return active;
+        }
+        activeAppsMisses.incrementAndGet();
         List<Application> available;
         if (org.getOrganisation() == null) {
             available = getApps();
@@ -276,7 +311,30 @@ public class ApplicationManager {
             available = findActiveApps(org.getOrganisation());
         }
         List<AppControl> appControls = AppControl.find(org, SessionManager.session());
-        return findActiveApps(available, appControls);
+        active = Collections.unmodifiableList(findActiveApps(available, appControls));
+        activeAppsCache.cacheIfUnchanged(key, active, version);
+        return active;
+    }
+
+    /**
+     * Discard all cached app enablement. This happens automatically when
+     * AppControl records are changed through AppControl, so only needs to be
+     * called if they have been changed some other way
+     */
+    public void invalidateActiveApps() {
+        activeAppsCache.clear();
+    }
+
+    public int getActiveAppsCacheSize() {
+        return activeAppsCache.size();
+    }
+
+    public long getActiveAppsHits() {
+        return activeAppsHits.get();
+    }
+
+    public long getActiveAppsMisses() {
+        return activeAppsMisses.get();
     }
 
     public List<Application> findActiveApps(List<Application> available, List<AppControl> appControls) {
@@ -312,12 +370,20 @@ public class ApplicationManager {
         return false;
     }
 
+    /**
+     * Portlets are not versioned with the website, so if any output is
+     * rendered the page is marked as dynamic, so it is not cached
+     */
     public void renderPortlets(String portletSection, Profile currentUser, RootFolder rootFolder, org.apache.velocity.context.Context context, Writer writer) throws IOException {
+        PortletWriter portletWriter = new PortletWriter(writer);
         for (Application app : getActiveApps(rootFolder)) {
             if (app instanceof PortletApplication) {
-                ((PortletApplication) app).renderPortlets(portletSection, currentUser, rootFolder, context, writer);
+                ((PortletApplication) app).renderPortlets(portletSection, currentUser, rootFolder, context, portletWriter);
             }
         }
+        if (portletWriter.written) {
+            HtmlTemplater.markDynamic();
+        }
     }
 
     public MCRootContext getRootContext() {
@@ -360,4 +426,34 @@ public class ApplicationManager {
     public List<EmailTriggerType> getEmailTriggerTypes() {
         return emailTriggerTypes;
     }
+
+    /**
+     * Records whether anything has been written
+     */
+    private static class PortletWriter extends FilterWriter {
+
+        private boolean written;
+
+        PortletWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            written = true;
+            super.write(c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            written = written || len > 0;
+            super.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            written = written || len > 0;
+            super.write(str, off, len);
+        }
+    }
 }
@@ -78,6 +78,7 @@ public class OrganisationFolder extends AbstractResource implements CommonCollec
         for (AppControl ac : AppControl.find(organisation, session)) {
             session.delete(ac);
         }
+        AppControl.changed(session);
 
         organisation.delete(session);
 
@@ -17,11 +17,19 @@ package io.milton.cloud.server.db;
 import io.milton.vfs.db.Organisation;
 import io.milton.vfs.db.Website;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import javax.persistence.Column;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
 import javax.persistence.Temporal;
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
 
 /**
  * Records an HTTP access to the system
@@ -30,8 +38,52 @@ import javax.persistence.Temporal;
  */
 @javax.persistence.Entity
 public class AccessLog {
-    
-    
+
+    /**
+     * Count hits by grouping the raw log. Reports should use AccessLogSummary,
+     * this is only for periods before summaries were recorded
+     *
+     * @param period - AccessLogSummary.HOURLY or DAILY
+     * @param org - optional
+     * @param website - optional
+     * @param start - optional, inclusive
+     * @param before - optional, exclusive
+     * @param session
+     * @return - hits keyed by period start, in date order
+     */
+    public static Map<Date, Long> countHits(String period, Organisation org, Website website, Date start, Date before, Session session) {
+        ProjectionList projections = Projections.projectionList()
+                .add(Projections.min("reqDate"))
+                .add(Projections.rowCount())
+                .add(Projections.groupProperty("reqYear"))
+                .add(Projections.groupProperty("reqMonth"))
+                .add(Projections.groupProperty("reqDay"));
+        if (AccessLogSummary.HOURLY.equals(period)) {
+            projections.add(Projections.groupProperty("reqHour"));
+        }
+        Criteria crit = session.createCriteria(AccessLog.class).setProjection(projections);
+        if (start != null) {
+            crit.add(Restrictions.ge("reqDate", start));
+        }
+        if (before != null) {
+            crit.add(Restrictions.lt("reqDate", before));
+        }
+        if (website != null) {
+            crit.add(Restrictions.eq("website", website));
+        }
+        if (org != null) {
+            crit.add(Restrictions.eq("organisation", org));
+        }
+        Map<Date, Long> totals = new TreeMap<>();
+        List list = crit.list();
+        for (Object oRow : list) {
+            Object[] arr = (Object[]) oRow;
+            Date periodStart = AccessLogSummary.periodStart(period, (Date) arr[0]);
+            totals.put(periodStart, ((Number) arr[1]).longValue());
+        }
+        return totals;
+    }
+
     private long id;
     private Organisation organisation;
     private Website website;
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.server.db;
+
+import io.milton.vfs.db.Organisation;
+import io.milton.vfs.db.Website;
+import io.milton.vfs.db.utils.DbUtils;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.persistence.*;
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+/**
+ * Totals of AccessLog records for an organisation or website over an hour or
+ * a day, so that reports don't need to aggregate the raw log. These are
+ * updated as log records are inserted. Reports should use hits(), which falls
+ * back to the raw log for periods before summaries were recorded
+ *
+ * @author brad
+ */
+@javax.persistence.Entity
+@Table(
+uniqueConstraints = {
+    @UniqueConstraint(columnNames = {"organisation_id", "website_id", "period", "periodStart"})}
+)
+public class AccessLogSummary {
+
+    public static final String HOURLY = "h";
+    public static final String DAILY = "d";
+    /**
+     * Ranges longer than this are reported from the daily summaries
+     */
+    public static final int MAX_HOURLY_DAYS = 7;
+
+    /**
+     * Hits per hour, or per day if the range is longer than MAX_HOURLY_DAYS or
+     * has no start. Summaries only exist from when they started being
+     * recorded, so any earlier part of the range is counted from the raw
+     * AccessLog
+     *
+     * @param org - optional
+     * @param website - optional
+     * @param start - optional
+     * @param finish - optional
+     * @param session
+     * @return - hits keyed by period start, in date order
+     */
+    public static Map<Date, Long> hits(Organisation org, Website website, Date start, Date finish, Session session) {
+        String period = HOURLY;
+        long rangeMillis = (finish == null ? System.currentTimeMillis() : finish.getTime()) - (start == null ? 0 : start.getTime());
+        if (start == null || rangeMillis > MAX_HOURLY_DAYS * 24 * 60 * 60 * 1000l) {
+            period = DAILY;
+        }
+        Map<Date, Long> totals = new TreeMap<>();
+        Date firstSummarised = firstPeriodStart(period, session);
+        if (firstSummarised == null || start == null || start.before(firstSummarised)) {
+            Date before = firstSummarised;
+            if (finish != null && (before == null || finish.before(before))) {
+                before = new Date(finish.getTime() + 1); // finish is inclusive
+            }
+            totals.putAll(AccessLog.countHits(period, org, website, start, before, session));
+        }
+        if (firstSummarised != null && (finish == null || !finish.before(firstSummarised))) {
+            Date summaryStart = start;
+            if (start == null || start.before(firstSummarised)) {
+                summaryStart = firstSummarised;
+            }
+            totals.putAll(totalHits(period, org, website, summaryStart, finish, session));
+        }
+        return totals;
+    }
+
+    /**
+     * The start of the earliest summary of the given period type
+     *
+     * @return - null if there are no summaries
+     */
+    public static Date firstPeriodStart(String period, Session session) {
+        Criteria crit = session.createCriteria(AccessLogSummary.class);
+        crit.add(Restrictions.eq("period", period));
+        crit.setProjection(Projections.min("periodStart"));
+        return (Date) crit.uniqueResult();
+    }
+
+    /**
+     * Find summaries for the given period type, optionally restricted by
+     * organisation, website and date range, in date order
+     */
+    public static List<AccessLogSummary> find(String period, Organisation org, Website website, Date start, Date finish, Session session) {
+        Criteria crit = session.createCriteria(AccessLogSummary.class);
+        crit.add(Restrictions.eq("period", period));
+        if (org != null) {
+            crit.add(Restrictions.eq("organisation", org));
+        }
+        if (website != null) {
+            crit.add(Restrictions.eq("website", website));
+        }
+        if (start != null) {
+            crit.add(Restrictions.ge("periodStart", start));
+        }
+        if (finish != null) {
+            crit.add(Restrictions.le("periodStart", finish));
+        }
+        crit.addOrder(Order.asc("periodStart"));
+        return DbUtils.toList(crit, AccessLogSummary.class);
+    }
+
+    /**
+     * Total hits for each period, across all matching summaries
+     *
+     * @return - hits keyed by period start, in date order
+     */
+    public static Map<Date, Long> totalHits(String period, Organisation org, Website website, Date start, Date finish, Session session) {
+        Map<Date, Long> totals = new LinkedHashMap<>();
+        for (AccessLogSummary s : find(period, org, website, start, finish, session)) {
+            Long l = totals.get(s.getPeriodStart());
+            if (l == null) {
+                l = 0l;
+            }
+            totals.put(s.getPeriodStart(), l + s.getHits());
+        }
+        return totals;
+    }
+
+    public static AccessLogSummary find(String period, Date periodStart, Organisation org, Website website, Session session) {
+        Criteria crit = session.createCriteria(AccessLogSummary.class);
+        crit.add(Restrictions.eq("period", period));
+        crit.add(Restrictions.eq("periodStart", periodStart));
+        if (org == null) {
+            crit.add(Restrictions.isNull("organisation"));
+        } else {
+            crit.add(Restrictions.eq("organisation", org));
+        }
+        if (website == null) {
+            crit.add(Restrictions.isNull("website"));
+        } else {
+            crit.add(Restrictions.eq("website", website));
+        }
+        return DbUtils.unique(crit);
+    }
+
+    /**
+     * Add the given totals to the summary for the period, creating it if it
+     * doesnt exist
+     */
+    public static AccessLogSummary add(String period, Date periodStart, Organisation org, Website website, long hits, long errors, long durationMs, long numBytes, Session session) {
+        AccessLogSummary s = find(period, periodStart, org, website, session);
+        if (s == null) {
+            s = new AccessLogSummary();
+            s.setPeriod(period);
+            s.setPeriodStart(periodStart);
+            s.setOrganisation(org);
+            s.setWebsite(website);
+        }
+        s.setHits(s.getHits() + hits);
+        s.setErrors(s.getErrors() + errors);
+        s.setDurationMs(s.getDurationMs() + durationMs);
+        s.setNumBytes(s.getNumBytes() + numBytes);
+        session.save(s);
+        return s;
+    }
+
+    /**
+     * Truncate the date to the start of its hour or day
+     */
+    public static Date periodStart(String period, Date dt) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(dt);
+        cal.set(Calendar.MILLISECOND, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MINUTE, 0);
+        if (DAILY.equals(period)) {
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        return cal.getTime();
+    }
+    private long id;
+    private Organisation organisation;
+    private Website website;
+    private String period;
+    private Date periodStart;
+    private long hits;
+    private long errors;
+    private long durationMs;
+    private long numBytes;
+
+    @Id
+    @GeneratedValue
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @ManyToOne
+    public Organisation getOrganisation() {
+        return organisation;
+    }
+
+    public void setOrganisation(Organisation organisation) {
+        this.organisation = organisation;
+    }
+
+    @ManyToOne
+    public Website getWebsite() {
+        return website;
+    }
+
+    public void setWebsite(Website website) {
+        this.website = website;
+    }
+
+    /**
+     * HOURLY or DAILY
+     *
+     * @return
+     */
+    @Column(nullable = false, length = 1)
+    public String getPeriod() {
+        return period;
+    }
+
+    public void setPeriod(String period) {
+        this.period = period;
+    }
+
+    @Column(nullable = false)
+    @Temporal(javax.persistence.TemporalType.TIMESTAMP)
+    public Date getPeriodStart() {
+        return periodStart;
+    }
+
+    public void setPeriodStart(Date periodStart) {
+        this.periodStart = periodStart;
+    }
+
+    @Column(nullable = false)
+    public long getHits() {
+        return hits;
+    }
+
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+
+    /**
+     * Number of requests with a result code of 500 or more
+     *
+     * @return
+     */
+    @Column(nullable = false)
+    public long getErrors() {
+        return errors;
+    }
+
+    public void setErrors(long errors) {
+        this.errors = errors;
+    }
+
+    /**
+     * Total duration of all requests
+     *
+     * @return
+     */
+    @Column(nullable = false)
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public void setDurationMs(long durationMs) {
+        this.durationMs = durationMs;
+    }
+
+    @Column(nullable = false)
+    public long getNumBytes() {
+        return numBytes;
+    }
+
+    public void setNumBytes(long numBytes) {
+        this.numBytes = numBytes;
+    }
+}
@@ -43,7 +43,7 @@ public class AltFormat implements Serializable {
     public static AltFormat insertIfOrUpdate(String name, String sourceHash, String altHash, Session session) {
         AltFormat f = find(sourceHash, name, session);
         if( f != null ) {
-            if( f.getAltHash() == altHash) {
+            if( f.getAltHash().equals(altHash)) {
                 return f;
             }
         } else {
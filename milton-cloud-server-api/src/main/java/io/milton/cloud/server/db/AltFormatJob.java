@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.server.db;
+
+import io.milton.vfs.db.utils.DbUtils;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import javax.persistence.*;
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Expression;
+import org.hibernate.criterion.Order;
+
+/**
+ * A queued request to generate an alternative format (see AltFormat) of a
+ * file. Only one job exists for each source hash and format. The job is
+ * deleted when the AltFormat is created
+ *
+ * lastAttemptDate is set when an attempt fails, so the job can be retried
+ * after a delay, and failed jobs can be given another chance later
+ *
+ * @author brad
+ */
+@javax.persistence.Entity
+@Table(
+uniqueConstraints = {
+    @UniqueConstraint(columnNames = {"formatName", "sourceHash"})}
+)
+public class AltFormatJob implements Serializable {
+
+    public static AltFormatJob find(String sourceHash, String formatName, Session session) {
+        Criteria crit = session.createCriteria(AltFormatJob.class);
+        crit.add(Expression.and(Expression.eq("sourceHash", sourceHash), Expression.eq("formatName", formatName)));
+        return DbUtils.unique(crit);
+    }
+
+    /**
+     * Find jobs which have not failed, and have not been attempted since the
+     * given date, oldest first
+     *
+     * @param limit
+     * @param attemptedBefore
+     * @param session
+     * @return
+     */
+    public static List<AltFormatJob> findQueued(int limit, Date attemptedBefore, Session session) {
+        Criteria crit = session.createCriteria(AltFormatJob.class);
+        crit.add(Expression.eq("failed", false));
+        crit.add(Expression.or(Expression.isNull("lastAttemptDate"), Expression.lt("lastAttemptDate", attemptedBefore)));
+        crit.addOrder(Order.asc("createdDate"));
+        crit.setMaxResults(limit);
+        return DbUtils.toList(crit, AltFormatJob.class);
+    }
+
+    /**
+     * Find jobs which have exhausted their attempts, with the last attempt
+     * before the given date
+     *
+     * @param attemptedBefore
+     * @param session
+     * @return
+     */
+    public static List<AltFormatJob> findFailed(Date attemptedBefore, Session session) {
+        Criteria crit = session.createCriteria(AltFormatJob.class);
+        crit.add(Expression.eq("failed", true));
+        crit.add(Expression.lt("lastAttemptDate", attemptedBefore));
+        return DbUtils.toList(crit, AltFormatJob.class);
+    }
+
+    /**
+     * Create a job unless there already is one for the hash and format
+     *
+     * @return - the new or existing job
+     */
+    public static AltFormatJob insertIfMissing(String sourceHash, String formatName, String fileName, Session session) {
+        AltFormatJob j = find(sourceHash, formatName, session);
+        if (j != null) {
+            return j;
+        }
+        j = new AltFormatJob();
+        j.setSourceHash(sourceHash);
+        j.setFormatName(formatName);
+        j.setFileName(fileName);
+        j.setCreatedDate(new Date());
+        session.save(j);
+        return j;
+    }
+    private long id;
+    private String sourceHash; // the hash of the file to convert
+    private String formatName; // the name of the FormatSpec to convert to
+    private String fileName; // name of the source file, used to find its type
+    private Date createdDate;
+    private int attempts;
+    private Date lastAttemptDate; // when the last failed attempt was made
+    private boolean failed; // true if attempts have been exhausted
+
+    @Id
+    @GeneratedValue
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @Column(nullable = false)
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    public void setSourceHash(String sourceHash) {
+        this.sourceHash = sourceHash;
+    }
+
+    @Column(nullable = false)
+    public String getFormatName() {
+        return formatName;
+    }
+
+    public void setFormatName(String formatName) {
+        this.formatName = formatName;
+    }
+
+    @Column(nullable = false)
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Column(nullable = false)
+    @Temporal(javax.persistence.TemporalType.TIMESTAMP)
+    public Date getCreatedDate() {
+        return createdDate;
+    }
+
+    public void setCreatedDate(Date createdDate) {
+        this.createdDate = createdDate;
+    }
+
+    @Column(nullable = false)
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    @Temporal(javax.persistence.TemporalType.TIMESTAMP)
+    public Date getLastAttemptDate() {
+        return lastAttemptDate;
+    }
+
+    public void setLastAttemptDate(Date lastAttemptDate) {
+        this.lastAttemptDate = lastAttemptDate;
+    }
+
+    @Column(nullable = false)
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+}
@@ -15,6 +15,7 @@
 package io.milton.cloud.server.db;
 
 import io.milton.vfs.db.*;
+import io.milton.vfs.db.utils.ChangeVersion;
 import io.milton.vfs.db.utils.DbUtils;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -34,12 +35,34 @@ import org.hibernate.criterion.Expression;
  * available if they are enabled on a parent container, and root containers have
  * all apps available.
  *
+ * Changes made through this class increment a version number, so that anything
+ * caching app enablement can tell when to discard its cache
+ *
  * @author brad
  */
 @javax.persistence.Entity
 public class AppControl implements Serializable {
+    private static final ChangeVersion version = new ChangeVersion();
+    
     private List<AppSetting> appSettings;
 
+    /**
+     * 
+     * @return - changes whenever app enablement might have changed
+     */
+    public static ChangeVersion getVersion() {
+        return version;
+    }
+    
+    /**
+     * Record that enablement has changed
+     * 
+     * @param session 
+     */
+    public static void changed(Session session) {
+        version.changedAfterCommit(session);
+    }
+
     public static List<AppControl> find(Website c, Session session) {
         final Criteria crit = session.createCriteria(AppControl.class);
         crit.add(Expression.eq("website", c));
@@ -90,6 +113,7 @@ public class AppControl implements Serializable {
         ac.setModifiedBy(currentUser);
         ac.setModifiedDate(currentDate);
         session.save(ac);
+        changed(session);
         return ac;
     }
 
@@ -104,6 +128,7 @@ public class AppControl implements Serializable {
         ac.setModifiedBy(currentUser);
         ac.setModifiedDate(currentDate);
         session.save(ac);
+        changed(session);
         return ac;
         
     }
@@ -130,6 +155,7 @@ public class AppControl implements Serializable {
             }
             
         }
+        changed(session);
     }
     
     public static void initDefaultApps(Website website, Profile currentUser, Date now, Session session) {
@@ -146,6 +172,7 @@ public class AppControl implements Serializable {
             }
             
         }
+        changed(session);
     }    
     
     
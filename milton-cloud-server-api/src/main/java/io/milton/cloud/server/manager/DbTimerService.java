@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.server.manager;
+
+import io.milton.cloud.process.HashedWheelTimerService;
+import io.milton.cloud.process.ProcessInstance;
+import io.milton.context.Context;
+import io.milton.context.Executable2;
+import io.milton.context.RootContext;
+import io.milton.vfs.db.BaseProcess;
+import io.milton.vfs.db.ProcessTimer;
+import io.milton.vfs.db.utils.SessionManager;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+/**
+ * Persists process timers as ProcessTimer records, so they survive restarts.
+ *
+ * Registering and unregistering happen in the caller's session and
+ * transaction. Each timer is fired in its own session and transaction, so a
+ * failing process instance does not affect others in its batch
+ *
+ * Every server sharing the database loads all of the timers, so before
+ * scanning, a timer is claimed by moving its due date on with a conditional
+ * update. Servers which lose the claim just re-arm the timer for its next
+ * interval
+ *
+ * Puts itself into the root context on start, so apps can find it as the
+ * TimerService. Apps must add their processes with addProcess
+ *
+ * @author brad
+ */
+public class DbTimerService extends HashedWheelTimerService {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(DbTimerService.class);
+    private final RootContext rootContext;
+    private final SessionManager sessionManager;
+    private int loadPageSize = 1000;
+
+    public DbTimerService(RootContext rootContext, SessionManager sessionManager) {
+        this.rootContext = rootContext;
+        this.sessionManager = sessionManager;
+    }
+
+    @Override
+    public void start() {
+        rootContext.put(this);
+        super.start();
+    }
+
+    @Override
+    protected long saveTimer(ProcessInstance instance, long intervalMillis, Date due) {
+        BaseProcess process = (BaseProcess) instance;
+        Session session = SessionManager.session();
+        if (process.getId() == null) {
+            session.save(process);
+        }
+        ProcessTimer t = ProcessTimer.find(process, session);
+        if (t == null) {
+            t = new ProcessTimer();
+            t.setProcess(process);
+            t.setCreatedDate(getCurrentDateService().getNow());
+        } else if (t.getIntervalMillis() == intervalMillis) {
+            return t.getId();
+        }
+        t.setIntervalMillis(intervalMillis);
+        t.setDueDate(due);
+        session.save(t);
+        return t.getId();
+    }
+
+    @Override
+    protected Long deleteTimer(ProcessInstance instance) {
+        BaseProcess process = (BaseProcess) instance;
+        if (process.getId() == null) {
+            return null;
+        }
+        Session session = SessionManager.session();
+        ProcessTimer t = ProcessTimer.find(process, session);
+        if (t == null) {
+            return null;
+        }
+        session.delete(t);
+        return t.getId();
+    }
+
+    @Override
+    protected void loadTimers() {
+        rootContext.execute(new Executable2() {
+
+            @Override
+            public void execute(Context context) {
+                Session session = sessionManager.open();
+                context.put(session);
+                try {
+                    long lastId = 0;
+                    List<ProcessTimer> page = ProcessTimer.findAfter(lastId, loadPageSize, session);
+                    while (!page.isEmpty()) {
+                        for (ProcessTimer t : page) {
+                            arm(t.getId(), t.getIntervalMillis(), t.getDueDate());
+                            lastId = t.getId();
+                        }
+                        session.clear();
+                        page = ProcessTimer.findAfter(lastId, loadPageSize, session);
+                    }
+                } finally {
+                    sessionManager.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected Map<Long, Date> fireTimers(List<Long> timerIds) {
+        final Map<Long, Date> results = new HashMap<>();
+        for (final Long id : timerIds) {
+            rootContext.execute(new Executable2() {
+
+                @Override
+                public void execute(Context context) {
+                    Session session = sessionManager.open();
+                    context.put(session);
+                    try {
+                        fireTimer(id, session, results);
+                    } finally {
+                        sessionManager.close();
+                    }
+                }
+            });
+        }
+        return results;
+    }
+
+    private void fireTimer(long id, Session session, Map<Long, Date> results) {
+        Transaction tx = session.beginTransaction();
+        try {
+            ProcessTimer t = (ProcessTimer) session.get(ProcessTimer.class, id);
+            if (t == null) {
+                // unregistered, or registration was rolled back
+                tx.commit();
+                results.put(id, null);
+                return;
+            }
+            Date now = getCurrentDateService().getNow();
+            if (t.getDueDate().after(now)) {
+                // already fired by another server
+                tx.commit();
+                results.put(id, t.getDueDate());
+                return;
+            }
+            Date next = new Date(now.getTime() + t.getIntervalMillis());
+            if (!ProcessTimer.claim(t, next, session)) {
+                tx.commit();
+                results.put(id, next);
+                return;
+            }
+            session.refresh(t);
+            if (!scan(t.getProcess())) {
+                tx.rollback();
+                return;
+            }
+            if (!session.contains(t)) { // scan might have unregistered it
+                next = null;
+            } else {
+                next = t.getDueDate(); // or re-registered it with a new interval
+            }
+            tx.commit();
+            results.put(id, next);
+        } catch (RuntimeException e) {
+            log.error("Exception firing process timer: " + id, e);
+            tx.rollback();
+        }
+    }
+
+    public int getLoadPageSize() {
+        return loadPageSize;
+    }
+
+    public void setLoadPageSize(int loadPageSize) {
+        this.loadPageSize = loadPageSize;
+    }
+}
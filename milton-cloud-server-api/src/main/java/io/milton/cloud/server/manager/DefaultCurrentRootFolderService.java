@@ -26,7 +26,9 @@ import io.milton.http.HttpManager;
 import io.milton.http.Request;
 import io.milton.vfs.db.Organisation;
 import io.milton.vfs.db.Website;
+import io.milton.vfs.db.utils.ChangeVersion;
 import io.milton.vfs.db.utils.SessionManager;
+import java.util.concurrent.atomic.AtomicLong;
 import org.hibernate.Session;
 
 import static io.milton.context.RequestContext._;
@@ -63,15 +65,25 @@ import static io.milton.context.RequestContext._;
  * 3. If none of the above match, then fall through to the root org's admin
  * console
  *
+ * The outcome of the sequence is cached per host name as the id of the
+ * website or organisation found, including hosts which fall through to the
+ * root org, so normally only a load by primary key is needed per request. The
+ * cache is discarded when websites or organisations are created, deleted or
+ * renamed (see Website.domainsChanged)
+ *
  *
  * @author brad
  */
 public class DefaultCurrentRootFolderService implements CurrentRootFolderService {
 
+    private static final org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(DefaultCurrentRootFolderService.class);
     public static String ROOT_FOLDER_NAME = "_spliffy_root_folder";
     private String primaryDomain = "localhost";
 
     private ApplicationManager applicationManager;
+    private final ChangeVersion.VersionedCache<String, ResolvedHost> hostCache = Website.getDomainsVersion().newCache(10000);
+    private final AtomicLong hostCacheHits = new AtomicLong();
+    private final AtomicLong hostCacheMisses = new AtomicLong();
     
     public DefaultCurrentRootFolderService() {
     }
@@ -129,26 +141,62 @@ public class DefaultCurrentRootFolderService implements CurrentRootFolderService
         if (host.contains(":")) {
             host = host.substring(0, host.indexOf(":"));
         }
-        System.out.println("resolve: " + host);
         Session session = SessionManager.session();
+        long version = hostCache.checkVersion();
+        ResolvedHost resolved = hostCache.get(host);
+        if (resolved != null) {
+            RootFolder rootFolder = load(resolved, session);
+            if (rootFolder != null) {
+                hostCacheHits.incrementAndGet();
+                return rootFolder;
+            }
+            // deleted without us hearing about it
+            hostCache.remove(host);
+        }
+        hostCacheMisses.incrementAndGet();
+        RootFolder rootFolder = find(host, session);
+        if (rootFolder instanceof WebsiteRootFolder) {
+            resolved = new ResolvedHost(true, ((WebsiteRootFolder) rootFolder).getWebsite().getId());
+        } else {
+            resolved = new ResolvedHost(false, rootFolder.getOrganisation().getId());
+        }
+        hostCache.cacheIfUnchanged(host, resolved, version);
+        return rootFolder;
+    }
+
+    private RootFolder load(ResolvedHost resolved, Session session) {
+        if (resolved.website) {
+            Website website = (Website) session.get(Website.class, resolved.id);
+            if (website != null) {
+                return new WebsiteRootFolder(applicationManager, website);
+            }
+        } else {
+            Organisation org = (Organisation) session.get(Organisation.class, resolved.id);
+            if (org != null) {
+                return new OrganisationRootFolder(applicationManager, org);
+            }
+        }
+        return null;
+    }
+
+    private RootFolder find(String host, Session session) {
+        if (log.isTraceEnabled()) {
+            log.trace("find: " + host);
+        }
         String primaryDomainSuffix = "." + primaryDomain;
         if (host.endsWith(primaryDomainSuffix)) {
             String subdomain = Utils.stripSuffix(host, primaryDomainSuffix);
-            System.out.println("subdoman: " + subdomain);
             // If starts with admin. then look for an organisation, will go to admin console
             if (subdomain.startsWith("admin.")) {
                 String orgName = Utils.stripPrefix(subdomain, "admin.");
-                System.out.println("look for org: " + orgName);
                 Organisation org = Organisation.findByOrgId(orgName, session);
                 if (org != null) {
-                    System.out.println("found: " + org.getName());
                     return new OrganisationRootFolder(applicationManager, org);
                 }
             }
             // otherwise, look for a website with a name that matches the subdomain
             Website website = Website.findByName(subdomain, session);
             if (website != null) {
-                System.out.println("found website: " + website.getName());
                 return new WebsiteRootFolder(applicationManager, website);
             }
         }
@@ -160,14 +208,25 @@ public class DefaultCurrentRootFolderService implements CurrentRootFolderService
         }
 
         // Still nothing found, so drop to root org admin console
-        Organisation org = OrganisationDao.getRootOrg(SessionManager.session());
+        Organisation org = OrganisationDao.getRootOrg(session);
         if (org == null) {
             throw new RuntimeException("No root organisation");
         }
-        System.out.println("fall through to rootorg: " + org.getOrgId());
+        if (log.isTraceEnabled()) {
+            log.trace("fall through to rootorg: " + org.getOrgId());
+        }
         return new OrganisationRootFolder(applicationManager, org);
     }
 
+    /**
+     * Discard all cached host name lookups. This happens automatically when
+     * websites and organisations are changed through the entity classes, so
+     * only needs to be called if they have been changed some other way
+     */
+    public void invalidateHosts() {
+        hostCache.clear();
+    }
+
     public ApplicationManager getApplicationManager() {
         return applicationManager;
     }
@@ -176,5 +235,44 @@ public class DefaultCurrentRootFolderService implements CurrentRootFolderService
         this.applicationManager = applicationManager;
     }
 
-    
+    public int getMaxCachedHosts() {
+        return hostCache.getMaxSize();
+    }
+
+    /**
+     * The host cache is cleared when it reaches this size, which limits the
+     * memory used by requests with arbitrary host names
+     * 
+     * @param maxCachedHosts 
+     */
+    public void setMaxCachedHosts(int maxCachedHosts) {
+        hostCache.setMaxSize(maxCachedHosts);
+    }
+
+    public int getHostCacheSize() {
+        return hostCache.size();
+    }
+
+    public long getHostCacheHits() {
+        return hostCacheHits.get();
+    }
+
+    public long getHostCacheMisses() {
+        return hostCacheMisses.get();
+    }
+
+    /**
+     * The result of resolving a host name, being either a website or an
+     * organisation id
+     */
+    private static class ResolvedHost {
+
+        private final boolean website;
+        private final long id;
+
+        ResolvedHost(boolean website, long id) {
+            this.website = website;
+            this.id = id;
+        }
+    }
 }
@@ -166,7 +166,6 @@ public abstract class AbstractResource implements CommonResource, PropFindableRe
         Profile curUser = _(SpliffySecurityManager.class).getCurrentUser();
         Set<AccessControlledResource.Priviledge> privs = _(SpliffySecurityManager.class).getPriviledges(curUser, this);
         list.addAll(privs);
-        System.out.println("AbstractRes: getPrivs: " + privs);
         return list;
     }
 
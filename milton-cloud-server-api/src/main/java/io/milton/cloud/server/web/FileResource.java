@@ -90,6 +90,8 @@ public class FileResource extends AbstractContentResource implements Replaceable
             if (range == null) {
                 fileNode.writeContent(out);
             } else {
+                // milton calls this once per range, and writes the multipart boundaries itself
+                fileNode.writeContent(out, range.getStart(), range.getFinish());
             }
         }
     }
@@ -82,6 +82,9 @@ public class NodeChildUtils {
         if (children == null) {
             return null;
         }
+        if (children instanceof ResourceList) {
+            return ((ResourceList) children).get(name); // indexed by name
+        }
         for (Resource r : children) {
             if (r.getName().equals(name)) {
                 return r;
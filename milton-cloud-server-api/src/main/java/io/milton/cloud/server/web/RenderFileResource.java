@@ -27,10 +27,12 @@ import io.milton.cloud.server.web.templating.HtmlPage;
 import io.milton.cloud.server.web.templating.HtmlTemplateParser;
 import io.milton.cloud.server.web.templating.HtmlTemplater;
 import io.milton.cloud.server.web.templating.MenuItem;
+import io.milton.cloud.server.web.templating.RenderedPageCache;
 import io.milton.cloud.server.web.templating.WebResource;
 import io.milton.common.Path;
 import io.milton.http.Auth;
 import io.milton.http.FileItem;
+import io.milton.http.HttpManager;
 import io.milton.http.Range;
 import io.milton.http.Response.Status;
 import io.milton.principal.Principal;
@@ -103,6 +105,7 @@ public class RenderFileResource extends AbstractResource implements GetableResou
     private String title;
     private String body;
     private JsonResult jsonResult;
+    private RenderedPageCache.RenderedPage renderedPage;
     private boolean isNewPage; // set to true by NewPageResource
 
     public RenderFileResource(FileResource fileResource) {
@@ -152,9 +155,13 @@ public class RenderFileResource extends AbstractResource implements GetableResou
         if (jsonResult != null) {
             jsonResult.write(out);
         } else {
+            if (renderedPage != null) { // already found by getUniqueId, so send exactly what the ETag was for
+                out.write(renderedPage.getData());
+                return;
+            }
             checkParse();
             WebUtils.setActiveMenu(getHref(), WebUtils.findRootFolder(this));
-            _(HtmlTemplater.class).writePage(template, this, params, out);
+            _(HtmlTemplater.class).writeVersionedPage(template, this, params, out);
         }
     }
 
@@ -164,7 +171,8 @@ public class RenderFileResource extends AbstractResource implements GetableResou
         }
         parsed = true;
         try {
-            _(HtmlTemplateParser.class).parse(this, Path.root);
+            String hash = isNewPage ? null : fileResource.getHash();
+            _(HtmlTemplateParser.class).parse(this, Path.root, hash);
         } catch (XMLStreamException ex) {
             throw new RuntimeException(getHref(), ex);
         } catch (IOException ex) {
@@ -246,6 +254,42 @@ public class RenderFileResource extends AbstractResource implements GetableResou
         return fileResource.getName();
     }
 
+    /**
+     * Only given when the rendered page is in the rendered page cache, in which
+     * case it is the hash of the cached bytes, and those bytes are what will be
+     * sent. Pages with dynamic content are never cached, so never have an ETag
+     *
+     * Only anonymous GETs and HEADs without parameters can be cached, so other
+     * requests, such as PROPFINDs listing the folder, return null without
+     * parsing the page
+     *
+     * @return
+     */
+    @Override
+    public String getUniqueId() {
+        if (jsonResult != null || isNewPage) {
+            return null;
+        }
+        HtmlTemplater templater = _(HtmlTemplater.class);
+        Request request = HttpManager.request();
+        if (request == null || !templater.getRenderedPageCache().isEnabled()) {
+            return null;
+        }
+        if (request.getMethod() != Request.Method.GET && request.getMethod() != Request.Method.HEAD) {
+            return null;
+        }
+        Auth auth = request.getAuthorization();
+        if (auth != null && auth.getTag() != null) {
+            return null;
+        }
+        if (request.getParams() != null && !request.getParams().isEmpty()) {
+            return null;
+        }
+        checkParse();
+        renderedPage = templater.findRenderedPage(template, this, request.getParams());
+        return renderedPage == null ? null : renderedPage.getETag();
+    }
+
     @Override
     public Date getModifiedDate() {
         return fileResource.getModifiedDate();
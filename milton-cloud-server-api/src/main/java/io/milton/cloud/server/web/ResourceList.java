@@ -42,6 +42,7 @@ public class ResourceList extends ArrayList<CommonResource> {
 
     public ResourceList(ResourceList copyFrom) {
         super(copyFrom);
+        map.putAll(copyFrom.map);
     }
 
     @Override
@@ -76,6 +77,14 @@ public class ResourceList extends ArrayList<CommonResource> {
         return b;
     }
 
+    @Override
+    public boolean addAll(Collection<? extends CommonResource> c) {
+        for (CommonResource r : c) {
+            add(r);
+        }
+        return !c.isEmpty();
+    }
+
     /**
      * Just adds the elements in the given list to this list and returns list to
      * make it suitable for chaining and use from velocity
@@ -88,6 +97,12 @@ public class ResourceList extends ArrayList<CommonResource> {
         return this;
     }
 
+    /**
+     * Find a member by name, without scanning the list
+     *
+     * @param name
+     * @return
+     */
     public CommonResource get(String name) {
         return map.get(name);
     }
@@ -96,11 +111,28 @@ public class ResourceList extends ArrayList<CommonResource> {
     public boolean remove(Object o) {
         if (o instanceof CommonResource) {
             CommonResource e = (CommonResource) o;
-            map.remove(e.getName());
+            if (map.get(e.getName()) == e) {
+                map.remove(e.getName());
+            }
         }
         return super.remove(o);
     }
 
+    @Override
+    public CommonResource remove(int index) {
+        CommonResource e = super.remove(index);
+        if (map.get(e.getName()) == e) {
+            map.remove(e.getName());
+        }
+        return e;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        map.clear();
+    }
+
     public CommonResource getFirst() {
         if (isEmpty()) {
             return null;
@@ -206,12 +238,10 @@ public class ResourceList extends ArrayList<CommonResource> {
     }
 
     public ResourceList _exclude(String... s) {
-        ResourceList newList = new ResourceList(this);
-        Iterator<CommonResource> it = newList.iterator();
-        while (it.hasNext()) {
-            Resource ct = it.next();
-            if (contains(s, ct.getName())) {
-                it.remove();
+        ResourceList newList = new ResourceList();
+        for (CommonResource ct : this) {
+            if (!contains(s, ct.getName())) {
+                newList.add(ct);
             }
         }
         return newList;
@@ -233,12 +263,10 @@ public class ResourceList extends ArrayList<CommonResource> {
      * @return
      */
     public ResourceList ofType(String s) {
-        ResourceList newList = new ResourceList(this);
-        Iterator<CommonResource> it = newList.iterator();
-        while (it.hasNext()) {
-            CommonResource ct = it.next();
-            if (!ct.is(s)) {
-                it.remove();
+        ResourceList newList = new ResourceList();
+        for (CommonResource ct : this) {
+            if (ct.is(s)) {
+                newList.add(ct);
             }
         }
         return newList;
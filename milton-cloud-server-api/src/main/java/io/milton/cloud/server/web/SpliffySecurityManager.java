@@ -17,6 +17,7 @@ import io.milton.resource.AccessControlledResource.Priviledge;
 import io.milton.vfs.db.Group;
 import io.milton.vfs.db.GroupMembership;
 import io.milton.vfs.db.GroupRole;
+import io.milton.vfs.db.utils.ChangeVersion;
 import io.milton.vfs.db.utils.SessionManager;
 import java.util.Collection;
 import java.util.Collections;
@@ -24,8 +25,14 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Priviledges are calculated from the current user's group memberships and the
+ * roles of those groups. The results are cached by user, resource organisation
+ * and resource class, since that is all the roles look at, and the cache is
+ * discarded whenever group memberships or group roles change. If a Role is
+ * added which depends on anything else set cachePriviledges to false
  *
  * @author brad
  */
@@ -38,6 +45,10 @@ public class SpliffySecurityManager {
     private final Map<String, Role> mapOfRoles = new ConcurrentHashMap<>();
     
     private String publicGroup = "public";
+    private boolean cachePriviledges = true;
+    private final ChangeVersion.VersionedCache<String, Set<AccessControlledResource.Priviledge>> privsCache = Group.getAccessVersion().newCache(10000);
+    private final AtomicLong privsCacheHits = new AtomicLong();
+    private final AtomicLong privsCacheMisses = new AtomicLong();
 
     public SpliffySecurityManager(UserDao userDao, PasswordManager passwordManager) {
         this.userDao = userDao;
@@ -137,7 +148,9 @@ public class SpliffySecurityManager {
             }
             log.info("Required priviledge: " + required + " was not found in assigned priviledge list of size: " + privs.size());
         }
-        log.info("allows = " + allows + " rsource: " + resource.getClass());
+        if (log.isTraceEnabled()) {
+            log.trace("allows = " + allows + " resource: " + resource.getClass());
+        }
         return allows;
     }
 
@@ -149,7 +162,40 @@ public class SpliffySecurityManager {
         return userDao;
     }
     
+    /**
+     * 
+     * @param curUser - null for anonymous access
+     * @param resource
+     * @return - an unmodifiable set
+     */
     public Set<AccessControlledResource.Priviledge> getPriviledges(Profile curUser, CommonResource resource) {
+        if (!cachePriviledges) {
+            return Collections.unmodifiableSet(findPriviledges(curUser, resource));
+        }
+        Organisation org = resource.getOrganisation();
+        String key = (curUser == null ? "" : curUser.getId()) + ":" + (org == null ? "" : org.getId()) + ":" + resource.getClass().getName();
+        long version = privsCache.checkVersion();
+        Set<AccessControlledResource.Priviledge> privs = privsCache.get(key);
+        if (privs != null) {
+            privsCacheHits.incrementAndGet();
+            return privs;
+        }
+        privsCacheMisses.incrementAndGet();
+        privs = Collections.unmodifiableSet(findPriviledges(curUser, resource));
+        privsCache.cacheIfUnchanged(key, privs, version);
+        return privs;
+    }
+
+    /**
+     * Discard all cached priviledges. This happens automatically when group
+     * memberships or roles are changed through the entity classes, so only
+     * needs to be called if they have been changed some other way
+     */
+    public void invalidatePriviledges() {
+        privsCache.clear();
+    }
+
+    private Set<AccessControlledResource.Priviledge> findPriviledges(Profile curUser, CommonResource resource) {
         Set<AccessControlledResource.Priviledge> privs = new HashSet<>();
         if (curUser != null) {
             if (curUser.getMemberships() != null) {
@@ -157,7 +203,6 @@ public class SpliffySecurityManager {
                     appendPriviledges(m.getGroupEntity(), m.getWithinOrg(), resource, privs);
                 }
             }
-            System.out.println("privs size: " + privs.size());
         } else {
             Organisation org = resource.getOrganisation();
             Group pg = org.group(publicGroup, SessionManager.session());
@@ -170,26 +215,17 @@ public class SpliffySecurityManager {
 
     private void appendPriviledges(Group g, Organisation withinOrg, CommonResource resource, Set<AccessControlledResource.Priviledge> privs) {        
         if (g.getGroupRoles() != null) {
-            System.out.println("appendPriviledges: group roles size: " + g.getGroupRoles().size() + " for group: " + g.getName());
             for (GroupRole gr : g.getGroupRoles()) {
                 String roleName = gr.getRoleName();
-                System.out.println("roleName: " + roleName);
                 Role role = mapOfRoles.get(roleName);
                 if (role != null) {
-                    System.out.println("role: " + role);
                     if (role.appliesTo(resource, withinOrg, g)) {
-                        System.out.println("does apply");
                         privs.addAll(role.getPriviledges(resource, withinOrg, g));
-                    } else {
-                        System.out.println("does not apply");
                     }
-                           
                 } else {
                     log.warn("Role not found: " + roleName + " in roles: " + mapOfRoles.size());
                 }
             }
-        } else {
-            System.out.println("appendPriviledges: no grs for: " + g.getName());
         }
     }
 
@@ -216,4 +252,37 @@ public class SpliffySecurityManager {
     public Collection<Role> getGroupRoles() {
         return Collections.unmodifiableCollection(mapOfRoles.values());        
     }
+
+    public boolean isCachePriviledges() {
+        return cachePriviledges;
+    }
+
+    public void setCachePriviledges(boolean cachePriviledges) {
+        this.cachePriviledges = cachePriviledges;
+    }
+
+    public int getMaxCachedPriviledges() {
+        return privsCache.getMaxSize();
+    }
+
+    /**
+     * The cache is cleared when it reaches this size
+     * 
+     * @param maxCachedPriviledges 
+     */
+    public void setMaxCachedPriviledges(int maxCachedPriviledges) {
+        privsCache.setMaxSize(maxCachedPriviledges);
+    }
+
+    public int getPriviledgesCacheSize() {
+        return privsCache.size();
+    }
+
+    public long getPriviledgesCacheHits() {
+        return privsCacheHits.get();
+    }
+
+    public long getPriviledgesCacheMisses() {
+        return privsCacheMisses.get();
+    }
 }
@@ -18,6 +18,7 @@ package io.milton.cloud.server.web.alt;
 
 import io.milton.cloud.common.With;
 import io.milton.cloud.server.db.AltFormat;
+import io.milton.cloud.server.db.AltFormatJob;
 import io.milton.cloud.server.db.MediaMetaData;
 import io.milton.cloud.server.web.FileResource;
 import io.milton.common.ContentTypeService;
@@ -34,14 +35,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.hashsplit4j.api.BlobStore;
 import org.hashsplit4j.api.HashStore;
 import org.hashsplit4j.api.Parser;
@@ -51,6 +53,20 @@ import org.hibernate.Transaction;
 /**
  * Listens for PUT events and generates alternative file formats as appropriate
  *
+ * Jobs are recorded in the database as AltFormatJob records, so they survive
+ * a restart. When a media file is PUT a job is queued for each format which
+ * applies to it, and a dispatcher thread periodically loads queued jobs and
+ * runs them, no more than maxConcurrentJobs at a time. A job requested by a
+ * GET for a format which doesn't exist yet is run immediately if there is
+ * capacity, otherwise it is recorded by the dispatcher thread, so the GET
+ * doesn't write to the database
+ *
+ * A failed job is retried after retryDelaySecs, up to maxAttempts. After that
+ * it is marked failed, and given another maxAttempts after failedRetryHours,
+ * in case the failure was caused by something which has since been fixed
+ *
+ * Only one job runs for each source hash and format
+ *
  * @author brad
  */
 public class AltFormatGenerator implements EventListener {
@@ -64,10 +80,18 @@ public class AltFormatGenerator implements EventListener {
     private final MediaInfoService mediaInfoService;
     private String ffmpeg = "avconv";
     private List<FormatSpec> formats;
-    private ExecutorService consumer = new ThreadPoolExecutor(1, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(100));
-    private final List<GenerateJob> currentJobs = new CopyOnWriteArrayList<>();
+    private int maxConcurrentJobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // avconv uses several threads itself
+    private int maxQueuedJobs = 100;
+    private int maxAttempts = 3;
+    private long retryDelaySecs = 60;
+    private long failedRetryHours = 24;
+    private long dispatchIntervalSecs = 10;
+    private ThreadPoolExecutor consumer;
+    private ScheduledExecutorService dispatcher;
+    private final ConcurrentHashMap<String, GenerateJob> currentJobs = new ConcurrentHashMap<>();
     private final FormatSpec profileSpec;
     private boolean enableMetaData;
+    private boolean pregenerate = true;
 
     public AltFormatGenerator(HashStore hashStore, BlobStore blobStore, EventManager eventManager, ContentTypeService contentTypeService, RootContext rootContext, SessionManager sessionManager) {
         this.rootContext = rootContext;
@@ -93,26 +117,153 @@ public class AltFormatGenerator implements EventListener {
         rootContext.put(this);
     }
 
-    @Override
-    public void onEvent(Event e) {
-        System.out.println("onEvent: " + e);
-        if (!enableMetaData) {
-            System.out.println("meta data generation is not enabled");
+    /**
+     * Start the job threads, and the dispatcher which runs jobs queued in the
+     * database
+     */
+    public synchronized void start() {
+        if (consumer != null) {
             return;
         }
+        consumer = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory("alt-format-job"));
+        dispatcher = Executors.newSingleThreadScheduledExecutor(threadFactory("alt-format-dispatcher"));
+        dispatcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatch();
+                } catch (Throwable e) {
+                    log.error("Exception dispatching alt format jobs", e);
+                }
+            }
+        }, dispatchIntervalSecs, dispatchIntervalSecs, TimeUnit.SECONDS);
+        log.info("Started alt format generator with max concurrent jobs: " + maxConcurrentJobs);
+    }
+
+    public synchronized void stop() {
+        if (dispatcher != null) {
+            dispatcher.shutdownNow();
+            dispatcher = null;
+        }
+        if (consumer != null) {
+            consumer.shutdownNow();
+            consumer = null;
+        }
+    }
+
+    @Override
+    public void onEvent(Event e) {
         if (e instanceof PutEvent) {
-            System.out.println("");
             PutEvent pe = (PutEvent) e;
             if (pe.getResource() instanceof FileResource) {
                 FileResource fr = (FileResource) pe.getResource();
                 if (isMedia(fr)) {
-                    System.out.println("is media, generate metadata");
-                    findInfo(fr);
+                    if (enableMetaData) {
+                        findInfo(fr);
+                    }
+                    if (pregenerate) {
+                        queueFormats(fr);
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Record a job for each format which applies to the file. This is done in
+     * the PUT's transaction, so jobs are only dispatched once the file has
+     * been committed
+     */
+    private void queueFormats(FileResource fr) {
+        String hash = fr.getHash();
+        if (hash == null) {
+            return;
+        }
+        Session session = SessionManager.session();
+        if (session == null) {
+            return;
+        }
+        Transaction tx = null;
+        if (!session.getTransaction().isActive()) {
+            tx = session.beginTransaction();
+        }
+        for (FormatSpec f : formats) {
+            if (f == profileSpec || !is(fr.getName(), f.inputType)) {
+                continue;
+            }
+            if (AltFormat.find(hash, f.getName(), session) == null) {
+                AltFormatJob.insertIfMissing(hash, f.getName(), fr.getName(), session);
+            }
+        }
+        if (tx != null) {
+            tx.commit();
+        }
+    }
+
+    /**
+     * Give failed jobs another chance once failedRetryHours has passed, then
+     * load queued jobs from the database and run them, up to the capacity of
+     * the job queue
+     */
+    private void dispatch() {
+        final int running = currentJobs.size();
+        final int capacity = maxQueuedJobs - running;
+        rootContext.execute(new Executable2() {
+            @Override
+            public void execute(Context context) {
+                sessionManager.open();
+                try {
+                    Session session = SessionManager.session();
+                    resetFailed(session);
+                    if (capacity <= 0) {
+                        return;
+                    }
+                    // Jobs already in memory are still queued in the database, so skip them
+                    Date attemptedBefore = new Date(System.currentTimeMillis() - retryDelaySecs * 1000);
+                    int submitted = 0;
+                    for (AltFormatJob job : AltFormatJob.findQueued(capacity + running, attemptedBefore, session)) {
+                        if (submitted >= capacity) {
+                            break;
+                        }
+                        if (currentJobs.containsKey(jobKey(job.getSourceHash(), job.getFormatName()))) {
+                            continue;
+                        }
+                        FormatSpec f = findFormat(job.getFormatName());
+                        if (f == null || AltFormat.find(job.getSourceHash(), job.getFormatName(), session) != null) {
+                            // no longer needed
+                            Transaction tx = session.beginTransaction();
+                            session.delete(job);
+                            tx.commit();
+                            continue;
+                        }
+                        if (submit(job.getSourceHash(), job.getFileName(), f) == null) {
+                            break;
+                        }
+                        submitted++;
+                    }
+                } finally {
+                    sessionManager.close();
+                }
+            }
+        });
+    }
+
+    private void resetFailed(Session session) {
+        Date attemptedBefore = new Date(System.currentTimeMillis() - failedRetryHours * 60 * 60 * 1000);
+        List<AltFormatJob> failed = AltFormatJob.findFailed(attemptedBefore, session);
+        if (failed.isEmpty()) {
+            return;
+        }
+        Transaction tx = session.beginTransaction();
+        for (AltFormatJob job : failed) {
+            log.info("Retrying failed job: " + job.getSourceHash() + " - " + job.getFormatName());
+            job.setFailed(false);
+            job.setAttempts(0);
+            session.save(job);
+        }
+        tx.commit();
+    }
+
     private void findInfo(FileResource fr) {
         MediaMetaData mmd = MediaMetaData.find(fr.getHash(), SessionManager.session());
         if (mmd != null) {
@@ -145,29 +296,83 @@ public class AltFormatGenerator implements EventListener {
 
     /**
      * Returns an existing job if there is one that matches the inputs,
-     * otherwise attempts to create a new job and enqueue it. If it cannot
-     * insert because of capacity constraints it will fail
+     * otherwise runs a new job if there is capacity. A job records itself in
+     * the database when it starts, and if there is no capacity the job is
+     * recorded by the dispatcher thread, so this doesn't need a transaction
      *
      * @param primaryHash
      * @param fileName
      * @param format
-     * @return
+     * @return - the running or queued job, or null if the job will be recorded
+     * but can't be run yet
      */
     public GenerateJob getOrEnqueueJob(String primaryHash, String fileName, FormatSpec format) {
-        for (GenerateJob j : currentJobs) {
-            if (j.primaryFileHash == primaryHash) {
-                if (format.equals(j.formatSpec)) {
-                    return j;
-                }
+        GenerateJob j = submit(primaryHash, fileName, format);
+        if (j == null) {
+            recordJob(primaryHash, fileName, format);
+        }
+        return j;
+    }
+
+    private void recordJob(final String primaryHash, final String fileName, final FormatSpec format) {
+        ScheduledExecutorService d = dispatcher;
+        if (d == null) {
+            return;
+        }
+        d.execute(new Runnable() {
+            @Override
+            public void run() {
+                rootContext.execute(new Executable2() {
+                    @Override
+                    public void execute(Context context) {
+                        sessionManager.open();
+                        try {
+                            Session session = SessionManager.session();
+                            Transaction tx = session.beginTransaction();
+                            AltFormatJob.insertIfMissing(primaryHash, format.getName(), fileName, session);
+                            tx.commit();
+                        } catch (Throwable e) {
+                            log.error("Exception recording job: " + primaryHash + " - " + format, e);
+                        } finally {
+                            sessionManager.close();
+                        }
+                    }
+                });
             }
+        });
+    }
+
+    /**
+     * Run the job unless its already running, or the queue is full
+     *
+     * @return - the job, or null if there is no capacity
+     */
+    private GenerateJob submit(String primaryHash, String fileName, FormatSpec format) {
+        String key = jobKey(primaryHash, format.getName());
+        GenerateJob j = currentJobs.get(key);
+        if (j != null) {
+            return j;
+        }
+        if (consumer == null) {
+            start();
+        }
+        if (currentJobs.size() >= maxQueuedJobs) {
+            log.info("Job queue is full, will run job later: " + key);
+            return null;
+        }
+        j = new GenerateJob(primaryHash, fileName, format);
+        GenerateJob existing = currentJobs.putIfAbsent(key, j);
+        if (existing != null) {
+            return existing;
         }
-        GenerateJob j = new GenerateJob(primaryHash, fileName, format);
-        currentJobs.add(j);
-        System.out.println("submitted new job");
         consumer.submit(j);
         return j;
     }
 
+    private String jobKey(String primaryHash, String formatName) {
+        return primaryHash + ":" + formatName;
+    }
+
     public FormatSpec findFormat(String name) {
         for (FormatSpec f : formats) {
             if (f.getName().equals(name)) {
@@ -212,15 +417,19 @@ public class AltFormatGenerator implements EventListener {
     public String generateProfileImage(String primaryFileHash, String primaryFileName) throws Exception {
         final Parser parser = new Parser();
         String ext = FileUtils.getExtension(primaryFileName);
-        AvconvConverter converter = new AvconvConverter(ffmpeg, primaryFileHash, primaryFileName, profileSpec, ext, contentTypeService, hashStore, blobStore);
-        String altHash = converter.generate(new With<InputStream, String>() {
-            @Override
-            public String use(InputStream t) throws Exception {
-                String newFileHash = parser.parse(t, hashStore, blobStore);
-                return newFileHash;
-            }
-        });
-        return altHash;
+        AvconvConverter converter = new AvconvConverter(ffmpeg, primaryFileHash, primaryFileName, profileSpec, ext, contentTypeService, hashStore, blobStore, sessionManager);
+        try {
+            String altHash = converter.generate(new With<InputStream, String>() {
+                @Override
+                public String use(InputStream t) throws Exception {
+                    String newFileHash = parser.parse(t, hashStore, blobStore);
+                    return newFileHash;
+                }
+            });
+            return altHash;
+        } finally {
+            converter.close();
+        }
     }
 
     public class GenerateJob implements Runnable {
@@ -230,7 +439,7 @@ public class AltFormatGenerator implements EventListener {
         private final FormatSpec formatSpec;
         private final String primaryFileName;
         private final AvconvConverter converter;
-        private boolean jobDone;
+        private volatile boolean jobDone;
 
         public GenerateJob(String primaryFileHash, String primaryFileName, FormatSpec formatSpec) {
             this.primaryFileHash = primaryFileHash;
@@ -240,7 +449,7 @@ public class AltFormatGenerator implements EventListener {
                 throw new RuntimeException("formatSpec cannot be null");
             }
             String ext = FileUtils.getExtension(primaryFileName);
-            converter = new AvconvConverter(ffmpeg, primaryFileHash, primaryFileName, formatSpec, ext, contentTypeService, hashStore, blobStore);
+            converter = new AvconvConverter(ffmpeg, primaryFileHash, primaryFileName, formatSpec, ext, contentTypeService, hashStore, blobStore, sessionManager);
         }
 
         public File getDestFile() {
@@ -249,7 +458,7 @@ public class AltFormatGenerator implements EventListener {
 
         @Override
         public void run() {
-            System.out.println("GenerateJob: run");
+            log.info("GenerateJob: run: " + primaryFileHash + " - " + formatSpec);
             try {
                 rootContext.execute(new Executable2() {
                     @Override
@@ -266,20 +475,51 @@ public class AltFormatGenerator implements EventListener {
                 log.error("Exception in generate job", e);
             } finally {
                 jobDone = true;
-                currentJobs.remove(this);
+                currentJobs.remove(jobKey(primaryFileHash, formatSpec.getName()), this);
+                converter.close();
             }
-            System.out.println("Generate job finished");
+            log.info("Generate job finished: " + primaryFileHash + " - " + formatSpec);
         }
 
+        /**
+         * Record the job, so it is run again if the server restarts, then
+         * generate the format and remove the job. If generation fails the job
+         * is retried on a later dispatch until maxAttempts
+         *
+         * @param context
+         */
         public void doProcess(Context context) {
-            Transaction tx = SessionManager.session().beginTransaction();
+            Session session = SessionManager.session();
+            Transaction tx = session.beginTransaction();
+            AltFormatJob.insertIfMissing(primaryFileHash, formatSpec.getName(), primaryFileName, session);
+            tx.commit();
+            tx = session.beginTransaction();
             try {
                 generate();
+                AltFormatJob job = AltFormatJob.find(primaryFileHash, formatSpec.getName(), session);
+                if (job != null) {
+                    session.delete(job);
+                }
                 tx.commit();
-            } catch (IOException ex) {
+            } catch (IOException | RuntimeException ex) {
                 tx.rollback();
-                Logger.getLogger(AltFormatGenerator.class.getName()).log(Level.SEVERE, null, ex);
+                log.error("Failed to generate: " + primaryFileHash + " - " + formatSpec, ex);
+                recordFailure(session);
+            }
+        }
+
+        private void recordFailure(Session session) {
+            session.clear();
+            Transaction tx = session.beginTransaction();
+            AltFormatJob job = AltFormatJob.insertIfMissing(primaryFileHash, formatSpec.getName(), primaryFileName, session);
+            job.setAttempts(job.getAttempts() + 1);
+            job.setLastAttemptDate(new Date());
+            if (job.getAttempts() >= maxAttempts) {
+                log.warn("Giving up on job after " + job.getAttempts() + " attempts, will retry in " + failedRetryHours + " hours: " + primaryFileHash + " - " + formatSpec);
+                job.setFailed(true);
             }
+            session.save(job);
+            tx.commit();
         }
 
         public AltFormat generate() throws IOException {
@@ -314,6 +554,106 @@ public class AltFormatGenerator implements EventListener {
         }
     }
 
+    private ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public boolean isPregenerate() {
+        return pregenerate;
+    }
+
+    /**
+     * If true, jobs to generate all applicable formats are queued when a media
+     * file is PUT
+     *
+     * @param pregenerate
+     */
+    public void setPregenerate(boolean pregenerate) {
+        this.pregenerate = pregenerate;
+    }
+
+    public int getMaxConcurrentJobs() {
+        return maxConcurrentJobs;
+    }
+
+    /**
+     * Number of conversions to run at once. Defaults to half the number of
+     * cores. Must be set before start
+     *
+     * @param maxConcurrentJobs
+     */
+    public void setMaxConcurrentJobs(int maxConcurrentJobs) {
+        this.maxConcurrentJobs = maxConcurrentJobs;
+    }
+
+    public int getMaxQueuedJobs() {
+        return maxQueuedJobs;
+    }
+
+    /**
+     * Maximum number of jobs held in memory, running or waiting to run. Other
+     * jobs wait in the database
+     *
+     * @param maxQueuedJobs
+     */
+    public void setMaxQueuedJobs(int maxQueuedJobs) {
+        this.maxQueuedJobs = maxQueuedJobs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryDelaySecs() {
+        return retryDelaySecs;
+    }
+
+    /**
+     * Time to wait before retrying a failed attempt
+     *
+     * @param retryDelaySecs
+     */
+    public void setRetryDelaySecs(long retryDelaySecs) {
+        this.retryDelaySecs = retryDelaySecs;
+    }
+
+    public long getFailedRetryHours() {
+        return failedRetryHours;
+    }
+
+    /**
+     * Time after which a job which has used all of its attempts is given
+     * another maxAttempts
+     *
+     * @param failedRetryHours
+     */
+    public void setFailedRetryHours(long failedRetryHours) {
+        this.failedRetryHours = failedRetryHours;
+    }
+
+    public long getDispatchIntervalSecs() {
+        return dispatchIntervalSecs;
+    }
+
+    public void setDispatchIntervalSecs(long dispatchIntervalSecs) {
+        this.dispatchIntervalSecs = dispatchIntervalSecs;
+    }
+
+    public int getCurrentJobCount() {
+        return currentJobs.size();
+    }
+
     public boolean isEnableMetaData() {
         return enableMetaData;
     }
@@ -16,10 +16,10 @@
  */
 package io.milton.cloud.server.web.alt;
 
+import io.milton.cloud.common.store.ContentWriter;
 import io.milton.cloud.server.db.AltFormat;
 import io.milton.cloud.server.db.MediaMetaData;
 import io.milton.cloud.server.web.FileResource;
-import io.milton.cloud.server.web.alt.AltFormatGenerator.GenerateJob;
 import io.milton.common.ContentTypeUtils;
 import io.milton.common.Path;
 import io.milton.http.*;
@@ -33,7 +33,6 @@ import io.milton.resource.DigestResource;
 import io.milton.resource.GetableResource;
 import io.milton.resource.Resource;
 import io.milton.vfs.db.utils.SessionManager;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -59,6 +58,7 @@ public class AltFormatResourceFactory implements ResourceFactory {
     private final HashStore hashStore;
     private final BlobStore blobStore;
     private final AltFormatGenerator altFormatGenerator;
+    private int retryAfterSecs = 10;
 
     public AltFormatResourceFactory(ResourceFactory wrapped, HashStore hashStore, BlobStore blobStore, AltFormatGenerator altFormatGenerator) {
         this.wrapped = wrapped;
@@ -84,7 +84,7 @@ public class AltFormatResourceFactory implements ResourceFactory {
                     log.warn("getResource: pre-generated alt format not found: " + sourceHash + " - " + p.getName());
                     // if the format is valid then create a resource which will generate on demand                                        
                     if (format != null) {
-                        System.out.println("created resource for format: " + format);
+                        log.debug("created resource for format: " + format);
                         return new AltFormatResource((FileResource) r, p.getName(), format);
                     } else {
                         log.warn("getResource: unrecognised format: " + formatName);
@@ -99,6 +99,20 @@ public class AltFormatResourceFactory implements ResourceFactory {
         }
     }
 
+    public int getRetryAfterSecs() {
+        return retryAfterSecs;
+    }
+
+    /**
+     * Value of the Retry-After header sent when a requested format is still
+     * being generated
+     *
+     * @param retryAfterSecs
+     */
+    public void setRetryAfterSecs(int retryAfterSecs) {
+        this.retryAfterSecs = retryAfterSecs;
+    }
+
     /**
      * Used the hash of the resource and the content type embedded in the name
      * to locate an alternative representation of the resource
@@ -111,6 +125,7 @@ public class AltFormatResourceFactory implements ResourceFactory {
         private AltFormat altFormat;
         private Fanout fanout;
         private boolean doneFanoutLookup;
+        private Boolean pending;
 
         public AltFormatResource(FileResource rPrimary, String name, AltFormat altFormat, FormatSpec formatSpec) {
             this.rPrimary = rPrimary;
@@ -126,81 +141,68 @@ public class AltFormatResourceFactory implements ResourceFactory {
             this.formatSpec = formatSpec;
         }
 
+        /**
+         * If the format hasn't been generated yet (or is forced) make sure a
+         * job is queued for it. The response is then 202 Accepted, rather
+         * than holding this thread until the job is done
+         *
+         * @param params
+         * @return - true if there is no content to send yet
+         */
+        private boolean isPending(Map<String, String> params) {
+            if (pending == null) {
+                boolean force = params != null && params.containsKey("force");
+                if (altFormat != null && !force) {
+                    pending = false;
+                } else {
+                    // hack start
+                    if (params != null && params.containsKey("args")) {
+                        List<String> args = new ArrayList<>();
+                        for (String s : params.get("args").split(",")) {
+                            args.add(s);
+                        }
+                        String[] arr = new String[args.size()];
+                        args.toArray(arr);
+                        formatSpec.setConverterArgs(arr);
+                    }
+                    // hack end
+                    altFormatGenerator.getOrEnqueueJob(rPrimary.getHash(), rPrimary.getName(), formatSpec);
+                    log.info("format is being generated, return accepted: " + rPrimary.getHash() + " - " + getName());
+                    pending = true;
+                }
+            }
+            return pending;
+        }
+
         @Override
-        public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {            
+        public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {
+            if (isPending(params)) {
+                return; // status was set to 202 in getContentLength
+            }
             MediaMetaData mmd = MediaMetaData.find(rPrimary.getHash(), SessionManager.session());
             if( mmd != null ) {
                 Integer durationSecs = mmd.getDurationSecs();
                 if( durationSecs != null ) {
                     Response resp = HttpManager.response();
                     if( resp != null ) {
-                        System.out.println("set duration header: " + durationSecs);
+                        log.debug("set duration header: " + durationSecs);
                         resp.setNonStandardHeader("X-Content-Duration", durationSecs.toString());
                     }
                 }
             } else {
-                System.out.println("no metadata for: " + rPrimary.getHash());
+                log.debug("no metadata for: " + rPrimary.getHash());
             }
             try {
-                boolean force = params.containsKey("force");
-                if (altFormat == null || force) {
-                    // hack start
-                    if( params.containsKey("args")) {
-                        List<String> args = new ArrayList<>();
-                        for( String s : params.get("args").split(",")) {
-                            args.add(s);
-                        }
-                        String[] arr = new String[args.size()];
-                        args.toArray(arr);
-                        formatSpec.setConverterArgs(arr);
-                        System.out.println("set args: " + arr);                        
-                    }
-                    
-                    // hack end
-                    System.out.println("generate: " + getName());
-                    GenerateJob j = altFormatGenerator.getOrEnqueueJob(rPrimary.getHash(), rPrimary.getName(), formatSpec);
-                    System.out.println("got job: " + j);
-
-                    // Wait until the file exists
-                    int cnt = 0;
-                    System.out.println("check if exists..." );
-                    while (!j.getDestFile().exists() && !j.done()) {
-                        cnt++;
-                        System.out.println("sleep..." + cnt + " .. " + j.getDestFile().exists() + " - " + j.done());
-                        doSleep(cnt++, 200, 70);
-                    }
-                    System.out.println("finished sleepy check");
-                    if (!j.getDestFile().exists()) {
-                        throw new RuntimeException("Job did not create a destination file: " + j.getDestFile().getAbsolutePath());
-                    }
-                    System.out.println("use dest file: " + j.getDestFile().getAbsolutePath() + " size: " + j.getDestFile().length());
-                    
-                    FileInputStream fin = new FileInputStream(j.getDestFile());
-                    byte[] buf = new byte[1024];
-                    System.out.println("send file...");
-                    // Read the file until the job is done, or we run out of bytes
-                    int s = fin.read(buf);
-                    System.out.println("send file... " + s);
-                    long bytes = 0;
-                    while (!j.done() || s > 0) {
-                        if (s < 0) { // no bytes available, but job is not done, so wait
-                            System.out.println("sleep...");
-                            doSleep(100);
-                        } else {
-                            System.out.println("write bytes: " + s);
-                            bytes += s;
-                            out.write(buf, 0, s);
-                        }
-                        s = fin.read(buf);
-                    }
-                    System.out.println("finished sending file: " + bytes);
+                log.trace("using pre-existing alt format: " + altFormat.getAltHash());
+                List<String> fanoutCrcs = getFanout().getHashes();
+                if (range != null) {
+                    // seeking within a video
+                    new ContentWriter(hashStore, blobStore).writeRange(altFormat.getAltHash(), fanoutCrcs, getFanout().getActualContentLength(), out, range.getStart(), range.getFinish());
                 } else {
-                    System.out.println("using pre-existing al-format");
                     Combiner combiner = new Combiner();
-                    List<String> fanoutCrcs = getFanout().getHashes();
                     combiner.combine(fanoutCrcs, hashStore, blobStore, out);
-                    out.flush();
                 }
+                out.flush();
             } catch (Throwable e) {
                 log.error("Exception sending content", e);
                 throw new IOException("Exception sending content");
@@ -237,6 +239,9 @@ public class AltFormatResourceFactory implements ResourceFactory {
 
         @Override
         public Long getMaxAgeSeconds(Auth auth) {
+            if (altFormat == null || Boolean.TRUE.equals(pending)) {
+                return null; // not generated yet, so the response is empty
+            }
             return 60 * 60 * 24l;
         }
 
@@ -244,19 +249,35 @@ public class AltFormatResourceFactory implements ResourceFactory {
         public String getContentType(String accepts) {
             String canProvide = ContentTypeUtils.findContentTypes(name);
             String type = ContentTypeUtils.findAcceptableContentType(canProvide, accepts);
-            System.out.println("content type: " + type);
+            log.trace("content type: " + type);
             return type;
         }
 
+        /**
+         * This is called by the response handler after it has set the status,
+         * but before anything is written, so this is where a pending format
+         * changes the status to 202
+         *
+         * @return
+         */
         @Override
         public Long getContentLength() {
-            System.out.println("getContentLength");
+            log.trace("getContentLength");
+            Request request = HttpManager.request();
+            if (request != null && (request.getMethod() == Method.GET || request.getMethod() == Method.HEAD) && isPending(request.getParams())) {
+                Response resp = HttpManager.response();
+                if (resp != null) {
+                    resp.setStatus(Response.Status.SC_ACCEPTED);
+                    resp.setNonStandardHeader("Retry-After", retryAfterSecs + "");
+                }
+                return 0l;
+            }
             if (getFanout() != null) {
                 Long l = getFanout().getActualContentLength();
-                System.out.println("content length=" + l);
+                log.trace("content length=" + l);
                 return l;
             }
-            System.out.println("no content length");
+            log.trace("no content length");
             return null;
         }
 
@@ -308,24 +329,5 @@ public class AltFormatResourceFactory implements ResourceFactory {
         public boolean isDigestAllowed() {
             return rPrimary.isDigestAllowed();
         }
-
-        private void doSleep(long sleepMillis) {
-            try {
-                Thread.sleep(sleepMillis);
-            } catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
-            }
-        }
-
-        private void doSleep(int cnt, long sleepMillis, int maxCnt) {
-            if (cnt > maxCnt) {
-                throw new RuntimeException("Timeout");
-            }
-            try {
-                Thread.sleep(sleepMillis);
-            } catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
-            }
-        }
     }
 }
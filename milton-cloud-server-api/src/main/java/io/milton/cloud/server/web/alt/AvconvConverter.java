@@ -2,8 +2,8 @@ package io.milton.cloud.server.web.alt;
 
 import com.bradmcevoy.utils.FileUtils;
 import io.milton.cloud.common.With;
-import io.milton.cloud.util.ScriptExecutor;
 import io.milton.common.ContentTypeService;
+import io.milton.vfs.db.utils.SessionManager;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.File;
@@ -11,17 +11,47 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.input.CountingInputStream;
 import org.hashsplit4j.api.BlobStore;
 import org.hashsplit4j.api.Combiner;
 import org.hashsplit4j.api.Fanout;
 import org.hashsplit4j.api.HashStore;
 
+/**
+ * Converts media files with avconv.
+ *
+ * Where the source container can be read sequentially it is piped to avconv
+ * directly from the blob store, otherwise it is first written to a temp file.
+ * Likewise output is piped back where the output format allows, and is parsed
+ * into the stores as it is generated. Formats which must be written to a
+ * seekable file (eg mp4) are written to a part file, which is renamed to the
+ * dest file once avconv has finished, and read back. So the dest file only
+ * ever exists complete
+ *
+ * @author brad
+ */
 public class AvconvConverter implements Closeable {
 
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(AvconvConverter.class);
     private static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir"));
+    private static final Set<String> PIPEABLE_INPUTS = new HashSet<>(Arrays.asList("flv", "webm", "mkv", "ogg", "ogv", "mpg", "mpeg", "ts", "mp3", "wav", "jpg", "jpeg", "png", "gif", "bmp"));
+    private static final Map<String, String> PIPEABLE_OUTPUTS = new HashMap<>();
+
+    static {
+        PIPEABLE_OUTPUTS.put("flv", "flv");
+        PIPEABLE_OUTPUTS.put("webm", "webm");
+        PIPEABLE_OUTPUTS.put("ogv", "ogg");
+    }
     private final ContentTypeService contentTypeService;
     private final String process;
     private final String primaryMediaHash;
@@ -30,34 +60,47 @@ public class AvconvConverter implements Closeable {
     private final String inputExt;
     private final HashStore hashStore;
     private final BlobStore blobStore;
+    private final SessionManager sessionManager;
     private File source;
     private final File dest;
+    private final File destPart;
     private long sourceLength;
 
-    public AvconvConverter(String process, String primaryMediaHash, String inputName, FormatSpec format, String inputFormat, ContentTypeService contentTypeService, HashStore hashStore, BlobStore blobStore) {
+    public AvconvConverter(String process, String primaryMediaHash, String inputName, FormatSpec format, String inputFormat, ContentTypeService contentTypeService, HashStore hashStore, BlobStore blobStore, SessionManager sessionManager) {
         this.hashStore = hashStore;
         this.blobStore = blobStore;
+        this.sessionManager = sessionManager;
         this.process = process;
         this.format = format;
         if (format == null) {
             throw new RuntimeException("Format cannot be null");
         }
-        dest = new File(TEMP_DIR, "convert_" + System.currentTimeMillis() + "." + format.getOutputType());
+        dest = new File(TEMP_DIR, "convert_" + primaryMediaHash + "_" + System.nanoTime() + "." + format.getOutputType());
+        destPart = new File(dest.getParentFile(), dest.getName() + ".part." + format.getOutputType()); // keep the extension, avconv uses it to choose the muxer
         this.contentTypeService = contentTypeService;
         this.primaryMediaHash = primaryMediaHash;
         this.inputName = inputFormat;
         this.inputExt = FileUtils.getExtension(inputName);
     }
 
+    /**
+     * Delete the temp files
+     */
     @Override
     public void close() {
-        if (source.exists()) {
-            boolean deleteOk = source.delete();
+        delete(source);
+        delete(destPart);
+        delete(dest);
+    }
+
+    private void delete(File f) {
+        if (f != null && f.exists()) {
+            boolean deleteOk = f.delete();
             if (!deleteOk) {
-                log.warn("failed to delete: " + source.getAbsolutePath());
+                log.warn("failed to delete: " + f.getAbsolutePath());
             } else {
                 if (log.isTraceEnabled()) {
-                    log.trace("deleted: " + source.getAbsolutePath());
+                    log.trace("deleted: " + f.getAbsolutePath());
                 }
             }
         }
@@ -71,73 +114,169 @@ public class AvconvConverter implements Closeable {
      * Returns whatever the with callback returns, usually hash or content
      * length
      *
-     * @param format
+     * The with callback is given the output of avconv, as it is generated
+     * where the format can be piped
+     *
      * @param with
-     * @param out - if not null the generated file will be streamed out as its
-     * generated
      * @return - null indicates no file was generated. Oterhwise returns
      * whatever the callback returned, generally the hash of the new file
      */
     public String generate(With<InputStream, String> with) throws Exception {
-        log.info("generateThumb: " + format + " to " + dest.getAbsolutePath());
-        source = createSourceFile();
-        try {
-            List<String> args = new ArrayList<>();
-            // TODO: determine original dimensions, then choose x or y axis to scale on so that 
-            // the resulting image or video is bound by the format dimensions
+        boolean pipeInput = canPipeInput();
+        String muxer = findOutputMuxer();
+        log.info("generate: " + format + " to " + dest.getAbsolutePath() + " pipe input: " + pipeInput + " pipe output: " + (muxer != null));
+        List<String> blobHashes = null;
+        if (pipeInput) {
+            blobHashes = findBlobHashes();
+        } else {
+            source = createSourceFile();
+        }
+        List<String> cmd = new ArrayList<>();
+        cmd.add(process);
+        // TODO: determine original dimensions, then choose x or y axis to scale on so that 
+        // the resulting image or video is bound by the format dimensions
 
-            String scale = "scale=" + format.getWidth() + ":-1"; // only scale on width            
+        String scale = "scale=" + format.getWidth() + ":-1"; // only scale on width            
 
-            // set the input file
-            args.add("-i");
-            args.add(source.getAbsolutePath());
+        // set the input file
+        cmd.add("-i");
+        cmd.add(pipeInput ? "pipe:0" : source.getAbsolutePath());
 
-            args.add("-strict");
-            args.add("experimental");
-            args.add("-vf");
-            args.add(scale);
+        cmd.add("-strict");
+        cmd.add("experimental");
+        cmd.add("-vf");
+        cmd.add(scale);
 
-            for (String s : format.getConverterArgs()) {
-                args.add(s);
+        for (String s : format.getConverterArgs()) {
+            cmd.add(s);
+        }
+        if (muxer != null) {
+            if (!hasFormatArg()) {
+                cmd.add("-f");
+                cmd.add(muxer);
             }
+            cmd.add("pipe:1");
+        } else {
+            cmd.add(destPart.getAbsolutePath());
+        }
+        log.info("exec: " + cmd);
 
-            args.add(dest.getAbsolutePath());
-
-            int successCode = 0;
-            ScriptExecutor exec = new ScriptExecutor(process, args, successCode);
-            try {
-                exec.exec();
-            } catch (Exception ex) {
-                throw new Exception("Failed to generate alternate format: " + format, ex);
+        Process proc = new ProcessBuilder(cmd).start();
+        ErrorReader errorReader = new ErrorReader(proc.getErrorStream());
+        errorReader.start();
+        Feeder feeder = null;
+        if (pipeInput) {
+            feeder = new Feeder(blobHashes, proc.getOutputStream());
+            feeder.start();
+        } else {
+            proc.getOutputStream().close();
+        }
+        boolean finished = false;
+        try {
+            String result;
+            long outputLength;
+            if (muxer != null) {
+                CountingInputStream in = new CountingInputStream(proc.getInputStream());
+                result = with.use(in);
+                // drain anything the callback didnt read, so avconv can exit
+                byte[] buf = new byte[8192];
+                while (in.read(buf) >= 0) {
+                }
+                waitFor(proc, feeder, errorReader);
+                outputLength = in.getByteCount();
+                if (outputLength == 0) {
+                    throw new Exception("Conversion failed. No output was generated. format: " + format);
+                }
+            } else {
+                proc.getInputStream().close();
+                waitFor(proc, feeder, errorReader);
+                if (!destPart.exists()) {
+                    throw new Exception("Conversion failed. Dest temp file was not created. Format: " + format);
+                }
+                if (destPart.length() == 0) {
+                    throw new Exception("Conversion failed. Dest temp file has size zero. format: " + format);
+                }
+                Files.move(destPart.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                log.debug(" ffmpeg ran ok. reading temp file back to out stream");
+                outputLength = dest.length();
+                try (FileInputStream tempIn = new FileInputStream(dest)) {
+                    result = with.use(tempIn);
+                }
+            }
+            finished = true;
+            if (sourceLength > 0) {
+                long percent = outputLength * 100 / sourceLength;
+                log.info("Compression: " + percent + "% of source file: " + sourceLength / 1000000 + "Mb");
+            }
+            return result;
+        } finally {
+            if (!finished) {
+                proc.destroy();
             }
+        }
+    }
 
-            if (!dest.exists()) {
-                throw new Exception("Conversion failed. Dest temp file was not created. Format: " + format);
+    private void waitFor(Process proc, Feeder feeder, ErrorReader errorReader) throws Exception {
+        int exitVal = proc.waitFor();
+        errorReader.join(1000);
+        if (feeder != null) {
+            feeder.join(); // avconv has exited, so writes to it fail and the feeder will finish
+            if (feeder.error != null) {
+                throw new Exception("Failed to read source for: " + format, feeder.error);
             }
-            if (dest.length() == 0) {
-                throw new Exception("Conversion failed. Dest temp file has size zero. format: " + format);
+        }
+        if (exitVal != 0) {
+            throw new Exception("Failed to generate alternate format: " + format + " exit code: " + exitVal + " - " + errorReader.getTail());
+        }
+    }
+
+    /**
+     * avconv can read most containers from a pipe, but not those which need
+     * to seek, such as mp4 and mov where the index is often at the end
+     */
+    private boolean canPipeInput() {
+        return inputExt != null && PIPEABLE_INPUTS.contains(inputExt.toLowerCase());
+    }
+
+    /**
+     * Find the muxer to use when writing output to a pipe
+     *
+     * @return - null if the output format must be written to a seekable file
+     */
+    private String findOutputMuxer() {
+        String[] args = format.getConverterArgs();
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("-f")) {
+                return args[i + 1];
             }
+        }
+        return PIPEABLE_OUTPUTS.get(format.getOutputType());
+    }
 
-            if (sourceLength > 0) {
-                long percent = dest.length() * 100 / sourceLength;
-                log.info("Compression: " + percent + "% of source file: " + sourceLength / 1000000 + "Mb");
+    private boolean hasFormatArg() {
+        for (String s : format.getConverterArgs()) {
+            if (s.equals("-f")) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            log.debug(" ffmpeg ran ok. reading temp file back to out stream");
-            FileInputStream tempIn = null;
-            try {
-                tempIn = new FileInputStream(dest);
-                return with.use(tempIn);
-            } catch (Exception ex) {
-                throw new RuntimeException(ex);
-            } finally {
-                FileUtils.close(tempIn);
+    private List<String> findBlobHashes() {
+        Fanout fanout = hashStore.getFileFanout(primaryMediaHash);
+        if (fanout == null) {
+            throw new RuntimeException("File fanout not found: " + primaryMediaHash);
+        }
+        List<String> blobHashes = new ArrayList<>();
+        for (String chunkHash : fanout.getHashes()) {
+            Fanout chunk = hashStore.getChunkFanout(chunkHash);
+            if (chunk == null) {
+                throw new RuntimeException("Chunk fanout not found: " + chunkHash);
             }
-        } finally {
-//            if (dest.exists()) {
-//                dest.delete();
-//            }
+            blobHashes.addAll(chunk.getHashes());
         }
+        sourceLength = fanout.getActualContentLength();
+        return blobHashes;
     }
 
     private File createSourceFile() {
@@ -174,6 +313,89 @@ public class AvconvConverter implements Closeable {
         }
     }
 
+    /**
+     * Writes the source blobs to avconv's input, in its own db session. avconv
+     * may stop reading early (eg when only taking one frame) so a broken pipe
+     * is not an error, but anything else fails the conversion
+     */
+    private class Feeder extends Thread {
+
+        private final List<String> blobHashes;
+        private final OutputStream out;
+        private volatile Throwable error;
+
+        Feeder(List<String> blobHashes, OutputStream out) {
+            super("avconv-feeder");
+            setDaemon(true);
+            this.blobHashes = blobHashes;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            sessionManager.open();
+            try (OutputStream bufOut = new BufferedOutputStream(out, 65536)) {
+                for (String hash : blobHashes) {
+                    byte[] arr = blobStore.getBlob(hash);
+                    if (arr == null) {
+                        error = new Exception("Blob not found: " + hash);
+                        return;
+                    }
+                    bufOut.write(arr);
+                }
+            } catch (IOException ex) {
+                log.debug("avconv closed its input: " + ex.getMessage());
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                sessionManager.close();
+            }
+        }
+    }
+
+    /**
+     * avconv writes progress to stderr, which must be read so it doesnt
+     * block. The end of it is kept for error messages
+     */
+    private static class ErrorReader extends Thread {
+
+        private static final int MAX_TAIL = 4000;
+        private final InputStream in;
+        private final StringBuilder tail = new StringBuilder();
+
+        ErrorReader(InputStream in) {
+            super("avconv-stderr");
+            setDaemon(true);
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[4096];
+            try {
+                int s;
+                while ((s = in.read(buf)) >= 0) {
+                    synchronized (tail) {
+                        tail.append(new String(buf, 0, s));
+                        if (tail.length() > MAX_TAIL) {
+                            tail.delete(0, tail.length() - MAX_TAIL);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                log.debug("Exception reading avconv errors", ex);
+            } finally {
+                FileUtils.close(in);
+            }
+        }
+
+        String getTail() {
+            synchronized (tail) {
+                return tail.toString();
+            }
+        }
+    }
+
     private boolean isVideoOutput(String outputType) {
         List<String> list = contentTypeService.findContentTypes("x." + outputType);
         if (list != null) {
@@ -1,29 +1,51 @@
 package io.milton.cloud.server.web.sync;
 
+import io.milton.cloud.common.BlobPack;
 import io.milton.cloud.common.HashCalc;
+import io.milton.cloud.common.store.BatchBlobStore;
 import io.milton.resource.Resource;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import org.apache.commons.io.IOUtils;
 import org.hashsplit4j.api.BlobStore;
 import io.milton.vfs.db.Organisation;
 import io.milton.cloud.server.web.SpliffySecurityManager;
+import io.milton.http.Auth;
+import io.milton.http.FileItem;
+import io.milton.http.HttpManager;
+import io.milton.http.Range;
+import io.milton.http.exceptions.NotFoundException;
+import io.milton.resource.GetableResource;
+import io.milton.resource.PostableResource;
 import io.milton.resource.PutableResource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
 
 /**
  * This folder allows blobs to be written directly to the blob store, independently
  * of the file from whence they came
  *
+ * Many blobs can be sent at once by POSTing a BlobPack, which is verified and
+ * stored record by record as it is read. And many blobs can be fetched at once
+ * by POSTing a text/plain, newline delimited, list of hashes. The response is a
+ * BlobPack containing those blobs which were found
+ *
  * @author brad
  */
-class BlobFolder extends  BaseResource implements PutableResource {
+class BlobFolder extends  BaseResource implements PutableResource, PostableResource, GetableResource {
 
+    private static final Logger log = Logger.getLogger(BlobFolder.class);
+    private static final int BATCH_SIZE = 100;
     private final BlobStore blobStore;
     private final String name;
+    private Integer numStored;
+    private List<String> requestedHashes;
     
     public BlobFolder(BlobStore blobStore, String name, SpliffySecurityManager securityManager,Organisation org) {
         super(securityManager, org);
@@ -55,18 +77,153 @@ class BlobFolder extends  BaseResource implements PutableResource {
         ByteArrayOutputStream bout = new ByteArrayOutputStream(length.intValue());
         long actualBytes = IOUtils.copyLarge(inputStream, bout);
         if( length != null && !length.equals(actualBytes)) {
-            throw new RuntimeException("Blob is not of expected length: expected=" + length + " actual=" + actualBytes);
+            throw new BadRequestException(this, "Blob is not of expected length: expected=" + length + " actual=" + actualBytes);
         }
         byte[] bytes = bout.toByteArray();
         
         // Verify that the given hash does match the data
         ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
-        HashCalc.getInstance().verifyHash(bin, newName); // will throw exception if not valid
+        try {
+            HashCalc.getInstance().verifyHash(bin, newName);
+        } catch (IOException e) {
+            throw new BadRequestException(this, "Blob does not match its hash: " + newName);
+        }
         
         blobStore.setBlob(newName, bytes);
         return new BlobResource(bytes, newName, securityManager, org);
     }
 
+    /**
+     * Read a BlobPack from the request body, verifying and storing each blob.
+     * Or if the request body is a list of hashes, remember them so the blobs
+     * are sent as the response
+     *
+     * @param parameters
+     * @param files
+     * @return
+     * @throws BadRequestException - if any blob does not match its hash, or
+     * the pack or list of hashes is truncated or malformed. Blobs before it
+     * will have been stored
+     * @throws NotAuthorizedException
+     * @throws ConflictException
+     */
+    @Override
+    public String processForm(Map<String, String> parameters, Map<String, FileItem> files) throws BadRequestException, NotAuthorizedException, ConflictException {
+        String ct = HttpManager.request().getContentTypeHeader();
+        if (ct != null && ct.startsWith("text/plain")) {
+            readHashes();
+            return null;
+        }
+        HashCalc hashCalc = HashCalc.getInstance();
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        int count = 0;
+        try {
+            InputStream in = HttpManager.request().getInputStream();
+            BlobPack.Reader reader = new BlobPack.Reader(new BufferedInputStream(in));
+            while (reader.next()) {
+                String hash = reader.getHash();
+                byte[] bytes = reader.getBytes();
+                try {
+                    hashCalc.verifyHash(new ByteArrayInputStream(bytes), hash);
+                } catch (IOException e) {
+                    store(batch);
+                    throw new BadRequestException(this, "Blob does not match its hash: " + hash);
+                }
+                batch.put(hash, bytes);
+                count++;
+                if (batch.size() >= BATCH_SIZE) {
+                    store(batch);
+                }
+            }
+        } catch (IOException ex) {
+            store(batch);
+            throw new BadRequestException("Failed reading blob pack after " + count + " blobs", ex);
+        }
+        store(batch);
+        numStored = count;
+        log.info("processForm: stored blobs: " + count);
+        return null;
+    }
+
+    private void readHashes() throws BadRequestException {
+        requestedHashes = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(HttpManager.request().getInputStream(), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    if (!isHex(line)) {
+                        throw new BadRequestException(this, "Not a valid hash: " + line);
+                    }
+                    requestedHashes.add(line);
+                }
+            }
+        } catch (IOException ex) {
+            throw new BadRequestException("Failed reading requested hashes", ex);
+        }
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void store(Map<String, byte[]> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (blobStore instanceof BatchBlobStore) {
+            ((BatchBlobStore) blobStore).setBlobs(batch);
+        } else {
+            for (Map.Entry<String, byte[]> e : batch.entrySet()) {
+                blobStore.setBlob(e.getKey(), e.getValue());
+            }
+        }
+        batch.clear();
+    }
+
+    @Override
+    public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {
+        if (numStored != null) {
+            out.write(("stored=" + numStored).getBytes("UTF-8"));
+            return;
+        }
+        if (requestedHashes == null) {
+            return;
+        }
+        BlobPack.Writer writer = new BlobPack.Writer(new BufferedOutputStream(out));
+        for (String hash : requestedHashes) {
+            byte[] bytes = blobStore.getBlob(hash);
+            if (bytes != null) {
+                writer.write(hash, bytes);
+            }
+        }
+        writer.flush();
+    }
+
+    @Override
+    public Long getMaxAgeSeconds(Auth auth) {
+        return null;
+    }
+
+    @Override
+    public String getContentType(String accepts) {
+        if (numStored != null) {
+            return "text/plain";
+        }
+        return BlobPack.CONTENT_TYPE;
+    }
+
+    @Override
+    public Long getContentLength() {
+        return null;
+    }
+
     @Override
     public Resource child(String string) throws NotAuthorizedException, BadRequestException {
         return null;
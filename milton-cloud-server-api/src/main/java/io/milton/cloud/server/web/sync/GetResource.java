@@ -1,5 +1,6 @@
 package io.milton.cloud.server.web.sync;
 
+import io.milton.cloud.common.store.ContentWriter;
 import io.milton.http.Auth;
 import io.milton.http.Range;
 import io.milton.http.exceptions.BadRequestException;
@@ -38,6 +39,11 @@ public class GetResource extends BaseResource implements GetableResource {
 
     @Override
     public void sendContent(OutputStream out, Range range, Map<String, String> map, String string) throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {
+        if (range != null) {
+            // lets the sync client resume an interrupted download
+            new ContentWriter(hashStore, blobStore).writeRange(hash, fanout.getHashes(), fanout.getActualContentLength(), out, range.getStart(), range.getFinish());
+            return;
+        }
         Combiner combiner = new Combiner();
         combiner.combine(fanout.getHashes(), hashStore, blobStore, out);
     }
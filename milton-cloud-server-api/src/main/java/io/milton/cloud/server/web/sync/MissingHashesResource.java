@@ -0,0 +1,130 @@
+package io.milton.cloud.server.web.sync;
+
+import io.milton.cloud.server.web.SpliffySecurityManager;
+import io.milton.http.Auth;
+import io.milton.http.FileItem;
+import io.milton.http.Range;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.exceptions.NotFoundException;
+import io.milton.resource.GetableResource;
+import io.milton.resource.PostableResource;
+import io.milton.vfs.db.Organisation;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.HashStore;
+
+/**
+ * Lets the sync client check the existence of many hashes in one request,
+ * instead of an OPTIONS request per hash.
+ *
+ * POST form parameters blobs, chunkFanouts and fileFanouts, each being a
+ * newline delimited list of hashes. The response is a text file listing only
+ * those hashes which are not present, one per line, prefixed with the name of
+ * the parameter they were given in. Eg
+ *
+ * blobs:27f807e686f714a769b6bdd52f848446e8565b59
+ *
+ * @author brad
+ */
+public class MissingHashesResource extends BaseResource implements PostableResource, GetableResource {
+
+    private static final Logger log = Logger.getLogger(MissingHashesResource.class);
+    public static final String BLOBS = "blobs";
+    public static final String CHUNK_FANOUTS = "chunkFanouts";
+    public static final String FILE_FANOUTS = "fileFanouts";
+    private final BlobStore blobStore;
+    private final HashStore hashStore;
+    private final String name;
+    private List<String> missing;
+
+    public MissingHashesResource(BlobStore blobStore, HashStore hashStore, String name, SpliffySecurityManager securityManager, Organisation org) {
+        super(securityManager, org);
+        this.blobStore = blobStore;
+        this.hashStore = hashStore;
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String processForm(Map<String, String> parameters, Map<String, FileItem> files) throws BadRequestException, NotAuthorizedException, ConflictException {
+        missing = new ArrayList<>();
+        int checked = 0;
+        for (String hash : hashes(parameters.get(BLOBS))) {
+            checked++;
+            if (!blobStore.hasBlob(hash)) {
+                missing.add(BLOBS + ":" + hash);
+            }
+        }
+        for (String hash : hashes(parameters.get(CHUNK_FANOUTS))) {
+            checked++;
+            if (!hashStore.hasChunk(hash)) {
+                missing.add(CHUNK_FANOUTS + ":" + hash);
+            }
+        }
+        for (String hash : hashes(parameters.get(FILE_FANOUTS))) {
+            checked++;
+            if (!hashStore.hasFile(hash)) {
+                missing.add(FILE_FANOUTS + ":" + hash);
+            }
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("processForm: checked=" + checked + " missing=" + missing.size());
+        }
+        return null;
+    }
+
+    @Override
+    public void sendContent(OutputStream out, Range range, Map<String, String> params, String contentType) throws IOException, NotAuthorizedException, BadRequestException, NotFoundException {
+        if (missing == null) {
+            return;
+        }
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        for (String s : missing) {
+            writer.write(s);
+            writer.write("\n");
+        }
+        writer.flush();
+    }
+
+    @Override
+    public Long getMaxAgeSeconds(Auth auth) {
+        return null;
+    }
+
+    @Override
+    public String getContentType(String accepts) {
+        return "text/plain";
+    }
+
+    @Override
+    public Long getContentLength() {
+        return null;
+    }
+
+    private List<String> hashes(String s) {
+        List<String> list = new ArrayList<>();
+        if (s == null) {
+            return list;
+        }
+        for (String line : s.split("\n")) {
+            line = line.trim();
+            if (line.length() > 0) {
+                list.add(line);
+            }
+        }
+        return list;
+    }
+}
@@ -29,6 +29,8 @@ import org.apache.log4j.Logger;
  * /{basePath}/blobs/XXX - returns a stream of bytes which is the file content
  * for a single chunk
  *
+ * /{basePath}/missing - POST a list of hashes to find which are not present
+ *
  * Note that each file will have a single top level fanout hash which will be
  * linked to the fanout hashes containing chunk hashes. This top level fanout is
  * handled the same as the second level fanouts
@@ -117,6 +119,12 @@ public class SpliffySyncResourceFactory implements ResourceFactory {
                 } else {
                     return findDirectoryHashResource(p.getName(), org);
                 }
+            case "missing": // bulk existence check, so clients can skip uploading what we already have
+                if (numPathParts == 1) {
+                    return new MissingHashesResource(blobStore, hashStore, first, securityManager, org);
+                } else {
+                    return null;
+                }
             default:
                 return null;
         }
@@ -54,14 +54,18 @@ public class ContentTemplateHtmlPage extends TemplateHtmlPage {
         this.path = fr.getPath();
     }
 
+    /**
+     * Derived from the hash of the content this was loaded from, since the
+     * template cache holds a separate instance for each website version
+     *
+     * @return
+     */
     @Override
     public long getTimestamp() {
-        FileResource fr = getCurrentFileResource();
-        if (fr == null) {
+        if (loadedHash == null) {
             return -1;
-        } else {
-            return fr.getHash().hashCode();
         }
+        return loadedHash.hashCode();
     }
 
     @Override
@@ -42,6 +42,39 @@ public class HtmlTemplateParser {
 
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(HtmlTemplateParser.class);
     private HtmlFormatter htmlFormatter = new HtmlFormatter();
+    private final ParsedPageCache parsedPageCache = new ParsedPageCache();
+    /**
+     * Creating and configuring a factory is expensive, but factories are not
+     * guaranteed to be thread safe, so keep one per thread
+     */
+    private final ThreadLocal<XMLInputFactory> inputFactories = new ThreadLocal<XMLInputFactory>() {
+
+        @Override
+        protected XMLInputFactory initialValue() {
+            return createInputFactory();
+        }
+    };
+
+    /**
+     * Parse the page, or copy the result of a previous parse of the same
+     * content if the hash is given and it is in the cache
+     *
+     * @param meta
+     * @param webPath
+     * @param hash - the hash of the page content, or null if not known
+     */
+    public void parse(HtmlPage meta, Path webPath, String hash) throws IOException, XMLStreamException {
+        if (hash == null) {
+            parse(meta, webPath);
+            return;
+        }
+        String key = hash + ":" + webPath;
+        if (parsedPageCache.apply(key, meta)) {
+            return;
+        }
+        parse(meta, webPath);
+        parsedPageCache.put(key, meta);
+    }
 
     /**
      * Parse the file associated with the meta, extracting webresources, body
@@ -94,6 +127,20 @@ public class HtmlTemplateParser {
     }
 
     public org.jdom.Document getJDomDocument(InputStream fin) throws XMLStreamException {
+        StaxBuilder staxBuilder = new StaxBuilder();
+        XMLStreamReader streamReader = inputFactories.get().createXMLStreamReader(fin);
+        try {
+            return staxBuilder.build(streamReader);
+        } finally {
+            streamReader.close();
+        }
+    }
+
+    public ParsedPageCache getParsedPageCache() {
+        return parsedPageCache;
+    }
+
+    private XMLInputFactory createInputFactory() {
         XMLInputFactory inputFactory = XMLInputFactory.newInstance();
         if (!inputFactory.isPropertySupported(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES)) {
             throw new RuntimeException(":EEEk");
@@ -111,9 +158,7 @@ public class HtmlTemplateParser {
             }
         };
         inputFactory.setProperty(XMLInputFactory.RESOLVER, xMLResolver);
-        StaxBuilder staxBuilder = new StaxBuilder();
-        XMLStreamReader streamReader = inputFactory.createXMLStreamReader(fin);
-        return staxBuilder.build(streamReader);
+        return inputFactory;
     }
 
     private Element getChild(Element el, String name) {
@@ -33,11 +33,17 @@ import io.milton.cloud.server.web.*;
 import io.milton.context.RequestContext;
 
 import static io.milton.context.RequestContext._;
+import io.milton.http.HttpManager;
+import io.milton.http.Request;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.http.exceptions.NotFoundException;
+import io.milton.vfs.db.Branch;
+import io.milton.vfs.db.Website;
+import java.security.MessageDigest;
 import javax.servlet.ServletContext;
 import javax.xml.stream.XMLStreamException;
+import org.hashsplit4j.api.Parser;
 
 /**
  * Builds pages by plugging a few things in together: - a static skeleton for a
@@ -54,6 +60,8 @@ public class HtmlTemplater {
 
     private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(HtmlTemplater.class);
     public static final String ROOTS_SYS_PROP_NAME = "template.file.roots";
+    public static final String RENDER_CACHE_SYS_PROP_NAME = "template.render.cache";
+    private static final String DYNAMIC_CONTENT = "renderedPageCache.dynamicContent";
     private List<File> roots;
     private final ServletContext servletContext;
     private final VelocityEngine engine;
@@ -61,10 +69,11 @@ public class HtmlTemplater {
     private final HtmlTemplateLoader templateLoader;
     private final HtmlTemplateParser templateParser;
     private final HtmlTemplateRenderer templateRenderer;
-    private final Map<String, TemplateHtmlPage> cachedTemplateMetaData = new HashMap<>();
+    private final TemplateMetaCache templateMetaCache = new TemplateMetaCache();
     private String defaultPublicTheme = "fuse";
     private String defaultAdminTheme = "admin";
     private Path webRoot = Path.path("/");
+    private final RenderedPageCache renderedPageCache = new RenderedPageCache();
 
     public HtmlTemplater(ApplicationManager applicationManager, Formatter formatter, SpliffySecurityManager securityManager, ServletContext servletContext) {
         this.servletContext = servletContext;
@@ -99,6 +108,11 @@ public class HtmlTemplater {
                 log.info("Using file template root: " + root.getAbsolutePath());
             }
         }
+        templateMetaCache.start();
+        if (Boolean.getBoolean(RENDER_CACHE_SYS_PROP_NAME)) {
+            log.info("Rendered page cache is enabled");
+            renderedPageCache.setEnabled(true);
+        }
     }
 
     /**
@@ -146,6 +160,157 @@ public class HtmlTemplater {
      * @throws IOException
      */
     public void writePage(String theme, String templatePath, Resource aThis, Map<String, String> params, OutputStream out) throws IOException {
+        PageTemplates t = findTemplates(theme, templatePath, aThis);
+        UserResource user = securityManager.getCurrentPrincipal();
+        templateRenderer.renderHtml(t.rootFolder, aThis, params, user, t.themeTemplate, t.themeTemplateMeta, t.bodyTemplate, t.bodyTemplateMeta, theme, out);
+    }
+
+    /**
+     * As for writePage, but for a page whose content is versioned in a website
+     * repository, so the rendered output can be cached if the request allows
+     * it and if nothing dynamic (see markDynamic) was rendered
+     *
+     * @param templatePath
+     * @param aThis
+     * @param params
+     * @param out
+     * @throws IOException
+     */
+    public void writeVersionedPage(String templatePath, CommonResource aThis, Map<String, String> params, OutputStream out) throws IOException {
+        String theme = findTheme(aThis, aThis.isPublic());
+        PageTemplates t = findTemplates(theme, templatePath, aThis);
+        UserResource user = securityManager.getCurrentPrincipal();
+        String key = findRenderedPageKey(t, aThis, params, user);
+        if (key == null) {
+            templateRenderer.renderHtml(t.rootFolder, aThis, params, user, t.themeTemplate, t.themeTemplateMeta, t.bodyTemplate, t.bodyTemplateMeta, theme, out);
+            return;
+        }
+        RenderedPageCache.RenderedPage page = renderedPageCache.get(key);
+        if (page != null) {
+            out.write(page.getData());
+            return;
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        RequestContext.getCurrent().put(DYNAMIC_CONTENT, Boolean.FALSE);
+        templateRenderer.renderHtml(t.rootFolder, aThis, params, user, t.themeTemplate, t.themeTemplateMeta, t.bodyTemplate, t.bodyTemplateMeta, theme, bout);
+        if (!Boolean.TRUE.equals(RequestContext.getCurrent().get(DYNAMIC_CONTENT))) {
+            renderedPageCache.put(key, bout.toByteArray());
+        }
+        bout.writeTo(out);
+    }
+
+    /**
+     * Find the cached rendering of a versioned page, if the current request for
+     * it can be served from the cache and it has been rendered before. The
+     * page's ETag should only be given from this, since it is the hash of the
+     * exact bytes which will be sent
+     *
+     * @param templatePath
+     * @param aThis
+     * @param params
+     * @return - null if not cacheable or not cached
+     */
+    public RenderedPageCache.RenderedPage findRenderedPage(String templatePath, CommonResource aThis, Map<String, String> params) {
+        if (!renderedPageCache.isEnabled()) {
+            return null;
+        }
+        UserResource user = securityManager.getCurrentPrincipal();
+        if (user != null) {
+            return null;
+        }
+        String theme = findTheme(aThis, aThis.isPublic());
+        PageTemplates t = findTemplates(theme, templatePath, aThis);
+        String key = findRenderedPageKey(t, aThis, params, user);
+        if (key == null) {
+            return null;
+        }
+        return renderedPageCache.get(key);
+    }
+
+    /**
+     * Called while rendering a page when something has been output which is
+     * not versioned with the website, such as a portlet, so that the page is
+     * not put in the rendered page cache
+     */
+    public static void markDynamic() {
+        RequestContext context = RequestContext.peekInstance();
+        if (context != null) {
+            context.put(DYNAMIC_CONTENT, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Only anonymous GETs, without query parameters, of public versioned pages
+     * in a website can be cached. The key is a hash of the website, its branch
+     * head, the theme, the template timestamps and the request path
+     */
+    private String findRenderedPageKey(PageTemplates t, Resource aThis, Map<String, String> params, UserResource user) {
+        if (!renderedPageCache.isEnabled() || user != null) {
+            return null;
+        }
+        if (!(t.rootFolder instanceof WebsiteRootFolder)) {
+            return null;
+        }
+        if (!(aThis instanceof CommonResource) || !((CommonResource) aThis).isPublic()) {
+            return null;
+        }
+        if (params != null && !params.isEmpty()) {
+            return null;
+        }
+        Request request = HttpManager.request();
+        if (request == null || (request.getMethod() != Request.Method.GET && request.getMethod() != Request.Method.HEAD)) {
+            return null;
+        }
+        Website website = ((WebsiteRootFolder) t.rootFolder).getWebsite();
+        String headHash = findHeadHash(website);
+        if (headHash == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(website.getId()).append("\n");
+        sb.append(headHash).append("\n");
+        sb.append(t.theme).append("\n");
+        sb.append(t.themeTemplatePath).append(":").append(t.themeTemplateMeta.getTimestamp()).append("\n");
+        sb.append(t.bodyTemplatePath).append(":").append(t.bodyTemplateMeta.getTimestamp()).append("\n");
+        sb.append(request.getAbsolutePath());
+        MessageDigest crypt = Parser.getCrypt();
+        try {
+            crypt.update(sb.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+        return Parser.toHex(crypt);
+    }
+
+    /**
+     * Finding the current branch is a database lookup, and templates are
+     * looked up (and polled for modification by velocity) many times while
+     * rendering a page, so the head hash is only looked up once per request
+     *
+     * @param website
+     * @return - null if the website's current branch has no head
+     */
+    private String findHeadHash(Website website) {
+        RequestContext context = RequestContext.getCurrent();
+        String key = "templater.headHash." + website.getId();
+        String headHash = context.get(key);
+        if (headHash == null) {
+            Branch branch = website.currentBranch();
+            if (branch != null && branch.getHead() != null) {
+                headHash = branch.getHead().getItemHash();
+            } else {
+                headHash = "";
+            }
+            context.put(key, headHash);
+        }
+        return headHash.length() == 0 ? null : headHash;
+    }
+
+    /**
+     * Locate the body and theme templates for the page, and set up the request
+     * context so the template loader can find them
+     */
+    private PageTemplates findTemplates(String theme, String templatePath, Resource aThis) {
         RootFolder rootFolder = WebUtils.findRootFolder(aThis);
         RequestContext.getCurrent().put(rootFolder);
         if (theme.equals("custom")) {
@@ -158,11 +323,10 @@ public class HtmlTemplater {
             themePath = "/templates/themes/" + theme + "/";
         }        
         
-        UserResource user = securityManager.getCurrentPrincipal();        
         if (!templatePath.startsWith("/")) {
             if( templatePath.startsWith("theme/")) {
                 templatePath = templatePath.replace("theme/", themePath); // Eg change theme/page to /content/theme/page
-                System.out.println("writePage: replaced theme => " + templatePath);
+                log.debug("writePage: replaced theme => " + templatePath);
             } else {
                 templatePath = "/templates/apps/" + templatePath; // Eg change admin/manageUsers to /templates/apps/admin/manageUsers
             }
@@ -172,7 +336,7 @@ public class HtmlTemplater {
         }
 
         Template bodyTemplate = getTemplate(templatePath);
-        TemplateHtmlPage bodyTemplateMeta = cachedTemplateMetaData.get(templatePath);
+        TemplateHtmlPage bodyTemplateMeta = getTemplateMeta(templatePath);
 
         String themeTemplateName = findThemeTemplateName(bodyTemplateMeta);
         String themeTemplatePath; // if the given themeTemplateName is an absolute path then use it as is, other prefix with themePath
@@ -189,12 +353,21 @@ public class HtmlTemplater {
         if (themeTemplate == null) {
             throw new RuntimeException("Couldnt find themeTemplate: " + themeTemplatePath);
         }
-        TemplateHtmlPage themeTemplateTemplateMeta = cachedTemplateMetaData.get(themeTemplatePath);
+        TemplateHtmlPage themeTemplateTemplateMeta = getTemplateMeta(themeTemplatePath);
         if (themeTemplateTemplateMeta == null) {
             throw new RuntimeException("Couldnt find meta for template: " + themeTemplatePath);
         }
 
-        templateRenderer.renderHtml(rootFolder, aThis, params, user, themeTemplate, themeTemplateTemplateMeta, bodyTemplate, bodyTemplateMeta, theme, out);
+        PageTemplates t = new PageTemplates();
+        t.rootFolder = rootFolder;
+        t.theme = theme;
+        t.bodyTemplatePath = templatePath;
+        t.bodyTemplate = bodyTemplate;
+        t.bodyTemplateMeta = bodyTemplateMeta;
+        t.themeTemplatePath = themeTemplatePath;
+        t.themeTemplate = themeTemplate;
+        t.themeTemplateMeta = themeTemplateTemplateMeta;
+        return t;
     }
 
     public String findTheme(Resource r, boolean isPublic) {
@@ -255,6 +428,22 @@ public class HtmlTemplater {
         this.roots = roots;
     }
 
+    /**
+     * Get the metadata for a template which has just been loaded by velocity,
+     * so will normally be in the cache
+     */
+    private TemplateHtmlPage getTemplateMeta(String templatePath) {
+        try {
+            return templateLoader.findTemplateSource(templatePath);
+        } catch (IOException ex) {
+            throw new RuntimeException(templatePath, ex);
+        }
+    }
+
+    public TemplateMetaCache getTemplateMetaCache() {
+        return templateMetaCache;
+    }
+
     private Template getTemplate(String templatePath) {
         if (templatePath == null) {
             throw new RuntimeException("templatePath is null");
@@ -308,6 +497,28 @@ public class HtmlTemplater {
         }
     }
 
+    /**
+     * Cache of rendered public pages. Disabled unless the template.render.cache
+     * system property is true, or it is enabled here
+     *
+     * @return
+     */
+    public RenderedPageCache getRenderedPageCache() {
+        return renderedPageCache;
+    }
+
+    private static class PageTemplates {
+
+        RootFolder rootFolder;
+        String theme;
+        String bodyTemplatePath;
+        Template bodyTemplate;
+        TemplateHtmlPage bodyTemplateMeta;
+        String themeTemplatePath;
+        Template themeTemplate;
+        TemplateHtmlPage themeTemplateMeta;
+    }
+
     public String getDefaultAdminTheme() {
         return defaultAdminTheme;
     }
@@ -332,24 +543,20 @@ public class HtmlTemplater {
          * filesystem, then finally in the classpath
          */
         public TemplateHtmlPage findTemplateSource(String path) throws IOException {
-            log.info("findTemplateSource: " + path);
-
-            TemplateHtmlPage meta = cachedTemplateMetaData.get(path);
-            if (meta != null) {
-                if (!meta.isValid()) {
-                    cachedTemplateMetaData.remove(path);
-                    meta = null;
-                } else {
-                    log.info("cache hit: " + meta.getSource() + " - " + meta.getClass());
-                    return meta;
-                }
-            }
-            long tm = System.currentTimeMillis();
-
             Boolean isCustom = RequestContext.getCurrent().get("isCustom");
             if (isCustom == null) {
                 isCustom = false;
             }
+            String scope = findTemplateScope(isCustom);
+            TemplateHtmlPage meta = templateMetaCache.get(scope, path);
+            if (meta != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("cache hit: " + meta.getSource() + " - " + meta.getClass());
+                }
+                return meta;
+            }
+            log.info("findTemplateSource: " + path);
+            long tm = System.currentTimeMillis();
 
             Path p = Path.path(path);
             Path webPath = webRoot.add(p).getParent(); // go to parent, because the path is the directory which contains the template            
@@ -429,7 +636,7 @@ public class HtmlTemplater {
             if (meta != null) {
                 tm = System.currentTimeMillis() - tm;
                 log.info("cache miss: " + meta.getSource() + " - " + meta.getClass() + " parsed in " + tm + "ms");
-                cachedTemplateMetaData.put(path, meta);
+                templateMetaCache.put(scope, path, meta, tm);
             } else {
                 log.warn("Failed to find: " + path);
             }
@@ -437,6 +644,24 @@ public class HtmlTemplater {
             return meta;
         }
 
+        /**
+         * Custom templates are loaded from the website's repository, so are
+         * cached per website and version. Everything else comes from the
+         * shared template roots. File templates are checked for changes by the
+         * cache's watcher thread
+         */
+        private String findTemplateScope(boolean isCustom) {
+            if (!isCustom) {
+                return "";
+            }
+            RootFolder rootFolder = _(RootFolder.class);
+            if (!(rootFolder instanceof WebsiteRootFolder)) {
+                return "";
+            }
+            Website website = ((WebsiteRootFolder) rootFolder).getWebsite();
+            return website.getDomainName() + "@" + findHeadHash(website);
+        }
+
         public long getLastModified(Object o) {
             TemplateHtmlPage templateFile = (TemplateHtmlPage) o;
             return templateFile.getTimestamp();
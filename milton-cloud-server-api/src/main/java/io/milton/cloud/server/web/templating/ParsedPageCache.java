@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.server.web.templating;
+
+import io.milton.cloud.common.CacheStats;
+import io.milton.common.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the result of parsing html pages, keyed by the hash of the file
+ * content. Since content is addressed by its hash a parsed page never goes
+ * stale, so entries are only removed to stay within maxWeight, least recently
+ * used first.
+ *
+ * Weight is approximately the number of characters held. Pages heavier than
+ * maxEntryWeight are not cached.
+ *
+ * Cached pages are never given out directly, they are copied into the page
+ * being rendered because pages can be modified (eg setParam) after parsing
+ *
+ * Hits, misses and evictions are logged periodically by CacheStats
+ *
+ * @author brad
+ */
+public class ParsedPageCache {
+
+    private long maxWeight = 20000000;
+    private long maxEntryWeight = 1000000;
+    private final LinkedHashMap<String, ParsedPage> pages = new LinkedHashMap<>(100, 0.75f, true);
+    private long weight;
+    private final CacheStats stats = new CacheStats("ParsedPageCache");
+
+    /**
+     * Copy the cached parse result for the given hash into the page
+     *
+     * @param hash
+     * @param page
+     * @return - false if not cached, in which case the page is unchanged
+     */
+    public boolean apply(String hash, HtmlPage page) {
+        ParsedPage p;
+        synchronized (this) {
+            p = pages.get(hash);
+            if (p == null) {
+                stats.miss();
+                return false;
+            }
+            stats.hit();
+        }
+        p.copyTo(page);
+        return true;
+    }
+
+    /**
+     * Record the parsed state of the page. Must be called immediately after
+     * parsing, before the page has been modified
+     *
+     * @param hash
+     * @param page
+     */
+    public void put(String hash, HtmlPage page) {
+        ParsedPage p = new ParsedPage(page);
+        if (p.weight > maxEntryWeight) {
+            return;
+        }
+        synchronized (this) {
+            ParsedPage old = pages.put(hash, p);
+            if (old != null) {
+                weight -= old.weight;
+            }
+            weight += p.weight;
+            Iterator<ParsedPage> it = pages.values().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                ParsedPage eldest = it.next();
+                it.remove();
+                weight -= eldest.weight;
+                stats.evicted();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        pages.clear();
+        weight = 0;
+    }
+
+    public synchronized int getSize() {
+        return pages.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Approximate number of characters to hold across all cached pages
+     *
+     * @param maxWeight
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public long getMaxEntryWeight() {
+        return maxEntryWeight;
+    }
+
+    public void setMaxEntryWeight(long maxEntryWeight) {
+        this.maxEntryWeight = maxEntryWeight;
+    }
+
+    private static class ParsedPage {
+
+        private final String title;
+        private final String body;
+        private final List<String> bodyClasses;
+        private final List<ParsedWebResource> webResources;
+        private final long weight;
+
+        ParsedPage(HtmlPage page) {
+            this.title = page.getTitle();
+            this.body = page.getBody();
+            this.bodyClasses = Collections.unmodifiableList(new ArrayList<>(page.getBodyClasses()));
+            List<ParsedWebResource> list = new ArrayList<>();
+            long w = length(title) + length(body);
+            for (String s : bodyClasses) {
+                w += s.length();
+            }
+            for (WebResource wr : page.getWebResources()) {
+                ParsedWebResource pwr = new ParsedWebResource(wr);
+                list.add(pwr);
+                w += pwr.weight;
+            }
+            this.webResources = Collections.unmodifiableList(list);
+            this.weight = w;
+        }
+
+        void copyTo(HtmlPage page) {
+            page.setTitle(title);
+            page.setBody(body);
+            page.getBodyClasses().addAll(bodyClasses);
+            for (ParsedWebResource pwr : webResources) {
+                page.getWebResources().add(pwr.toWebResource());
+            }
+        }
+    }
+
+    private static class ParsedWebResource {
+
+        private final Path webPath;
+        private final String tag;
+        private final String body;
+        private final Map<String, String> atts;
+        private final long weight;
+
+        ParsedWebResource(WebResource wr) {
+            this.webPath = wr.getWebPath();
+            this.tag = wr.getTag();
+            this.body = wr.getBody();
+            this.atts = new HashMap<>(wr.getAtts());
+            long w = length(tag) + length(body);
+            for (Map.Entry<String, String> e : atts.entrySet()) {
+                w += length(e.getKey()) + length(e.getValue());
+            }
+            this.weight = w;
+        }
+
+        WebResource toWebResource() {
+            WebResource wr = new WebResource(webPath);
+            wr.setTag(tag);
+            wr.setBody(body);
+            wr.getAtts().putAll(atts);
+            return wr;
+        }
+    }
+
+    private static long length(String s) {
+        return s == null ? 0 : s.length();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.server.web.templating;
+
+import io.milton.cloud.common.CacheStats;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import org.hashsplit4j.api.Parser;
+
+/**
+ * Holds fully rendered pages, keyed by a hash of everything the page output
+ * depends on (see HtmlTemplater.findRenderedPageKey). Because the website's
+ * branch head hash is part of the key, pages don't need to be invalidated when
+ * content changes, the old entries just stop being used and are evicted.
+ *
+ * Only pages which rendered no dynamic content (see HtmlTemplater.markDynamic)
+ * are put here. As a safety net entries also expire after maxAgeMillis
+ *
+ * Each entry has an ETag which is the hash of its bytes, so it only ever
+ * matches the exact content which was sent
+ *
+ * Hits, misses and evictions are logged periodically by CacheStats. Disabled by
+ * default
+ *
+ * @author brad
+ */
+public class RenderedPageCache {
+
+    private boolean enabled;
+    private long maxBytes = 50000000;
+    private int maxEntryBytes = 500000;
+    private long maxAgeMillis = 5 * 60 * 1000;
+    private final LinkedHashMap<String, RenderedPage> pages = new LinkedHashMap<>(100, 0.75f, true);
+    private long bytes;
+    private final CacheStats stats = new CacheStats("RenderedPageCache");
+
+    /**
+     *
+     * @param key
+     * @return - the rendered page, or null if not cached or expired
+     */
+    public RenderedPage get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            RenderedPage p = pages.get(key);
+            if (p != null && now - p.created > maxAgeMillis) {
+                pages.remove(key);
+                bytes -= p.data.length;
+                p = null;
+            }
+            if (p == null) {
+                stats.miss();
+                return null;
+            }
+            stats.hit();
+            return p;
+        }
+    }
+
+    public RenderedPage put(String key, byte[] data) {
+        RenderedPage p = new RenderedPage(data, System.currentTimeMillis());
+        if (data.length > maxEntryBytes) {
+            return p;
+        }
+        synchronized (this) {
+            RenderedPage old = pages.put(key, p);
+            if (old != null) {
+                bytes -= old.data.length;
+            }
+            bytes += data.length;
+            Iterator<RenderedPage> it = pages.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                RenderedPage eldest = it.next();
+                it.remove();
+                bytes -= eldest.data.length;
+                stats.evicted();
+            }
+        }
+        return p;
+    }
+
+    public synchronized void clear() {
+        pages.clear();
+        bytes = 0;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public synchronized int getSize() {
+        return pages.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Pages larger then this are not cached
+     *
+     * @param maxEntryBytes
+     */
+    public void setMaxEntryBytes(int maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public static class RenderedPage {
+
+        private final byte[] data;
+        private final long created;
+        private final String etag;
+
+        RenderedPage(byte[] data, long created) {
+            this.data = data;
+            this.created = created;
+            MessageDigest crypt = Parser.getCrypt();
+            crypt.update(data);
+            this.etag = Parser.toHex(crypt);
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         *
+         * @return - the SHA1 of the page bytes
+         */
+        public String getETag() {
+            return etag;
+        }
+    }
+}
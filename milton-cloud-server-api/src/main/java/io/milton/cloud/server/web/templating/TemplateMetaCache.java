@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.cloud.server.web.templating;
+
+import io.milton.cloud.common.CacheStats;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds parsed template metadata, keyed by scope and path. The scope is
+ * whatever the template was loaded from, eg a website and version for custom
+ * themes, so templates with the same path from different websites don't
+ * collide.
+ *
+ * Templates loaded from the file system are checked for changes by a
+ * background thread every watchIntervalMillis, so requests don't need to stat
+ * the template files. Other templates don't change for a given key.
+ *
+ * When there are more than maxSize entries the least recently used is removed.
+ * Hits, misses and evictions are logged periodically by CacheStats
+ *
+ * @author brad
+ */
+public class TemplateMetaCache {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(TemplateMetaCache.class);
+    private final LinkedHashMap<String, TemplateHtmlPage> entries = new LinkedHashMap<String, TemplateHtmlPage>(100, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TemplateHtmlPage> eldest) {
+            if (size() > maxSize) {
+                stats.evicted();
+                return true;
+            }
+            return false;
+        }
+    };
+    private volatile int maxSize = 2000;
+    private long watchIntervalMillis = 2000;
+    private ScheduledExecutorService watcher;
+    private final CacheStats stats = new CacheStats("TemplateMetaCache");
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadMillis = new AtomicLong();
+    private final AtomicLong maxLoadMillis = new AtomicLong();
+
+    public TemplateHtmlPage get(String scope, String path) {
+        TemplateHtmlPage meta;
+        synchronized (entries) {
+            meta = entries.get(key(scope, path));
+        }
+        if (meta == null) {
+            stats.miss();
+            return null;
+        }
+        stats.hit();
+        return meta;
+    }
+
+    /**
+     * Add a newly loaded template
+     *
+     * @param scope
+     * @param path
+     * @param meta
+     * @param loadMillis - time taken to find and parse the template
+     */
+    public void put(String scope, String path, TemplateHtmlPage meta, long loadMillis) {
+        loads.incrementAndGet();
+        this.loadMillis.addAndGet(loadMillis);
+        long max = maxLoadMillis.get();
+        while (loadMillis > max && !maxLoadMillis.compareAndSet(max, loadMillis)) {
+            max = maxLoadMillis.get();
+        }
+        synchronized (entries) {
+            entries.put(key(scope, path), meta);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Start the background thread which checks file templates for changes
+     */
+    public synchronized void start() {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "template-watcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    checkFiles();
+                } catch (Throwable e) {
+                    log.error("Exception checking template files", e);
+                }
+            }
+        }, watchIntervalMillis, watchIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Remove any file templates which have been modified since they were
+     * loaded
+     */
+    public void checkFiles() {
+        List<Map.Entry<String, TemplateHtmlPage>> files = new ArrayList<>();
+        synchronized (entries) {
+            for (Map.Entry<String, TemplateHtmlPage> e : entries.entrySet()) {
+                if (e.getValue() instanceof FileTemplateHtmlPage) {
+                    files.add(new AbstractMap.SimpleImmutableEntry<>(e));
+                }
+            }
+        }
+        // check outside the lock, since it touches the file system
+        for (Map.Entry<String, TemplateHtmlPage> e : files) {
+            TemplateHtmlPage meta = e.getValue();
+            if (!meta.isValid()) {
+                boolean removed;
+                synchronized (entries) {
+                    removed = entries.get(e.getKey()) == meta && entries.remove(e.getKey()) != null;
+                }
+                if (removed) {
+                    invalidations.incrementAndGet();
+                    log.info("Template has changed: " + meta.getSource());
+                }
+            }
+        }
+    }
+
+    private String key(String scope, String path) {
+        return scope + "|" + path;
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Number of templates removed because their files changed
+     *
+     * @return
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * Total time spent loading templates
+     *
+     * @return
+     */
+    public long getLoadMillis() {
+        return loadMillis.get();
+    }
+
+    public long getMaxLoadMillis() {
+        return maxLoadMillis.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getWatchIntervalMillis() {
+        return watchIntervalMillis;
+    }
+
+    /**
+     * How often to check file templates for changes. Must be set before start
+     *
+     * @param watchIntervalMillis
+     */
+    public void setWatchIntervalMillis(long watchIntervalMillis) {
+        this.watchIntervalMillis = watchIntervalMillis;
+    }
+}
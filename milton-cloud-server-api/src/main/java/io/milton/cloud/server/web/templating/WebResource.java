@@ -80,6 +80,15 @@ public class WebResource {
         this.atts = atts;
     }
 
+    /**
+     * The path that relative urls in this resource are relative to
+     *
+     * @return
+     */
+    public Path getWebPath() {
+        return webPath;
+    }
+
     /**
      * The body of the tag, such as an inline script
      *
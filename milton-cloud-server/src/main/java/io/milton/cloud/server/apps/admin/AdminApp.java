@@ -158,9 +158,7 @@ public class AdminApp implements MenuApplication, ReportingApplication, ChildPag
         @Override
         public boolean appliesTo(CommonResource resource, Organisation withinOrg, Group g) {
             Organisation resourceOrg = resource.getOrganisation();
-            boolean  b = resourceOrg.isWithin(withinOrg); 
-            System.out.println("appliesTo: " + resourceOrg.getName() + " - " + withinOrg.getName() + " = " + b);
-            return b;
+            return resourceOrg.isWithin(withinOrg);
         }
 
         @Override
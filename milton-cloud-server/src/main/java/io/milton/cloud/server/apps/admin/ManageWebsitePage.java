@@ -120,6 +120,7 @@ public class ManageWebsitePage extends AbstactAppsPage implements GetableResourc
                 website.setAliasTo(aliasTo);
 
                 session.save(website);
+                Website.domainsChanged(session);
                 tx.commit();
                 jsonResult = new JsonResult(true);
             } catch (Exception ex) {
@@ -15,7 +15,7 @@
 package io.milton.cloud.server.apps.admin;
 
 import io.milton.cloud.server.apps.reporting.TimeDataPointBean;
-import io.milton.cloud.server.db.AccessLog;
+import io.milton.cloud.server.db.AccessLogSummary;
 import io.milton.cloud.server.web.JsonResult;
 import io.milton.cloud.server.web.reporting.GraphData;
 import io.milton.cloud.server.web.reporting.JsonReport;
@@ -25,10 +25,8 @@ import io.milton.vfs.db.utils.SessionManager;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import org.hibernate.Criteria;
+import java.util.Map;
 import org.hibernate.Session;
-import org.hibernate.criterion.Projections;
-import org.hibernate.criterion.Restrictions;
 
 /**
  *
@@ -52,35 +50,12 @@ public class WebsiteAccessReport implements JsonReport{
     @Override
     public GraphData runReport(Organisation org, Website website, Date start, Date finish, JsonResult jsonResult) {
         Session session = SessionManager.session();
-        Criteria crit = session.createCriteria(AccessLog.class)
-                .setProjection(Projections.projectionList()
-                .add(Projections.min("reqDate"))
-                .add(Projections.rowCount())
-                .add(Projections.groupProperty("reqYear"))
-                .add(Projections.groupProperty("reqMonth"))
-                .add(Projections.groupProperty("reqDay"))
-                .add(Projections.groupProperty("reqHour")));
-        if (start != null) {
-            crit.add(Restrictions.ge("reqDate", start));
-        }
-        if (finish != null) {
-            crit.add(Restrictions.le("reqDate", finish));
-        }
-        if( website != null ) {
-            crit.add(Restrictions.le("website", website));
-        }
-        if( org != null ) {
-            crit.add(Restrictions.le("organisation", org));
-        }
-        List list = crit.list();
+        Map<Date, Long> totals = AccessLogSummary.hits(org, website, start, finish, session);
         List<TimeDataPointBean> dataPoints = new ArrayList<>();
-        for (Object oRow : list) {
-            Object[] arr = (Object[]) oRow;
-            Date date = (Date) arr[0];
-            Integer count = (Integer) arr[1];
+        for (Map.Entry<Date, Long> e : totals.entrySet()) {
             TimeDataPointBean b = new TimeDataPointBean();
-            b.setDate(date.getTime());
-            b.setValue(count);
+            b.setDate(e.getKey().getTime());
+            b.setValue(e.getValue());
             dataPoints.add(b);
         }
         GraphData graphData = new GraphData();
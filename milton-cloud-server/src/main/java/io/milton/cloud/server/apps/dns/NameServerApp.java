@@ -50,11 +50,16 @@ public class NameServerApp implements Application, LifecycleApplication {
     	initZoneData(config);
     	initResourceRecords(config);
     	InetSocketAddress[] addrs = initServerConnection(config);
+        // No session filter, the zone factory answers from memory and opens a
+        // session itself when it needs to reload
         nameserver = new NameServer(zoneFactory, addrs);
-        nameserver.addFilter(new SessionFilter(sessionManager));
         nameserver.start();
     }
 
+    public SpliffyZoneFactory getZoneFactory() {
+        return zoneFactory;
+    }
+
     private void initZoneData(AppConfig config) {
     	
         String nsValue = config.get(NAMESERVERS);
@@ -3,19 +3,24 @@ package io.milton.cloud.server.apps.dns;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StringUtils;
 
-import edu.emory.mathcs.backport.java.util.Collections;
-
 import io.milton.dns.Zone;
 import io.milton.dns.ZoneFactory;
 import io.milton.dns.record.AddressRecord;
@@ -25,6 +30,22 @@ import io.milton.dns.record.ResourceRecord;
 import io.milton.vfs.db.Website;
 import io.milton.vfs.db.utils.SessionManager;
 
+/**
+ * Answers DNS queries for the domain names of hosted websites.
+ *
+ * The domain names of all websites are held in memory in a trie, keyed by
+ * domain labels from the top level domain down, along with the records to
+ * answer for each of them. So queries are answered without going to the
+ * database. The trie is reloaded when websites are created, renamed or deleted
+ * (see Website.domainsChanged) and otherwise every refreshIntervalSecs, to pick
+ * up changes made on other servers
+ *
+ * Reloading is done by a background thread, and queries are answered from the
+ * old trie until the new one is ready. Only the very first query waits for the
+ * trie to be loaded
+ *
+ * Query counts and latencies are recorded for each zone
+ */
 public class SpliffyZoneFactory implements ZoneFactory {
 
 	private static final Logger logger = LoggerFactory.getLogger(SpliffyZoneFactory.class);
@@ -36,8 +57,21 @@ public class SpliffyZoneFactory implements ZoneFactory {
 	private String primaryNs;
 	private String adminEmail;
 	private int defaultTtl = 7200;
+	private int refreshIntervalSecs = 300;
 	
 	private SessionManager sessionManager;
+	private volatile DomainIndex index;
+	private final AtomicBoolean reloading = new AtomicBoolean();
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "dns-index-loader");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final ConcurrentHashMap<String, ZoneStats> zoneStats = new ConcurrentHashMap<>();
 	
 	public SpliffyZoneFactory(SessionManager sessionManager) {
 		if (sessionManager == null) {
@@ -48,85 +82,166 @@ public class SpliffyZoneFactory implements ZoneFactory {
 	
 	@Override
 	public Zone findBestZone(String domain) {
-		
+		long t0 = System.nanoTime();
 		int numDots = StringUtils.countOccurrencesOf(domain, ".");
 		if (numDots < 1) {
 			return null;
 		}
 		
+		DomainIndex idx = index();
 		String queriedDomain = domain.toLowerCase();
-		String zoneRootDomain = queriedDomain;
-		Map<String, Website> cache = new TreeMap<>();
-		Session session = null;
-		boolean newSession = false;
-		try {
-			
-			session = SessionManager.session();
-			if ( session == null ) {
-				newSession = true;
-				session = sessionManager.open();
-			}
-			
+		String[] labels = queriedDomain.split("\\.");
+		DomainNode[] path = idx.path(labels);
+		
+		/*
+		 * Locate zone: start at domain and walk upwards until we hit a Website. Only
+		 * domains with at least two labels are considered
+		 */
+		int bottom = 0;
+		while (bottom < labels.length - 1 && !path[bottom].isWebsite()) {
+			bottom++;
+		}
+		String zoneRootDomain = null;
+		if (bottom < labels.length - 1) {
 			/*
-			 * Locate zone: start at domain and walk upwards until we hit a non-null Website.
+			 * Determine zone root: continue walking upwards until we hit a domain which
+			 * is not a Website
 			 */
-			Website bottomWebsite = null;
-			while (zoneRootDomain != null) {
-				bottomWebsite = findWebsite(zoneRootDomain, session);
-				if (bottomWebsite != null) {
-					break;
-				}
-				zoneRootDomain = parent(zoneRootDomain);
+			int top = bottom;
+			while (top + 1 < labels.length - 1 && path[top + 1].isWebsite()) {
+				top++;
 			}
-			/*
-			 * Determine zone root: continue walking upwards until we hit a null Website.
-			 * Cache Websites we encounter along the way.
-			 */
-			Website topWebsite = bottomWebsite;
-			String parentDomain = zoneRootDomain;
-			while (topWebsite != null) {
-				logger.info("Caching Website: " + parentDomain);
-				cache.put(parentDomain, topWebsite);
-				zoneRootDomain = parentDomain;
-				parentDomain = parent(zoneRootDomain);
-				if (parentDomain == null) {
-					break;
+			zoneRootDomain = path[top].domain;
+		}
+		/*
+		 * If the query was for non existing x.y, check for a Website at www.x.y. If one
+		 * is found, return a zone rooted at x.y.
+		 */
+		DomainNode altWebsite = null;
+		if (zoneRootDomain == null && numDots == 1) {
+			DomainNode alt = idx.find("www." + queriedDomain);
+			if (alt != null && alt.isWebsite()) {
+				zoneRootDomain = queriedDomain;
+				altWebsite = alt;
+			}
+		}
+		/*
+		 * 	If query was for www.x.y, return a zone rooted at x.y if one or the other exists
+		 */
+		else if (numDots == 2 && queriedDomain.startsWith("www.")) {
+			String altDomain = queriedDomain.substring(4);
+			if (queriedDomain.equals(zoneRootDomain)) {
+				zoneRootDomain = altDomain;		
+			} else if (altDomain.equals(zoneRootDomain)) {
+				if (!path[0].isWebsite()) {
+					altWebsite = path[1];
 				}
-				topWebsite = findWebsite(parentDomain, session);
 			}
-			/*
-			 * If the query was for non existing x.y, check for a Website at www.x.y. If one
-			 * is found, return a zone rooted at x.y.
-			 */
-			Website altWebsite = null;
-			if (zoneRootDomain == null && numDots == 1) {
-				String altDomain = "www." + queriedDomain;
-				altWebsite = findWebsite(altDomain, session);
-				if ( altWebsite != null ) {
-					zoneRootDomain = queriedDomain;
-					queriedDomain = altDomain;
-					cache.put(altDomain, altWebsite);
+		}
+		
+		if (zoneRootDomain == null) {
+			return null;
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Zone: " + zoneRootDomain + " for query: " + queriedDomain);
+		}
+		ZoneStats stats = stats(zoneRootDomain);
+		stats.query(System.nanoTime() - t0);
+		return new SpliffyZone(zoneRootDomain, idx, altWebsite, stats);
+	}
+
+	/**
+	 * Reload the domain index in the background. Queries are answered from the
+	 * current index until then
+	 */
+	public void invalidate() {
+		if (index != null) {
+			reload();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return - query counts and latencies, keyed on zone root domain
+	 */
+	public Map<String, ZoneStats> getZoneStats() {
+		return Collections.unmodifiableMap(zoneStats);
+	}
+	
+	public int getIndexSize() {
+		DomainIndex idx = index;
+		return idx == null ? 0 : idx.size;
+	}
+	
+	private ZoneStats stats(String zoneRootDomain) {
+		ZoneStats stats = zoneStats.get(zoneRootDomain);
+		if (stats == null) {
+			stats = new ZoneStats();
+			ZoneStats existing = zoneStats.putIfAbsent(zoneRootDomain, stats);
+			if (existing != null) {
+				stats = existing;
+			}
+		}
+		return stats;
+	}
+	
+	private DomainIndex index() {
+		DomainIndex idx = index;
+		if (idx == null) {
+			// nothing to answer from yet, so have to wait
+			synchronized (this) {
+				idx = index;
+				if (idx == null) {
+					idx = loadIndex();
+					index = idx;
 				}
 			}
-			/*
-			 * 	If query was for www.x.y, return a zone rooted at x.y if one or the other exists
-			 */
-			else if (numDots == 2 && queriedDomain.startsWith("www.")) {
-				String altDomain = queriedDomain.substring(4);
-				if (queriedDomain.equals(zoneRootDomain)) {
-					zoneRootDomain = altDomain;		
-				} else if (altDomain.equals(zoneRootDomain)) {
-					if (!cache.containsKey(queriedDomain)) {
-						altWebsite = cache.get(altDomain);
-					}
+		} else if (!idx.isCurrent()) {
+			reload();
+		}
+		return idx;
+	}
+
+	/**
+	 * Load a new index on the loader thread, unless a load is already in
+	 * progress
+	 */
+	private void reload() {
+		if (!reloading.compareAndSet(false, true)) {
+			return;
+		}
+		loader.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					index = loadIndex();
+				} catch (Throwable e) {
+					logger.error("Exception loading domain index, will keep using the old one", e);
+				} finally {
+					reloading.set(false);
 				}
 			}
-			
-			if (zoneRootDomain == null) {
-				return null;
+		});
+	}
+	
+	private DomainIndex loadIndex() {
+		long t0 = System.currentTimeMillis();
+		long version = Website.getDomainsVersion().get();
+		Session session = null;
+		boolean newSession = false;
+		try {
+			session = SessionManager.session();
+			if ( session == null ) {
+				newSession = true;
+				session = sessionManager.open();
 			}
-			logger.info("Zone: " + zoneRootDomain + " Bottom cached domain: " + queriedDomain);
-			return new SpliffyZone(zoneRootDomain, cache, queriedDomain, altWebsite);
+			DomainIndex idx = new DomainIndex(version);
+			for (Website website : Website.findWithDomainName(session)) {
+				idx.add(website.getDomainName().toLowerCase(), recordsFor(website));
+			}
+			logger.info("Loaded domain index: " + idx.size + " websites in " + (System.currentTimeMillis() - t0) + "ms");
+			return idx;
 		} finally {
 			if (session != null && newSession ) {
 				sessionManager.close();
@@ -134,33 +249,30 @@ public class SpliffyZoneFactory implements ZoneFactory {
 		}
 	}
 	
-	private static Website findWebsite(String domain, Session session) {
-		long t0 = System.currentTimeMillis();
-		Website website = Website.findByDomainNameDirect(domain, session);
-		long t1 = System.currentTimeMillis();
-		logger.info("DB fetch: " + domain + " Time: " + (t1 - t0));
-		return website;
-	}
-
-	private static String parent(String domain) {
-		int numDots = StringUtils.countOccurrencesOf(domain, ".");
-		if (numDots < 2) {
-			return null;
-		}
-		int firstDot = domain.indexOf('.');
-		return domain.substring(firstDot + 1);
+	private List<ResourceRecord> recordsFor(Website website) {
+		List<ResourceRecord> records = new ArrayList<>();
+		if (aRecord != null) records.add(aRecord);
+		if (aaaaRecord != null) records.add(aaaaRecord);			
+		String mxName = website.getMailServer();
+		MXRecord mxRec = mxRecord;
+		if (mxName != null) mxRec = new MXRecord(2, mxName);
+		if (mxRec != null) records.add(mxRec);
+		return Collections.unmodifiableList(records);
 	}
 	
 	public void setARecord(Inet4Address aRecord) {
 		this.aRecord = new ARecord(aRecord);
+		invalidate();
 	}
 
 	public void setAaaaRecord(Inet6Address aaaaRecord) {
 		this.aaaaRecord = new ARecord(aaaaRecord);
+		invalidate();
 	}
 
 	public void setMxRecord(String mxRecord) {
 		this.mxRecord = new MXRecord(2, mxRecord);
+		invalidate();
 	}
 
 	public void setNsNames(List<String> nsNames) {
@@ -179,19 +291,181 @@ public class SpliffyZoneFactory implements ZoneFactory {
 		this.defaultTtl = defaultTtl;
 	}
 
+	public int getRefreshIntervalSecs() {
+		return refreshIntervalSecs;
+	}
+
+	/**
+	 * Maximum age of the domain index before it is reloaded, even if no changes
+	 * have been seen
+	 * 
+	 * @param refreshIntervalSecs 
+	 */
+	public void setRefreshIntervalSecs(int refreshIntervalSecs) {
+		this.refreshIntervalSecs = refreshIntervalSecs;
+	}
+
+	/**
+	 * A node in the domain trie, being one label of a domain name. Has records
+	 * if there is a website with this domain name
+	 */
+	private static class DomainNode {
+
+		private final String domain;
+		private final Map<String, DomainNode> children = new HashMap<>();
+		private List<ResourceRecord> records;
+		private List<ResourceRecord> cname;
+
+		DomainNode(String domain) {
+			this.domain = domain;
+		}
+
+		boolean isWebsite() {
+			return records != null;
+		}
+	}
+
+	/**
+	 * An immutable, once loaded, trie of website domain names
+	 */
+	private class DomainIndex {
+
+		private final DomainNode root = new DomainNode("");
+		private final DomainNode missing = new DomainNode(null);
+		private final long version;
+		private final long loadedAt = System.currentTimeMillis();
+		private int size;
+
+		DomainIndex(long version) {
+			this.version = version;
+		}
+
+		boolean isCurrent() {
+			return version == Website.getDomainsVersion().get() && System.currentTimeMillis() - loadedAt < refreshIntervalSecs * 1000L;
+		}
+
+		void add(String domain, List<ResourceRecord> records) {
+			String[] labels = domain.split("\\.");
+			DomainNode node = root;
+			for (int i = labels.length - 1; i >= 0; i--) {
+				DomainNode child = node.children.get(labels[i]);
+				if (child == null) {
+					child = new DomainNode(join(labels, i));
+					node.children.put(labels[i], child);
+				}
+				node = child;
+			}
+			if (node.records == null) {
+				size++;
+			}
+			node.records = records;
+			node.cname = Collections.<ResourceRecord>singletonList(new CNAMERecord(domain));
+		}
+
+		/**
+		 * 
+		 * @param labels
+		 * @return - the node for each suffix of the domain, where the node at i
+		 * is for the domain beginning with label i. Nodes for domains not in the
+		 * trie have no records and no domain
+		 */
+		DomainNode[] path(String[] labels) {
+			DomainNode[] path = new DomainNode[labels.length];
+			DomainNode node = root;
+			for (int i = labels.length - 1; i >= 0; i--) {
+				node = (node == null ? null : node.children.get(labels[i]));
+				path[i] = (node == null ? missing : node);
+			}
+			return path;
+		}
+
+		DomainNode find(String domain) {
+			DomainNode node = root;
+			String[] labels = domain.split("\\.");
+			for (int i = labels.length - 1; i >= 0 && node != null; i--) {
+				node = node.children.get(labels[i]);
+			}
+			return node;
+		}
+
+		private String join(String[] labels, int from) {
+			StringBuilder sb = new StringBuilder(labels[from]);
+			for (int i = from + 1; i < labels.length; i++) {
+				sb.append('.').append(labels[i]);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Query counts and latencies for a zone. Queries are calls to findBestZone
+	 * which resolved to the zone, and lookups are calls to getRecords on it
+	 */
+	public static class ZoneStats {
+
+		private final long created = System.currentTimeMillis();
+		private final AtomicLong queries = new AtomicLong();
+		private final AtomicLong lookups = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void query(long nanos) {
+			queries.incrementAndGet();
+			record(nanos);
+		}
+
+		void lookup(long nanos) {
+			lookups.incrementAndGet();
+			record(nanos);
+		}
+
+		private void record(long nanos) {
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		public long getQueries() {
+			return queries.get();
+		}
+
+		public long getLookups() {
+			return lookups.get();
+		}
+
+		public double getQueriesPerSecond() {
+			long secs = Math.max(1, (System.currentTimeMillis() - created) / 1000);
+			return (double) queries.get() / secs;
+		}
+
+		/**
+		 * 
+		 * @return - average time taken by queries and lookups, in microseconds
+		 */
+		public long getAverageMicros() {
+			long count = queries.get() + lookups.get();
+			return count == 0 ? 0 : totalNanos.get() / count / 1000;
+		}
+
+		public long getMaxMicros() {
+			return maxNanos.get() / 1000;
+		}
+	}
+
 	public class SpliffyZone implements Zone {
 
-		private String rootDomain;
-		private Map<String, Website> cache;
-		private String bottomCachedDomain;
-		private Website altWebsite;
+		private final String rootDomain;
+		private final DomainIndex index;
+		private final DomainNode altWebsite;
+		private final ZoneStats stats;
 		
-		public SpliffyZone(String rootDomain, Map<String, Website> cache,
-				String bottomCachedDomain, Website altWebsite ) {
+		private SpliffyZone(String rootDomain, DomainIndex index, DomainNode altWebsite, ZoneStats stats) {
 			this.rootDomain = rootDomain;
-			this.cache = cache;
-			this.bottomCachedDomain = bottomCachedDomain;
+			this.index = index;
 			this.altWebsite = altWebsite;
+			this.stats = stats;
 		}
 		@Override
 		public String getRootDomain() {
@@ -200,51 +474,25 @@ public class SpliffyZoneFactory implements ZoneFactory {
 
 		@Override
 		public List<ResourceRecord> getRecords(String domain) {
-			
-			String domainLower = domain.toLowerCase();
-			if (!domainLower.endsWith(rootDomain)) {
-				return null;
-			}
-			if (domainLower.indexOf('.') == -1 || domainLower.startsWith("*")) {
-				return null;
-			}
-			
-			Session session = null;
-			Website website = null;
-			boolean newSession = false;
+			long t0 = System.nanoTime();
 			try {
-				
-				if (bottomCachedDomain.endsWith(domainLower)) {
-					logger.info("Satisfying lookup: " + domainLower + " from cache");
-					website = cache.get(domainLower);
-				} else {
-					session = SessionManager.session();
-					if (session == null) {
-						newSession = true;
-						session = sessionManager.open();
-					}
-					website = findWebsite(domainLower, session);
+				String domainLower = domain.toLowerCase();
+				if (!domainLower.endsWith(rootDomain)) {
+					return null;
 				}
-				if ( website == null ) {
+				if (domainLower.indexOf('.') == -1 || domainLower.startsWith("*")) {
+					return null;
+				}
+				DomainNode node = index.find(domainLower);
+				if (node == null || !node.isWebsite()) {
 					if (altWebsite != null) {
-						String cname = altWebsite.getDomainName().toLowerCase();
-						ResourceRecord rr = new CNAMERecord(cname);
-						return Collections.singletonList(rr);
+						return altWebsite.cname;
 					}
 					return null;
 				}
-				List<ResourceRecord> records = new LinkedList<>();
-				if (aRecord != null) records.add(aRecord);
-				if (aaaaRecord != null) records.add(aaaaRecord);			
-				String mxName = website.getMailServer();
-				MXRecord mxRec = mxRecord;
-				if (mxName != null) mxRec = new MXRecord(2, mxName);
-				if (mxRec != null) records.add(mxRec);
-				return records;
+				return node.records;
 			} finally {
-				if (session != null && newSession ) {
-					sessionManager.close();
-				}
+				stats.lookup(System.nanoTime() - t0);
 			}
 		}
 
@@ -24,6 +24,7 @@ import io.milton.cloud.server.apps.ReportingApplication;
 import io.milton.cloud.server.apps.orgs.OrganisationFolder;
 import io.milton.cloud.server.apps.website.WebsiteRootFolder;
 import io.milton.cloud.server.db.AccessLog;
+import io.milton.cloud.server.db.AccessLogSummary;
 import io.milton.cloud.server.manager.CurrentRootFolderService;
 import io.milton.cloud.server.web.*;
 import io.milton.cloud.server.web.reporting.JsonReport;
@@ -45,22 +46,41 @@ import io.milton.vfs.db.Website;
 import io.milton.vfs.db.utils.SessionManager;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Logs all requests to the AccessLog table, and maintains hourly and daily
+ * AccessLogSummary totals for reports.
+ *
+ * Records are queued and inserted in batches by a background thread. The
+ * queue is bounded, if it is full requests wait up to offerTimeoutMillis and
+ * then the record is dropped. Each batch is inserted in one transaction, as
+ * one insert statement per record. If a batch fails its records are retried
+ * one at a time, so one bad record doesn't lose the whole batch
  *
  * @author brad
  */
 public class ReportingApp implements MenuApplication, EventListener, LifecycleApplication, ChildPageApplication {
 
     private static final Logger log = LoggerFactory.getLogger(ReportingApp.class);
-    private final java.util.concurrent.LinkedBlockingQueue<Access> queue = new LinkedBlockingQueue<>();
+    private int maxQueueSize = 10000;
+    private int batchSize = 500;
+    private long offerTimeoutMillis = 20;
+    private BlockingQueue<Access> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong inserted = new AtomicLong();
     private RootContext rootContext;
     private Thread threadInserter;
     private SessionManager sessionManager;
@@ -96,6 +116,7 @@ public class ReportingApp implements MenuApplication, EventListener, LifecycleAp
 
     @Override
     public void init(SpliffyResourceFactory resourceFactory, AppConfig config) throws Exception {
+        queue = new ArrayBlockingQueue<>(maxQueueSize);
         applicationManager = resourceFactory.getApplicationManager();
         currentRootFolderService = config.getContext().get(CurrentRootFolderService.class);
         sessionManager = resourceFactory.getSessionManager();
@@ -173,7 +194,6 @@ public class ReportingApp implements MenuApplication, EventListener, LifecycleAp
     }
 
     private void log(Request request, Response response, long duration) {
-        System.out.println("adding to queue: " + queue.size());
         String host = request.getHostHeader();
         if (host == null) {
             host = "";
@@ -201,7 +221,17 @@ public class ReportingApp implements MenuApplication, EventListener, LifecycleAp
             }
         }
         Access a = new Access(orgId, websiteId, h, path, referrerUrl, result, duration, size, method, response.getContentTypeHeader(), from, user);
-        queue.add(a);
+        try {
+            // If the inserter can't keep up, slow requests down a little, but
+            // dont hold them up indefinitely
+            if (!queue.offer(a, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                if (dropped.incrementAndGet() % 1000 == 1) {
+                    log.warn("Access log queue is full, dropped records: " + dropped.get());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
 
     }
 
@@ -219,6 +249,7 @@ public class ReportingApp implements MenuApplication, EventListener, LifecycleAp
         private String contentType;
         private String fromAddress;
         private String user;
+        private final Date reqDate = new Date();
 
         public Access(Long organisationId, Long websiteId, String host, String url, String referrerUrl, int result, long duration, Long size, String method, String contentType, String fromAddress, String user) {
             this.organisationId = organisationId;
@@ -236,71 +267,228 @@ public class ReportingApp implements MenuApplication, EventListener, LifecycleAp
         }
     }
 
+    /**
+     * Takes whatever is on the queue, up to batchSize, and inserts it in one
+     * transaction, updating the summaries at the same time
+     */
     private class Inserter implements Runnable {
 
         @Override
         public void run() {
             boolean running = true;
+            List<Access> batch = new ArrayList<>();
             while (running) {
                 try {
                     Access a = queue.take();
-                    log.trace("insert log");
-                    doInsert(a);
+                    batch.add(a);
+                    queue.drainTo(batch, batchSize - 1);
+                    log.trace("insert log batch");
+                    doInsert(batch);
                 } catch (InterruptedException ex) {
                     log.warn("inserter operation terminated", ex);
                     running = false;
+                } finally {
+                    batch.clear();
                 }
             }
             log.warn("inserter stopped");
         }
 
-        private void doInsert(final Access access) {
+        private void doInsert(final List<Access> batch) {
             rootContext.execute(new Executable2() {
                 @Override
                 public void execute(Context context) {
-                    Session session = sessionManager.open();
-                    Transaction tx = session.beginTransaction();
-                    try {
-                        Organisation org = null;
-                        if (access.organisationId != null) {
-                            org = (Organisation) session.get(Organisation.class, access.organisationId);
-                        }
-                        Website website = null;
-                        if (access.websiteId != null) {
-                            website = (Website) session.get(Website.class, access.websiteId);
+                    if (insert(batch)) {
+                        inserted.addAndGet(batch.size());
+                        return;
+                    }
+                    if (batch.size() > 1) {
+                        log.warn("Batch insert failed, retrying records individually: " + batch.size());
+                    }
+                    int lost = 0;
+                    for (Access access : batch) {
+                        if (batch.size() > 1 && insert(Collections.singletonList(access))) {
+                            inserted.incrementAndGet();
+                        } else {
+                            lost++;
                         }
-
-                        AccessLog al = new AccessLog();
-                        al.setOrganisation(org);
-                        al.setWebsite(website);
-                        al.setReqHost(access.host);
-                        al.setUrl(access.url);
-                        al.setReferrer(access.referrerUrl);
-                        Date dt = new Date();
-                        Calendar cal = Calendar.getInstance();
-                        cal.setTime(dt);
-                        al.setReqDate(new java.sql.Date(dt.getTime()));
-                        al.setReqYear(cal.get(Calendar.YEAR));
-                        al.setReqMonth(cal.get(Calendar.MONTH));
-                        al.setReqDay(cal.get(Calendar.DAY_OF_MONTH));
-                        al.setReqHour(cal.get(Calendar.HOUR_OF_DAY));
-                        al.setResultCode(access.result);
-                        al.setDurationMs(access.duration);
-                        al.setNumBytes(access.size);
-                        al.setReqMethod(access.method);
-                        al.setContentType(access.contentType);
-                        al.setReqFrom(access.fromAddress);
-                        al.setReqUser(access.user);
-                        session.save(al);
-                        tx.commit();
-                    } catch (Exception ex) {
-                        log.error("Exception logging access", ex);
-                        tx.rollback();
-                    } finally {
-                        sessionManager.close();
+                    }
+                    if (lost > 0) {
+                        log.error("Exception logging access, lost records: " + lost);
                     }
                 }
             });
         }
+
+        /**
+         * Insert the records and update the summaries in a new session and
+         * transaction
+         *
+         * @return - false if the insert failed and was rolled back
+         */
+        private boolean insert(List<Access> records) {
+            Session session = sessionManager.open();
+            Transaction tx = session.beginTransaction();
+            try {
+                Map<String, Summary> summaries = new HashMap<>();
+                int cnt = 0;
+                for (Access access : records) {
+                    AccessLog al = toAccessLog(access, session);
+                    session.save(al);
+                    summarise(summaries, AccessLogSummary.HOURLY, access);
+                    summarise(summaries, AccessLogSummary.DAILY, access);
+                    if (++cnt % 50 == 0) { // keep the session small for large batches
+                        session.flush();
+                        session.clear();
+                    }
+                }
+                for (Summary sum : summaries.values()) {
+                    Organisation org = sum.organisationId == null ? null : (Organisation) session.load(Organisation.class, sum.organisationId);
+                    Website website = sum.websiteId == null ? null : (Website) session.load(Website.class, sum.websiteId);
+                    AccessLogSummary.add(sum.period, sum.periodStart, org, website, sum.hits, sum.errors, sum.durationMs, sum.numBytes, session);
+                }
+                tx.commit();
+                return true;
+            } catch (Exception ex) {
+                log.warn("Exception inserting access records: " + records.size(), ex);
+                tx.rollback();
+                return false;
+            } finally {
+                sessionManager.close();
+            }
+        }
+
+        /**
+         * Organisation and Website are loaded as proxies, so there is no select
+         * for each record
+         */
+        private AccessLog toAccessLog(Access access, Session session) {
+            Organisation org = null;
+            if (access.organisationId != null) {
+                org = (Organisation) session.load(Organisation.class, access.organisationId);
+            }
+            Website website = null;
+            if (access.websiteId != null) {
+                website = (Website) session.load(Website.class, access.websiteId);
+            }
+
+            AccessLog al = new AccessLog();
+            al.setOrganisation(org);
+            al.setWebsite(website);
+            al.setReqHost(access.host);
+            al.setUrl(access.url);
+            al.setReferrer(access.referrerUrl);
+            Date dt = access.reqDate;
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(dt);
+            al.setReqDate(new java.sql.Date(dt.getTime()));
+            al.setReqYear(cal.get(Calendar.YEAR));
+            al.setReqMonth(cal.get(Calendar.MONTH));
+            al.setReqDay(cal.get(Calendar.DAY_OF_MONTH));
+            al.setReqHour(cal.get(Calendar.HOUR_OF_DAY));
+            al.setResultCode(access.result);
+            al.setDurationMs(access.duration);
+            al.setNumBytes(access.size);
+            al.setReqMethod(access.method);
+            al.setContentType(access.contentType);
+            al.setReqFrom(access.fromAddress);
+            al.setReqUser(access.user);
+            return al;
+        }
+
+        private void summarise(Map<String, Summary> summaries, String period, Access access) {
+            Date periodStart = AccessLogSummary.periodStart(period, access.reqDate);
+            String key = period + ":" + periodStart.getTime() + ":" + access.organisationId + ":" + access.websiteId;
+            Summary sum = summaries.get(key);
+            if (sum == null) {
+                sum = new Summary(period, periodStart, access.organisationId, access.websiteId);
+                summaries.put(key, sum);
+            }
+            sum.hits++;
+            if (access.result >= 500) {
+                sum.errors++;
+            }
+            sum.durationMs += access.duration;
+            if (access.size != null) {
+                sum.numBytes += access.size;
+            }
+        }
+    }
+
+    private static class Summary {
+
+        private final String period;
+        private final Date periodStart;
+        private final Long organisationId;
+        private final Long websiteId;
+        private long hits;
+        private long errors;
+        private long durationMs;
+        private long numBytes;
+
+        Summary(String period, Date periodStart, Long organisationId, Long websiteId) {
+            this.period = period;
+            this.periodStart = periodStart;
+            this.organisationId = organisationId;
+            this.websiteId = websiteId;
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Number of access records dropped because the queue was full
+     *
+     * @return
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getInserted() {
+        return inserted.get();
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Maximum number of access records waiting to be inserted. Must be set
+     * before init
+     *
+     * @param maxQueueSize
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Maximum number of records inserted in one transaction
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getOfferTimeoutMillis() {
+        return offerTimeoutMillis;
+    }
+
+    /**
+     * How long a request waits for space on a full queue before its record is
+     * dropped
+     *
+     * @param offerTimeoutMillis
+     */
+    public void setOfferTimeoutMillis(long offerTimeoutMillis) {
+        this.offerTimeoutMillis = offerTimeoutMillis;
     }
 }
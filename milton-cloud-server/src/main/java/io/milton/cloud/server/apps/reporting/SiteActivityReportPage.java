@@ -14,7 +14,7 @@
  */
 package io.milton.cloud.server.apps.reporting;
 
-import io.milton.cloud.server.db.AccessLog;
+import io.milton.cloud.server.db.AccessLogSummary;
 import io.milton.cloud.server.web.CommonCollectionResource;
 import io.milton.cloud.server.web.JsonResult;
 import io.milton.cloud.server.web.TemplatedHtmlPage;
@@ -31,10 +31,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import org.hibernate.Criteria;
 import org.hibernate.Session;
-import org.hibernate.criterion.Projections;
-import org.hibernate.criterion.Restrictions;
 
 /**
  *
@@ -76,29 +73,12 @@ public class SiteActivityReportPage extends TemplatedHtmlPage {
             return ;
         }
         Session session = SessionManager.session();
-        Criteria crit = session.createCriteria(AccessLog.class)
-                .setProjection(Projections.projectionList()
-                .add(Projections.min("reqDate"))
-                .add(Projections.rowCount())
-                .add(Projections.groupProperty("reqYear"))
-                .add(Projections.groupProperty("reqMonth"))
-                .add(Projections.groupProperty("reqDay"))
-                .add(Projections.groupProperty("reqHour")));
-        if (start != null) {
-            crit.add(Restrictions.ge("reqDate", start));
-        }
-        if (finish != null) {
-            crit.add(Restrictions.le("reqDate", finish));
-        }
-        List list = crit.list();
+        Map<Date, Long> totals = AccessLogSummary.hits(null, null, start, finish, session);
         List<TimeDataPointBean> dataPoints = new ArrayList<>();
-        for (Object oRow : list) {
-            Object[] arr = (Object[]) oRow;
-            Date date = (Date) arr[0];
-            Integer count = (Integer) arr[1];
+        for (Map.Entry<Date, Long> e : totals.entrySet()) {
             TimeDataPointBean b = new TimeDataPointBean();
-            b.setDate(date.getTime());
-            b.setValue(count);
+            b.setDate(e.getKey().getTime());
+            b.setValue(e.getValue());
             dataPoints.add(b);
         }
         JsonResult jsonResult = new JsonResult(true);
@@ -88,6 +88,9 @@ public class SignupApp implements ChildPageApplication, BrowsableApplication, Ev
         eventManager = resourceFactory.getEventManager();
         currentDateService = config.getContext().get(CurrentDateService.class);
         timerService = config.getContext().get(TimerService.class);
+        if (timerService instanceof HashedWheelTimerService) {
+            ((HashedWheelTimerService) timerService).addProcess(userManagementProcess);
+        }
     }
 
     @Override
@@ -9,11 +9,29 @@ import java.util.List;
 import java.util.Map;
 import io.milton.cloud.common.Triplet;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Walks two directory structures, looking for differences, and invoking methods
  * on the given DeltaListener to resolve differences
  *
+ * The walk, and so every DeltaListener callback, is done on the calling thread
+ * since the listener and the stores it uses are not thread safe. But when
+ * entering a directory the remote listings of its subdirectories which differ,
+ * or which are not present locally, are requested concurrently, so that
+ * latency is not paid once per directory. At most maxPrefetchedListings are
+ * outstanding at once, any others are requested when they are walked
+ *
+ * Remotely new directories are created and then walked into, so their
+ * contents are downloaded in the same walk
+ *
  * @author brad
  */
 public class DirWalker {
@@ -26,6 +44,10 @@ public class DirWalker {
     private DeltaListener deltaListener;
     
     private final List<LocalDelete> localDeletes = new ArrayList<>();
+    private int listingThreads = 4;
+    private int maxPrefetchedListings = 100;
+    private ExecutorService listingExecutor;
+    private Semaphore listingPermits;
 
     public DirWalker(TripletStore remoteTripletStore, TripletStore localTripletStore, SyncStatusStore syncStatusStore, DeltaListener deltaListener) {
         this.remoteTripletStore = remoteTripletStore;
@@ -37,14 +59,20 @@ public class DirWalker {
 
     public void walk() throws IOException {
 //        log.info("DirWalker::walk ----------------------------");
-        walk(Path.root());
-        processLocalDeletes(); // we want to leave deletes until last in case there's some bytes we can use
+        listingExecutor = Executors.newFixedThreadPool(Math.max(1, listingThreads), daemonThreads("sync-listing"));
+        listingPermits = new Semaphore(maxPrefetchedListings);
+        try {
+            walk(Path.root());
+            processLocalDeletes(); // we want to leave deletes until last in case there's some bytes we can use
+        } finally {
+            listingExecutor.shutdownNow();
+        }
 //        log.info("DirWalker::End walk ----------------------------");
     }
 
-    private void walk(Path path, String remoteDirHash, String localDirHash) throws IOException {
+    private void walk(Path path, Future<List<ITriplet>> remoteListing, String remoteDirHash, String localDirHash) throws IOException {
         log.info("walk: " + path);        
-        List<ITriplet> remoteTriplets = findTriplets(path, remoteDirHash, remoteTripletStore);
+        List<ITriplet> remoteTriplets = findRemoteTriplets(path, remoteListing, remoteDirHash);
         List<ITriplet> localTriplets = findTriplets(path, localDirHash, localTripletStore);
         walk(path, remoteTriplets, localTriplets);        
     }    
@@ -68,12 +96,26 @@ public class DirWalker {
         //log.info("walk: " + path + " local items: " + numLocal + " - remote items: " + numRemote);        
         
         if (remoteTriplets != null) {            
+            // request the listings of differing and new subdirectories now, so they arrive while we walk
+            Map<String, Future<List<ITriplet>>> remoteListings = new HashMap<>();
+            for (ITriplet remoteTriplet : remoteTriplets) {
+                if (!Triplet.isDirectory(remoteTriplet)) {
+                    continue;
+                }
+                ITriplet localTriplet = localMap.get(remoteTriplet.getName());
+                if (localTriplet == null || (Triplet.isDirectory(localTriplet) && !localTriplet.getHash().equals(remoteTriplet.getHash()))) {
+                    if (!listingPermits.tryAcquire()) {
+                        break; // enough outstanding, the rest will be requested when walked
+                    }
+                    remoteListings.put(remoteTriplet.getName(), fetchRemoteTriplets(path.child(remoteTriplet.getName()), remoteTriplet.getHash()));
+                }
+            }
             for (ITriplet remoteTriplet : remoteTriplets) {
                 Path childPath = path.child(remoteTriplet.getName());                
                 ITriplet localTriplet = localMap.get(remoteTriplet.getName());
                 if (localTriplet == null) {
                     log.info("No localtriplet: " + remoteTriplet.getName() + " in folder: " + path);
-                    doMissingLocal(remoteTriplet, childPath);
+                    doMissingLocal(remoteTriplet, childPath, remoteListings.get(remoteTriplet.getName()));
                 } else {
                     if (localTriplet.getHash().equals(remoteTriplet.getHash()) ) {
                         // clean, nothing to do
@@ -81,7 +123,7 @@ public class DirWalker {
                         syncStatusStore.setBackedupHash(childPath, localTriplet.getHash());
                     } else {
                         // log.info("different hashes: " + childPath);
-                        doDifferentHashes(remoteTriplet, localTriplet, childPath);
+                        doDifferentHashes(remoteTriplet, localTriplet, childPath, remoteListings.get(remoteTriplet.getName()));
                     }
                 }
             }
@@ -108,16 +150,26 @@ public class DirWalker {
      *
      * @param remoteTriplet
      * @param path
+     * @param remoteListing - the remote child triplets if it is a directory and
+     * they have been requested, otherwise null
      */
-    private void doMissingLocal(ITriplet remoteTriplet, Path path) throws IOException {        
+    private void doMissingLocal(ITriplet remoteTriplet, Path path, Future<List<ITriplet>> remoteListing) throws IOException {        
         String localPreviousHash = syncStatusStore.findBackedUpHash(path);
         if (localPreviousHash == null) {
             log.info("MISSING LOCAL1: " + path + "  no local backup hash, so remotely new");
             // not previously synced, so is remotely new
-            deltaListener.onRemoteChange(remoteTriplet, remoteTriplet, path);
+            deltaListener.onRemoteChange(remoteTriplet, remoteTriplet, path); // if resource is a directory this should create it
+            if (Triplet.isDirectory(remoteTriplet)) { // continue scan
+                List<ITriplet> remoteChildTriplets = findRemoteTriplets(path, remoteListing, remoteTriplet.getHash());
+                walk(path, remoteChildTriplets, Collections.EMPTY_LIST);
+            }
         } else {
             // was previously synced, now locally gone, so must have been deleted (or moved, same thing)
             log.info("MISSING LOCAL2: " + path + "  was previously backed up, so locally deleted");
+            if (remoteListing != null) {
+                remoteListing.cancel(true);
+                listingPermits.release();
+            }
             deltaListener.onLocalDeletion(path, remoteTriplet);
         }
     }
@@ -143,11 +195,13 @@ public class DirWalker {
      * @param remoteTriplet
      * @param localTriplet
      * @param path
+     * @param remoteListing - the remote child triplets if both are directories
+     * and they have been requested, otherwise null
      */
-    private void doDifferentHashes(ITriplet remoteTriplet, ITriplet localTriplet, Path path) throws IOException {        
+    private void doDifferentHashes(ITriplet remoteTriplet, ITriplet localTriplet, Path path, Future<List<ITriplet>> remoteListing) throws IOException {        
         if (Triplet.isDirectory(remoteTriplet) && Triplet.isDirectory(localTriplet)) {
             // both directories, so continue. Since we have the directory hashes we can lookup triplets on that instead of path
-            walk(path, remoteTriplet.getHash(), localTriplet.getHash());  
+            walk(path, remoteListing, remoteTriplet.getHash(), localTriplet.getHash());  
         } else if (!Triplet.isDirectory(remoteTriplet) && !Triplet.isDirectory(localTriplet)) {
             // both resources are files, check for consistency
             String localPreviousHash = syncStatusStore.findBackedUpHash(path);
@@ -209,6 +263,86 @@ public class DirWalker {
         }
     }
 
+    /**
+     * Get the remote listing from the prefetched request if there is one,
+     * otherwise request it now
+     */
+    private List<ITriplet> findRemoteTriplets(Path path, Future<List<ITriplet>> remoteListing, String remoteDirHash) throws IOException {
+        if (remoteListing == null) {
+            return findTriplets(path, remoteDirHash, remoteTripletStore);
+        }
+        try {
+            return get(remoteListing);
+        } finally {
+            listingPermits.release();
+        }
+    }
+
+    private Future<List<ITriplet>> fetchRemoteTriplets(final Path path, final String dirHash) {
+        return listingExecutor.submit(new Callable<List<ITriplet>>() {
+
+            @Override
+            public List<ITriplet> call() throws Exception {
+                return findTriplets(path, dirHash, remoteTripletStore);
+            }
+        });
+    }
+
+    private <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public int getListingThreads() {
+        return listingThreads;
+    }
+
+    /**
+     * Number of remote directory listings to request concurrently
+     *
+     * @param listingThreads
+     */
+    public void setListingThreads(int listingThreads) {
+        this.listingThreads = listingThreads;
+    }
+
+    public int getMaxPrefetchedListings() {
+        return maxPrefetchedListings;
+    }
+
+    /**
+     * Maximum number of remote directory listings which have been requested
+     * but not yet walked. Limits the memory used by listings
+     *
+     * @param maxPrefetchedListings
+     */
+    public void setMaxPrefetchedListings(int maxPrefetchedListings) {
+        this.maxPrefetchedListings = maxPrefetchedListings;
+    }
+
     private void processLocalDeletes() throws IOException {
         for( LocalDelete del : localDeletes ) {
             deltaListener.onRemoteDelete(del.localTriplet, del.path);
@@ -1,5 +1,6 @@
 package io.milton.sync;
 
+import io.milton.cloud.common.BlobPack;
 import io.milton.common.Path;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
@@ -8,23 +9,49 @@ import io.milton.http.exceptions.NotFoundException;
 import io.milton.httpclient.Host;
 import io.milton.httpclient.HttpException;
 import io.milton.httpclient.HttpResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
 import org.hashsplit4j.api.BlobStore;
 import org.hashsplit4j.api.HashCache;
 
 /**
  * Implements getting and setting blobs over HTTP
  *
+ * If a HttpMissingHashes is set then blobs being set are queued, and each
+ * batch is checked for existence with a single request. Only missing blobs are
+ * then uploaded. Call flush after setting blobs to upload anything still queued
+ *
+ * Queued blobs are uploaded together as a BlobPack in a single POST, and
+ * getBlobs can be used to download many blobs by POSTing a list of hashes.
+ * Older servers which do not support either of these are detected, and blobs
+ * are then transferred one at a time. The two are detected separately
+ *
  * @author brad
  */
 public class HttpBlobStore implements BlobStore {
 
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(HttpBlobStore.class);
+
     private final Host host;
     private final HashCache hashCache;
     private int timeout = 30000;
     private Path basePath;
-    private long gets;
-    private long sets;
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong sets = new AtomicLong();
+    private HttpMissingHashes missingHashes;
+    private int preflightBatchSize = 100;
+    private final Map<String, byte[]> pending = new LinkedHashMap<>();
+    private volatile boolean usePacks = true;
+    private volatile boolean useBatchGets = true;
 
     public HttpBlobStore(Host host, HashCache hashCache) {
         this.host = host;
@@ -33,9 +60,163 @@ public class HttpBlobStore implements BlobStore {
 
     @Override
     public void setBlob(String hash, byte[] bytes) {
+        if (missingHashes != null) {
+            pending.put(hash, bytes);
+            if (pending.size() >= preflightBatchSize) {
+                flush();
+            }
+            return;
+        }
         if (hasBlob(hash)) {
             return;
         }
+        put(hash, bytes);
+    }
+
+    /**
+     * Upload any queued blobs which are not already on the server
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, byte[]> blobs = new LinkedHashMap<>(pending);
+        pending.clear();
+        uploadBlobs(blobs);
+    }
+
+    /**
+     * Upload those of the given blobs which are not already on the server,
+     * checking for them in a single request if a HttpMissingHashes has been
+     * set. Does not use the queue, so may be called concurrently
+     *
+     * @param blobs
+     */
+    public void uploadBlobs(Map<String, byte[]> blobs) {
+        if (hashCache != null) {
+            Map<String, byte[]> unknown = new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> e : blobs.entrySet()) {
+                if (!hashCache.hasHash(e.getKey())) {
+                    unknown.put(e.getKey(), e.getValue());
+                }
+            }
+            blobs = unknown;
+        }
+        if (blobs.isEmpty()) {
+            return;
+        }
+        Set<String> missing = null;
+        if (missingHashes != null) {
+            missing = missingHashes.findMissing(HttpMissingHashes.BLOBS, blobs.keySet());
+        }
+        Map<String, byte[]> toUpload = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> e : blobs.entrySet()) {
+            String hash = e.getKey();
+            if (missing == null) {
+                if (!hasBlob(hash)) {
+                    toUpload.put(hash, e.getValue());
+                }
+            } else if (missing.contains(hash)) {
+                toUpload.put(hash, e.getValue());
+            } else if (hashCache != null) {
+                hashCache.setHash(hash);
+            }
+        }
+        upload(toUpload);
+    }
+
+    private void upload(Map<String, byte[]> blobs) {
+        if (blobs.isEmpty()) {
+            return;
+        }
+        if (usePacks && blobs.size() > 1) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            BlobPack.Writer writer = new BlobPack.Writer(bout);
+            int status;
+            try {
+                for (Map.Entry<String, byte[]> e : blobs.entrySet()) {
+                    writer.write(e.getKey(), e.getValue());
+                }
+                writer.flush();
+                HttpPost m = new HttpPost(host.getHref(basePath));
+                ByteArrayEntity entity = new ByteArrayEntity(bout.toByteArray());
+                entity.setContentType(BlobPack.CONTENT_TYPE);
+                m.setEntity(entity);
+                status = HttpUtils.executeHttpWithStatus(host.getClient(), m, null);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            if (status >= 200 && status <= 299) {
+                sets.addAndGet(blobs.size());
+                return;
+            }
+            if (status == 404 || status == 405 || status == 501) {
+                log.warn("Server does not accept blob packs, will upload blobs individually. Status: " + status);
+                usePacks = false;
+            } else {
+                throw new RuntimeException("Failed to upload blob pack - " + status);
+            }
+        }
+        for (Map.Entry<String, byte[]> e : blobs.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Download the given blobs in a single request, by POSTing the newline
+     * delimited list of hashes. Any not found on the server, or all of them if
+     * the request fails, are missing from the result
+     *
+     * Only if the server does not support this request (404 or 405) will it
+     * not be tried again
+     *
+     * @param hashes
+     * @return - blob bytes keyed by hash
+     */
+    public Map<String, byte[]> getBlobs(Collection<String> hashes) {
+        Map<String, byte[]> blobs = new HashMap<>();
+        if (!useBatchGets || hashes.isEmpty()) {
+            return blobs;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String hash : hashes) {
+            sb.append(hash).append("\n");
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        int status;
+        try {
+            gets.incrementAndGet();
+            HttpPost m = new HttpPost(host.getHref(basePath));
+            ByteArrayEntity entity = new ByteArrayEntity(sb.toString().getBytes("UTF-8"));
+            entity.setContentType("text/plain");
+            m.setEntity(entity);
+            status = HttpUtils.executeHttpWithStatus(host.getClient(), m, bout);
+        } catch (IOException ex) {
+            log.warn("Couldnt prefetch blobs, will download them individually: " + ex.getMessage());
+            return blobs;
+        }
+        if (status == 404 || status == 405) {
+            log.warn("Server does not support batch blob downloads, will download blobs individually. Status: " + status);
+            useBatchGets = false;
+            return blobs;
+        } else if (status < 200 || status > 299) {
+            log.warn("Couldnt prefetch blobs, will download them individually. Status: " + status);
+            return blobs;
+        }
+        BlobPack.Reader reader = new BlobPack.Reader(new ByteArrayInputStream(bout.toByteArray()));
+        try {
+            while (reader.next()) {
+                blobs.put(reader.getHash(), reader.getBytes());
+            }
+        } catch (IOException ex) {
+            // use what we could read, the rest will be downloaded individually
+            log.warn("Couldnt read blob pack, after blobs: " + blobs.size() + " - " + ex.getMessage());
+        }
+        return blobs;
+    }
+
+    private void put(String hash, byte[] bytes) {
+        sets.incrementAndGet();
         Path destPath = basePath.child(hash + "");
         HttpResult result = host.doPut(destPath, bytes, null);
         checkResult(result);
@@ -64,6 +245,7 @@ public class HttpBlobStore implements BlobStore {
 
     @Override
     public byte[] getBlob(String hash) {
+        gets.incrementAndGet();
         Path destPath = basePath.child(hash + "");
         try {
             return host.doGet(destPath);
@@ -95,12 +277,39 @@ public class HttpBlobStore implements BlobStore {
         this.basePath = Path.path(baseUrl);
     }
 
+    public HttpMissingHashes getMissingHashes() {
+        return missingHashes;
+    }
+
+    /**
+     * Optional, if set blobs are checked for existence in batches
+     *
+     * @param missingHashes
+     */
+    public void setMissingHashes(HttpMissingHashes missingHashes) {
+        this.missingHashes = missingHashes;
+    }
+
+    public int getPreflightBatchSize() {
+        return preflightBatchSize;
+    }
+
+    /**
+     * Number of blobs to queue before checking which are missing. Note that
+     * the queued blobs are held in memory
+     *
+     * @param preflightBatchSize
+     */
+    public void setPreflightBatchSize(int preflightBatchSize) {
+        this.preflightBatchSize = preflightBatchSize;
+    }
+
     public long getGets() {
-        return gets;
+        return gets.get();
     }
 
     public long getSets() {
-        return sets;
+        return sets.get();
     }
     
     private void checkResult(HttpResult result) {
@@ -10,8 +10,13 @@ import io.milton.httpclient.Host;
 import io.milton.httpclient.HttpException;
 import io.milton.httpclient.HttpResult;
 import java.io.*;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutImpl;
 import org.hashsplit4j.api.HashCache;
 import org.hashsplit4j.api.HashStore;
 
@@ -24,6 +29,12 @@ import org.hashsplit4j.api.HashStore;
  * Reads fanouts as a text file, with the first line being the actual content
  * length of the chunk/file, and then with newlines delimiting hashes
  *
+ * If a HttpMissingHashes is set then chunk fanouts being set are queued and
+ * checked for existence in batches, as for HttpBlobStore. Call flush to upload
+ * anything still queued. Queued chunk fanouts, and queued blobs if the
+ * HttpBlobStore is set, are flushed before a file fanout is sent, since the
+ * file fanout refers to them
+ *
  * @author brad
  */
 public class HttpHashStore implements HashStore {
@@ -34,8 +45,12 @@ public class HttpHashStore implements HashStore {
     private int timeout = 30000;
     private Path chunksBasePath;
     private Path filesBasePath;
-    private long gets;
-    private long sets;
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong sets = new AtomicLong();
+    private HttpMissingHashes missingHashes;
+    private HttpBlobStore blobStore;
+    private int preflightBatchSize = 100;
+    private final Map<String, Fanout> pendingChunks = new LinkedHashMap<>();
 
     /**
      *
@@ -51,29 +66,90 @@ public class HttpHashStore implements HashStore {
 
     @Override
     public void setChunkFanout(String hash, List<String> childCrcs, long actualContentLength) {
+        if (missingHashes != null) {
+            pendingChunks.put(hash, new FanoutImpl(childCrcs, actualContentLength));
+            if (pendingChunks.size() >= preflightBatchSize) {
+                flush();
+            }
+            return;
+        }
         if (hasChunk(hash)) {
             return;
         }
+        putChunk(hash, toBytes(childCrcs, actualContentLength));
+    }
 
-        sets++;
+    /**
+     * Upload any queued chunk fanouts which are not already on the server
+     */
+    public void flush() {
+        if (pendingChunks.isEmpty()) {
+            return;
+        }
+        Map<String, Fanout> fanouts = new LinkedHashMap<>(pendingChunks);
+        pendingChunks.clear();
+        uploadChunkFanouts(fanouts);
+    }
 
+    /**
+     * Upload those of the given chunk fanouts which are not already on the
+     * server. Does not use the queue, so may be called concurrently
+     *
+     * @param fanouts
+     */
+    public void uploadChunkFanouts(Map<String, Fanout> fanouts) {
+        if (chunksHashCache != null) {
+            Map<String, Fanout> unknown = new LinkedHashMap<>();
+            for (Map.Entry<String, Fanout> e : fanouts.entrySet()) {
+                if (!chunksHashCache.hasHash(e.getKey())) {
+                    unknown.put(e.getKey(), e.getValue());
+                }
+            }
+            fanouts = unknown;
+        }
+        if (fanouts.isEmpty()) {
+            return;
+        }
+        Set<String> missing = null;
+        if (missingHashes != null) {
+            missing = missingHashes.findMissing(HttpMissingHashes.CHUNK_FANOUTS, fanouts.keySet());
+        }
+        for (Map.Entry<String, Fanout> e : fanouts.entrySet()) {
+            String hash = e.getKey();
+            Fanout fanout = e.getValue();
+            if (missing == null) {
+                if (!hasChunk(hash)) {
+                    putChunk(hash, toBytes(fanout.getHashes(), fanout.getActualContentLength()));
+                }
+            } else if (missing.contains(hash)) {
+                putChunk(hash, toBytes(fanout.getHashes(), fanout.getActualContentLength()));
+            } else if (chunksHashCache != null) {
+                chunksHashCache.setHash(hash);
+            }
+        }
+    }
+
+    private void putChunk(String hash, byte[] bytes) {
+        sets.incrementAndGet();
+        Path destPath = chunksBasePath.child(hash + "");
+        HttpResult result = host.doPut(destPath, bytes, null);
+        checkResult(result);
+    }
+
+    private byte[] toBytes(List<String> hashes, long actualContentLength) {
         // Copy longs into a byte array
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         try {
-            FanoutSerializationUtils.writeFanout(childCrcs, actualContentLength, bout);
+            FanoutSerializationUtils.writeFanout(hashes, actualContentLength, bout);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
-        byte[] bytes = bout.toByteArray();
-
-        Path destPath = chunksBasePath.child(hash + "");
-        HttpResult result = host.doPut(destPath, bytes, null);
-        checkResult(result);
+        return bout.toByteArray();
     }
 
     @Override
     public Fanout getChunkFanout(String fanoutHash) {
-        gets++;
+        gets.incrementAndGet();
         Path destPath = chunksBasePath.child(fanoutHash + "");
         try {
             byte[] arr = host.doGet(destPath);
@@ -114,20 +190,17 @@ public class HttpHashStore implements HashStore {
 
     @Override
     public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        // blobs first, then the chunk fanouts which refer to them
+        if (blobStore != null) {
+            blobStore.flush();
+        }
+        flush();
         if (hasFile(hash)) {
             return;
         }
 
-        sets++;
-
-        // Copy longs into a byte array
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        try {
-            FanoutSerializationUtils.writeFanout(fanoutHashes, actualContentLength, bout);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }
-        byte[] bytes = bout.toByteArray();
+        sets.incrementAndGet();
+        byte[] bytes = toBytes(fanoutHashes, actualContentLength);
 
         Path destPath = filesBasePath.child(hash + "");
         HttpResult result = host.doPut(destPath, bytes, null);
@@ -136,7 +209,7 @@ public class HttpHashStore implements HashStore {
 
     @Override
     public Fanout getFileFanout(String fileHash) {
-        gets++;
+        gets.incrementAndGet();
         Path destPath = filesBasePath.child(fileHash + "");
         try {
             byte[] arr = host.doGet(destPath);
@@ -204,12 +277,46 @@ public class HttpHashStore implements HashStore {
         this.filesBasePath = Path.path(filesBasePath);
     }
 
+    public HttpMissingHashes getMissingHashes() {
+        return missingHashes;
+    }
+
+    /**
+     * Optional, if set chunk fanouts are checked for existence in batches
+     *
+     * @param missingHashes
+     */
+    public void setMissingHashes(HttpMissingHashes missingHashes) {
+        this.missingHashes = missingHashes;
+    }
+
+    public HttpBlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Optional, if set its queued blobs are uploaded before a file fanout
+     *
+     * @param blobStore
+     */
+    public void setBlobStore(HttpBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    public int getPreflightBatchSize() {
+        return preflightBatchSize;
+    }
+
+    public void setPreflightBatchSize(int preflightBatchSize) {
+        this.preflightBatchSize = preflightBatchSize;
+    }
+
     public long getGets() {
-        return gets;
+        return gets.get();
     }
 
     public long getSets() {
-        return sets;
+        return sets.get();
     }
 
     private void checkResult(HttpResult result) {
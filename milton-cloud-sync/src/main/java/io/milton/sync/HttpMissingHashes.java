@@ -0,0 +1,122 @@
+package io.milton.sync;
+
+import io.milton.common.Path;
+import io.milton.http.exceptions.BadRequestException;
+import io.milton.http.exceptions.ConflictException;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.http.exceptions.NotFoundException;
+import io.milton.httpclient.Host;
+import io.milton.httpclient.HttpException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asks the server which of a list of hashes it does not have, in batches,
+ * using a single POST per batch to the /_hashes/missing resource
+ *
+ * If the server does not support the missing resource this will return null,
+ * and the caller should fall back to checking each hash individually
+ *
+ * @author brad
+ */
+public class HttpMissingHashes {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(HttpMissingHashes.class);
+    public static final String BLOBS = "blobs";
+    public static final String CHUNK_FANOUTS = "chunkFanouts";
+    public static final String FILE_FANOUTS = "fileFanouts";
+    private final Host host;
+    private final Path path;
+    private int batchSize = 500;
+    private volatile boolean unsupported;
+    private final AtomicLong requests = new AtomicLong();
+
+    public HttpMissingHashes(Host host, String path) {
+        this.host = host;
+        this.path = Path.path(path);
+    }
+
+    /**
+     *
+     * @param type - one of BLOBS, CHUNK_FANOUTS or FILE_FANOUTS
+     * @param hashes
+     * @return - those hashes which are not present on the server, or null if
+     * the server cannot tell us
+     */
+    public Set<String> findMissing(String type, Collection<String> hashes) {
+        if (unsupported) {
+            return null;
+        }
+        Set<String> missing = new HashSet<>();
+        List<String> batch = new ArrayList<>();
+        for (String hash : hashes) {
+            batch.add(hash);
+            if (batch.size() >= batchSize) {
+                if (!query(type, batch, missing)) {
+                    return null;
+                }
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            if (!query(type, batch, missing)) {
+                return null;
+            }
+        }
+        return missing;
+    }
+
+    private boolean query(String type, List<String> batch, Set<String> missing) {
+        StringBuilder sb = new StringBuilder();
+        for (String hash : batch) {
+            sb.append(hash).append("\n");
+        }
+        Map<String, String> params = new HashMap<>();
+        params.put(type, sb.toString());
+        String resp;
+        try {
+            requests.incrementAndGet();
+            resp = host.doPost(host.getHref(path), params);
+        } catch (NotFoundException ex) {
+            log.warn("Server does not support bulk hash checks, will check hashes individually: " + path);
+            unsupported = true;
+            return false;
+        } catch (HttpException | NotAuthorizedException | ConflictException | BadRequestException ex) {
+            throw new RuntimeException(ex);
+        }
+        if (resp == null) {
+            return true;
+        }
+        String prefix = type + ":";
+        for (String line : resp.split("\n")) {
+            line = line.trim();
+            if (line.startsWith(prefix)) {
+                missing.add(line.substring(prefix.length()));
+            }
+        }
+        return true;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Maximum number of hashes to send in each request
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+}
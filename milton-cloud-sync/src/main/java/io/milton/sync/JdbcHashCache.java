@@ -13,9 +13,12 @@ import java.sql.ResultSet;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.hashsplit4j.api.HashCache;
 
 /**
+ * Counters are atomic since the cache is shared by the upload and download
+ * threads
  *
  * @author brad
  */
@@ -25,9 +28,9 @@ public class JdbcHashCache implements HashCache {
     private final UseConnection useConnection;
     private final String group; // just so we can use the same table for different things
 
-    private long hits;
-    private long misses;
-    private long inserts;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong inserts = new AtomicLong();
     
     /**
      * 
@@ -85,30 +88,30 @@ public class JdbcHashCache implements HashCache {
             }
         });
         if( result ) {
-            hits++;
+            hits.incrementAndGet();
         } else {
-            misses++;
+            misses.incrementAndGet();
         }
         return result;
     }
 
     public long getHits() {
-        return hits;
+        return hits.get();
     }
 
     public long getMisses() {
-        return misses;
+        return misses.get();
     }
 
     public long getInserts() {
-        return inserts;
+        return inserts.get();
     }
     
     
 
     @Override
     public void setHash(final String hash) {
-        inserts++;
+        inserts.incrementAndGet();
         final String insertSql = HASH_CACHE.getInsert();
 
         useConnection.use(new With<Connection, Object>() {
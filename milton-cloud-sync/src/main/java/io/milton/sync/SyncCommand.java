@@ -90,6 +90,10 @@ public class SyncCommand {
             httpHashStore.setFilesBasePath("/_hashes/fileFanouts/");
             HttpBlobStore httpBlobStore = new HttpBlobStore(client, blobsHashCache);
             httpBlobStore.setBaseUrl("/_hashes/blobs/");
+            HttpMissingHashes missingHashes = new HttpMissingHashes(client, "/_hashes/missing");
+            httpHashStore.setMissingHashes(missingHashes);
+            httpBlobStore.setMissingHashes(missingHashes);
+            httpHashStore.setBlobStore(httpBlobStore);
             
             Syncer syncer = new Syncer(eventManager, localRootDir, httpHashStore, httpBlobStore, client, archiver, url.getPath());
 
@@ -9,7 +9,17 @@ import io.milton.http.exceptions.NotFoundException;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.IOUtils;
@@ -48,6 +58,10 @@ public class Syncer {
     private final HashCalc hashCalc = HashCalc.getInstance();
     private boolean paused;
     private boolean readonlyLocal;
+    private int prefetchBatchSize = 100;
+    private int uploadThreads = 4;
+    private int uploadBatchSize = 100;
+    private final ThreadPoolExecutor workerExecutor;
 
     public Syncer(EventManager eventManager, File root, HttpHashStore httpHashStore, HttpBlobStore httpBlobStore, Host host, Archiver archiver, String baseUrl) {
         this.eventManager = eventManager;
@@ -57,6 +71,16 @@ public class Syncer {
         this.archiver = archiver;
         this.host = host;
         this.baseUrl = Path.path(baseUrl);
+        this.workerExecutor = new ThreadPoolExecutor(uploadThreads, uploadThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sync-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        workerExecutor.allowCoreThreadTimeOut(true);
     }
 
     public void createRemoteDir(Path path) throws ConflictException {
@@ -145,8 +169,13 @@ public class Syncer {
                 blobStores.add(oldFileBlobStore);
             }
 
+            // Blobs we have locally dont need to be fetched from the server
+            List<BlobStore> localBlobStores = new ArrayList<>(blobStores);
+
             // Now add the remote stores, where we will download anything not present locally
+            Map<String, byte[]> prefetched = new HashMap<>();
             hashStores.add(httpHashStore);
+            blobStores.add(new PrefetchedBlobStore(prefetched));
             blobStores.add(httpBlobStore);
 
             HashStore multiHashStore = new MultipleHashStore(hashStores);
@@ -162,9 +191,7 @@ public class Syncer {
             try {
                 fout = new FileOutputStream(fTemp);
                 try (BufferedOutputStream bufOut = new BufferedOutputStream(fout)) {
-                    Combiner combiner = new Combiner();
-                    // TODO: Use MultipleBlobStore with the httpHashStore and LocalFileTriplet.blobStore to minimise network traffic                
-                    combiner.combine(rootHashes, multiHashStore, multiBlobStore, bufOut);
+                    combine(rootHashes, multiHashStore, multiBlobStore, localBlobStores, prefetched, bufOut);
                     bufOut.flush();
                 }
             } finally {
@@ -195,6 +222,96 @@ public class Syncer {
         System.out.println("Finished update!");
     }
 
+    /**
+     * Write the file content for the given chunk fanouts, downloading the blobs
+     * which are not available locally in batches of prefetchBatchSize with one
+     * request per batch, into the prefetched map
+     *
+     * The next batch is downloaded on the worker pool while the current one is
+     * written, so at most two batches are held in memory. Only the blob
+     * download runs on the pool, everything else is on the calling thread
+     */
+    private void combine(List<String> rootHashes, HashStore hashStore, BlobStore blobStore, List<BlobStore> localBlobStores, Map<String, byte[]> prefetched, OutputStream out) throws IOException {
+        Combiner combiner = new Combiner();
+        // Remember the fanouts we've looked up so the combiner doesnt request them again
+        MemoryHashStore fetchedFanouts = new MemoryHashStore();
+        HashStore combineHashStore = new MultipleHashStore(Arrays.<HashStore>asList(fetchedFanouts, hashStore));
+        List<String> window = new ArrayList<>();
+        Set<String> toFetch = new LinkedHashSet<>();
+        List<String> fetchingWindow = null;
+        Future<Map<String, byte[]>> fetching = null;
+        try {
+            for (String chunkFanoutHash : rootHashes) {
+                Fanout chunkFanout = hashStore.getChunkFanout(chunkFanoutHash);
+                if (chunkFanout != null) {
+                    fetchedFanouts.setChunkFanout(chunkFanoutHash, chunkFanout.getHashes(), chunkFanout.getActualContentLength());
+                    for (String blobHash : chunkFanout.getHashes()) {
+                        if (!hasBlob(localBlobStores, blobHash)) {
+                            toFetch.add(blobHash);
+                        }
+                    }
+                }
+                window.add(chunkFanoutHash);
+                if (toFetch.size() >= prefetchBatchSize) {
+                    Future<Map<String, byte[]>> next = fetchBlobs(toFetch);
+                    if (fetching != null) {
+                        combine(combiner, fetchingWindow, fetching, combineHashStore, blobStore, prefetched, out);
+                    }
+                    fetchingWindow = window;
+                    fetching = next;
+                    window = new ArrayList<>();
+                    toFetch = new LinkedHashSet<>();
+                }
+            }
+            if (fetching != null) {
+                combine(combiner, fetchingWindow, fetching, combineHashStore, blobStore, prefetched, out);
+                fetching = null;
+            }
+            if (!window.isEmpty()) {
+                prefetched.clear();
+                prefetched.putAll(httpBlobStore.getBlobs(toFetch));
+                combiner.combine(window, combineHashStore, blobStore, out);
+            }
+        } finally {
+            if (fetching != null) {
+                fetching.cancel(true);
+            }
+            prefetched.clear();
+        }
+    }
+
+    private void combine(Combiner combiner, List<String> window, Future<Map<String, byte[]>> blobs, HashStore hashStore, BlobStore blobStore, Map<String, byte[]> prefetched, OutputStream out) throws IOException {
+        prefetched.clear();
+        try {
+            prefetched.putAll(blobs.get());
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            // the blobs will be downloaded individually
+            log.warn("Couldnt prefetch blobs: " + ex.getCause());
+        }
+        combiner.combine(window, hashStore, blobStore, out);
+    }
+
+    private Future<Map<String, byte[]>> fetchBlobs(final Set<String> hashes) {
+        return workerExecutor.submit(new Callable<Map<String, byte[]>>() {
+
+            @Override
+            public Map<String, byte[]> call() throws Exception {
+                return httpBlobStore.getBlobs(hashes);
+            }
+        });
+    }
+
+    private boolean hasBlob(List<BlobStore> blobStores, String hash) {
+        for (BlobStore bs : blobStores) {
+            if (bs.hasBlob(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 //    public void deleteRemoteFile(String childEncodedPath) {
 //        try {
 //            HttpUtils.delete(client, childEncodedPath);
@@ -243,7 +360,16 @@ public class Syncer {
 
             } else {
                 log.info("upSync: chunk larger file: " + file.getAbsolutePath());
-                newHash = parser.parse(bufIn, httpHashStore, httpBlobStore);
+                UploadPipeline pipeline = new UploadPipeline(httpBlobStore, httpHashStore, workerExecutor, eventManager, path);
+                pipeline.setBatchSize(uploadBatchSize);
+                pipeline.setMaxQueuedBatches(uploadThreads * 2);
+                try {
+                    newHash = parser.parse(bufIn, pipeline, pipeline);
+                    // wait until the server has everything before we commit
+                    pipeline.finish();
+                } finally {
+                    pipeline.abort();
+                }
 
                 // Now set the new hash on the remote file, which effectively commits the new content
 
@@ -325,6 +451,52 @@ public class Syncer {
         // TODO: should act on uploading and downloading
     }
 
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    /**
+     * Number of concurrent upload requests when uploading a file
+     *
+     * @param uploadThreads
+     */
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+        if (uploadThreads > workerExecutor.getMaximumPoolSize()) {
+            workerExecutor.setMaximumPoolSize(uploadThreads);
+            workerExecutor.setCorePoolSize(uploadThreads);
+        } else {
+            workerExecutor.setCorePoolSize(uploadThreads);
+            workerExecutor.setMaximumPoolSize(uploadThreads);
+        }
+    }
+
+    public int getUploadBatchSize() {
+        return uploadBatchSize;
+    }
+
+    /**
+     * Number of blobs in each upload request
+     *
+     * @param uploadBatchSize
+     */
+    public void setUploadBatchSize(int uploadBatchSize) {
+        this.uploadBatchSize = uploadBatchSize;
+    }
+
+    public int getPrefetchBatchSize() {
+        return prefetchBatchSize;
+    }
+
+    /**
+     * Number of blobs to download in each request when downloading a file
+     *
+     * @param prefetchBatchSize
+     */
+    public void setPrefetchBatchSize(int prefetchBatchSize) {
+        this.prefetchBatchSize = prefetchBatchSize;
+    }
+
     public boolean isReadonlyLocal() {
         return readonlyLocal;
     }
@@ -332,4 +504,32 @@ public class Syncer {
     public void setReadonlyLocal(boolean readonlyLocal) {
         this.readonlyLocal = readonlyLocal;
     }
+
+    /**
+     * Blobs downloaded in a batch for the current download. Not shared, since
+     * files may be downloaded concurrently
+     */
+    private static class PrefetchedBlobStore implements BlobStore {
+
+        private final Map<String, byte[]> blobs;
+
+        PrefetchedBlobStore(Map<String, byte[]> blobs) {
+            this.blobs = blobs;
+        }
+
+        @Override
+        public void setBlob(String hash, byte[] bytes) {
+            blobs.put(hash, bytes);
+        }
+
+        @Override
+        public byte[] getBlob(String hash) {
+            return blobs.get(hash);
+        }
+
+        @Override
+        public boolean hasBlob(String hash) {
+            return blobs.containsKey(hash);
+        }
+    }
 }
@@ -0,0 +1,255 @@
+package io.milton.sync;
+
+import io.milton.common.Path;
+import io.milton.event.EventManager;
+import io.milton.sync.event.EventUtils;
+import io.milton.sync.event.UploadProgressEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutImpl;
+import org.hashsplit4j.api.HashStore;
+
+/**
+ * Used as the blob and hash store for the Parser when uploading a file, so
+ * that hashing and uploading are overlapped.
+ *
+ * Blobs and chunk fanouts are collected into batches, and each batch is
+ * uploaded on the given executor while the parser carries on. No more than
+ * maxQueuedBatches can be waiting or in progress at once, after which the
+ * parser blocks, so memory use is bounded.
+ *
+ * The file fanout is only sent in finish, after all other batches have been
+ * acknowledged, and finish must return before the new file hash is committed
+ *
+ * One instance is used for one file, by one parser thread
+ *
+ * @author brad
+ */
+public class UploadPipeline implements BlobStore, HashStore {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(UploadPipeline.class);
+    private final HttpBlobStore httpBlobStore;
+    private final HttpHashStore httpHashStore;
+    private final ExecutorService executor;
+    private final EventManager eventManager;
+    private final Path path;
+    private final List<Future<?>> futures = new ArrayList<>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private int batchSize = 100;
+    private int maxQueuedBatches = 8;
+    private Semaphore permits;
+    private Map<String, byte[]> blobs = new LinkedHashMap<>();
+    private long blobBytes;
+    private Map<String, Fanout> chunkFanouts = new LinkedHashMap<>();
+    private final AtomicLong bytesQueued = new AtomicLong();
+    private String fileHash;
+    private Fanout fileFanout;
+    private volatile Throwable error;
+    private volatile boolean aborted;
+
+    public UploadPipeline(HttpBlobStore httpBlobStore, HttpHashStore httpHashStore, ExecutorService executor, EventManager eventManager, Path path) {
+        this.httpBlobStore = httpBlobStore;
+        this.httpHashStore = httpHashStore;
+        this.executor = executor;
+        this.eventManager = eventManager;
+        this.path = path;
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        if (blobs.containsKey(hash)) {
+            return;
+        }
+        blobs.put(hash, bytes);
+        blobBytes += bytes.length;
+        bytesQueued.addAndGet(bytes.length);
+        if (blobs.size() >= batchSize) {
+            submitBlobs();
+        }
+    }
+
+    @Override
+    public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+        chunkFanouts.put(hash, new FanoutImpl(blobHashes, actualContentLength));
+        if (chunkFanouts.size() >= batchSize) {
+            submitChunkFanouts();
+        }
+    }
+
+    @Override
+    public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        this.fileHash = hash;
+        this.fileFanout = new FanoutImpl(fanoutHashes, actualContentLength);
+    }
+
+    /**
+     * Upload whatever is still batched, wait for all uploads to be
+     * acknowledged, and then upload the file fanout
+     *
+     * @throws IOException - if any upload failed
+     */
+    public void finish() throws IOException {
+        submitBlobs();
+        submitChunkFanouts();
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted waiting for uploads", ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Upload failed: " + path, ex.getCause());
+            }
+        }
+        futures.clear();
+        checkError();
+        if (fileFanout != null) {
+            httpHashStore.setFileFanout(fileHash, fileFanout.getHashes(), fileFanout.getActualContentLength());
+        }
+        log.info("finish: uploaded " + path + " bytes: " + bytesSent.get());
+    }
+
+    /**
+     * Stop any batches which have not yet started. Has no effect if finish has
+     * completed
+     */
+    public void abort() {
+        aborted = true;
+    }
+
+    private void submitBlobs() {
+        if (blobs.isEmpty()) {
+            return;
+        }
+        final Map<String, byte[]> batch = blobs;
+        final long batchBytes = blobBytes;
+        blobs = new LinkedHashMap<>();
+        blobBytes = 0;
+        submit(new Runnable() {
+
+            @Override
+            public void run() {
+                httpBlobStore.uploadBlobs(batch);
+                long sent = bytesSent.addAndGet(batchBytes);
+                EventUtils.fireQuietly(eventManager, new UploadProgressEvent(path, sent, bytesQueued.get()));
+            }
+        });
+    }
+
+    private void submitChunkFanouts() {
+        if (chunkFanouts.isEmpty()) {
+            return;
+        }
+        final Map<String, Fanout> batch = chunkFanouts;
+        chunkFanouts = new LinkedHashMap<>();
+        submit(new Runnable() {
+
+            @Override
+            public void run() {
+                httpHashStore.uploadChunkFanouts(batch);
+            }
+        });
+    }
+
+    private void submit(final Runnable r) {
+        checkError();
+        if (permits == null) {
+            permits = new Semaphore(maxQueuedBatches);
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        Future<?> f = executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (!aborted && error == null) {
+                        r.run();
+                    }
+                } catch (Throwable e) {
+                    log.error("Exception uploading batch for: " + path, e);
+                    error = e;
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+        futures.add(f);
+    }
+
+    private void checkError() {
+        Throwable e = error;
+        if (e != null) {
+            throw new RuntimeException("Upload failed: " + path, e);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        return httpBlobStore.getBlob(hash);
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return httpBlobStore.hasBlob(hash);
+    }
+
+    @Override
+    public Fanout getChunkFanout(String fanoutHash) {
+        return httpHashStore.getChunkFanout(fanoutHash);
+    }
+
+    @Override
+    public boolean hasChunk(String fanoutHash) {
+        return httpHashStore.hasChunk(fanoutHash);
+    }
+
+    @Override
+    public Fanout getFileFanout(String fileHash) {
+        return httpHashStore.getFileFanout(fileHash);
+    }
+
+    @Override
+    public boolean hasFile(String fileHash) {
+        return httpHashStore.hasFile(fileHash);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Number of blobs, or chunk fanouts, in each upload batch
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxQueuedBatches() {
+        return maxQueuedBatches;
+    }
+
+    /**
+     * Maximum number of batches waiting or in progress before the parser is
+     * blocked. Must be set before the first batch is submitted
+     *
+     * @param maxQueuedBatches
+     */
+    public void setMaxQueuedBatches(int maxQueuedBatches) {
+        this.maxQueuedBatches = maxQueuedBatches;
+    }
+}
@@ -0,0 +1,51 @@
+package io.milton.sync.event;
+
+import io.milton.common.Path;
+import io.milton.event.Event;
+
+/**
+ * Fired as batches of blobs and fanouts for a file have been acknowledged by
+ * the server
+ *
+ * @author brad
+ */
+public class UploadProgressEvent implements Event {
+
+    private final Path path;
+    private final long bytesSent;
+    private final long bytesQueued;
+
+    public UploadProgressEvent(Path path, long bytesSent, long bytesQueued) {
+        this.path = path;
+        this.bytesSent = bytesSent;
+        this.bytesQueued = bytesQueued;
+    }
+
+    /**
+     * The local path of the file being uploaded
+     *
+     * @return
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Number of bytes of file content which the server has acknowledged,
+     * including blobs it already had
+     *
+     * @return
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Number of bytes of file content parsed so far
+     *
+     * @return
+     */
+    public long getBytesQueued() {
+        return bytesQueued;
+    }
+}
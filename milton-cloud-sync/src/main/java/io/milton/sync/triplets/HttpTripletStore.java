@@ -3,7 +3,6 @@ package io.milton.sync.triplets;
 import io.milton.cloud.common.HashCalc;
 import io.milton.common.Path;
 import io.milton.http.exceptions.NotFoundException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -38,7 +37,7 @@ public class HttpTripletStore implements ParentHashAwareTripletStore {
         p = p.child("_triplets");
         try {            
             byte[] arrRemoteTriplets = host.doGet(p);
-            List<ITriplet> triplets = hashCalc.parseTriplets(new ByteArrayInputStream(arrRemoteTriplets));
+            List<ITriplet> triplets = hashCalc.parseTriplets(arrRemoteTriplets);
             return triplets;
         } catch (IOException ex) {
             throw new RuntimeException(p.toString(), ex);
@@ -56,7 +55,7 @@ public class HttpTripletStore implements ParentHashAwareTripletStore {
                         
         try {            
             byte[] arrRemoteTriplets = host.doGet(p, params);
-            List<ITriplet> triplets = hashCalc.parseTriplets(new ByteArrayInputStream(arrRemoteTriplets));
+            List<ITriplet> triplets = hashCalc.parseTriplets(arrRemoteTriplets);
             return triplets;
         } catch (IOException ex) {
             throw new RuntimeException(p.toString(), ex);
@@ -0,0 +1,888 @@
+package io.milton.sync.triplets;
+
+import io.milton.cloud.common.HashCalc;
+import io.milton.cloud.common.ITriplet;
+import io.milton.cloud.common.Triplet;
+import io.milton.common.Path;
+import io.milton.event.EventManager;
+import io.milton.sync.Utils;
+import io.milton.sync.event.EventUtils;
+import io.milton.sync.event.FileChangedEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.FileBlobStore;
+import org.hashsplit4j.api.NullHashStore;
+import org.hashsplit4j.api.Parser;
+
+/**
+ * An alternative to JdbcLocalTripletStore which does not need a database.
+ *
+ * The state of the local directory is held in memory as a tree of directory
+ * nodes, each holding the records for its files and subdirectories, and each
+ * file record holding the SHA1 hashes of its chunks packed into a byte array,
+ * with their lengths. Listing a directory is a walk down the tree, and finding
+ * a blob is a lookup in a ChunkIndex, which refers back to the file records
+ * rather than holding an object per chunk.
+ *
+ * The tree is saved to a compact binary index file, and loaded from it on
+ * construction, so that the scan on startup only needs to check modified dates
+ * and parse files which have changed. Saving happens after the initial scan
+ * and then at most every saveIntervalMillis while there are changes, and on
+ * stop
+ *
+ * Scanning and file system events are handled the same as
+ * JdbcLocalTripletStore
+ *
+ * @author brad
+ */
+public class IndexedLocalTripletStore implements TripletStore, BlobStore {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(IndexedLocalTripletStore.class);
+    private static final int MAGIC = 0x4d4c5453; // MLTS
+    private static final int FORMAT_VERSION = 2;
+    private static final int HASH_LENGTH = 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static WatchEvent.Kind<?>[] events = {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY};
+    private final File root;
+    private final File indexFile;
+    private final EventManager eventManager;
+    private final WatchService watchService;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final HashCalc hashCalc = HashCalc.getInstance();
+    private final Object scanLock = new Object();
+    private final DirNode rootNode = new DirNode("", null);
+    private final ChunkIndex chunks = new ChunkIndex();
+    private long saveIntervalMillis = 10000;
+    private volatile boolean initialScanDone;
+    private volatile boolean dirty;
+    private ScheduledFuture<?> futureScan;
+    private ScheduledFuture<?> futureSave;
+    // used by setBlob while parsing a file, guarded by scanLock
+    private ByteArrayOutputStream currentChunkHashes;
+    private List<Integer> currentChunkLengths;
+    private String lastBlobHash;
+    private byte[] lastBlob;
+
+    /**
+     *
+     * @param root - the local directory to scan
+     * @param indexFile - where to save the index. Is loaded if it exists
+     * @param eventManager
+     * @throws IOException
+     */
+    public IndexedLocalTripletStore(File root, File indexFile, EventManager eventManager) throws IOException {
+        this.root = root;
+        this.indexFile = indexFile;
+        this.eventManager = eventManager;
+        scheduledExecutorService = Executors.newScheduledThreadPool(1);
+        final java.nio.file.Path path = FileSystems.getDefault().getPath(root.getAbsolutePath());
+        watchService = path.getFileSystem().newWatchService();
+        if (indexFile.exists()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Couldnt load index, will rebuild it: " + indexFile.getAbsolutePath(), e);
+                clear();
+            }
+        }
+    }
+
+    @Override
+    public List<ITriplet> getTriplets(Path path) {
+        if (!initialScanDone) {
+            log.info("getTriplets: Initial scan not done, doing it now...");
+            scan();
+            initialScanDone = true;
+            log.info("getTriplets: Initial scan finished. Now, proceed with syncronisation...");
+        }
+        DirNode node = rootNode;
+        for (String name : path.getParts()) {
+            node = node.dirs.get(name);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.toTriplets();
+    }
+
+    /**
+     * Called by the parser while scanning a file
+     *
+     * @param hash
+     * @param bytes
+     */
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        byte[] arr = new byte[HASH_LENGTH];
+        if (!fromHex(hash, arr, 0)) {
+            throw new IllegalArgumentException("Not a SHA1 hash: " + hash);
+        }
+        currentChunkHashes.write(arr, 0, arr.length);
+        currentChunkLengths.add(bytes.length);
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        synchronized (this) {
+            if (hash.equals(lastBlobHash)) {  // this will often happen because hasBlob will be called first for same hash
+                return lastBlob;
+            }
+        }
+        byte[] key = new byte[HASH_LENGTH];
+        if (!fromHex(hash, key, 0)) {
+            return null;
+        }
+        ChunkRef ref = chunks.get(key);
+        if (ref == null) {
+            return null;
+        }
+        File f = ref.file.toFile(root);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            byte[] blob = FileBlobStore.readBytes(raf, ref.offset, ref.length, hash); // implicitly verifies against given crc
+            synchronized (this) {
+                lastBlobHash = hash;
+                lastBlob = blob;
+            }
+            return blob;
+        } catch (IOException e) {
+            log.info("couldnt load from: " + f.getAbsolutePath() + " offset: " + ref.offset + " probably no longer valid so will remove the chunk record");
+            chunks.remove(ref.file, ref.chunk);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return getBlob(hash) != null;
+    }
+
+    public void scan() {
+        synchronized (scanLock) {
+            log.info("START SCAN");
+            long tm = System.currentTimeMillis();
+            try {
+                scanDirectory(root, rootNode);
+                save();
+            } catch (Throwable e) {
+                log.error("Exception in scan: " + root.getAbsolutePath(), e);
+            }
+            log.info("Finished scan: " + root.getAbsolutePath() + " files: " + getFileCount() + " in " + (System.currentTimeMillis() - tm) + "ms");
+        }
+    }
+
+    /**
+     * Start processing file system events
+     */
+    public void start() {
+        Runnable rScan = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    scanFsEvents();
+                } catch (IOException ex) {
+                    log.error("Exception processing events", ex);
+                }
+            }
+        };
+        Runnable rSave = new Runnable() {
+
+            @Override
+            public void run() {
+                if (dirty) {
+                    synchronized (scanLock) {
+                        saveQuietly();
+                    }
+                }
+            }
+        };
+        log.info("Begin file watch loop: " + root.getAbsolutePath());
+        futureScan = scheduledExecutorService.scheduleWithFixedDelay(rScan, 200, 200, TimeUnit.MILLISECONDS);
+        futureSave = scheduledExecutorService.scheduleWithFixedDelay(rSave, saveIntervalMillis, saveIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop processing file system events, and save any changes
+     */
+    public void stop() {
+        if (futureScan != null) {
+            futureScan.cancel(true);
+        }
+        if (futureSave != null) {
+            futureSave.cancel(false);
+        }
+        synchronized (scanLock) {
+            if (dirty) {
+                saveQuietly();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return - number of file records
+     */
+    public long getFileCount() {
+        return rootNode.countFiles();
+    }
+
+    /**
+     *
+     * @return - number of chunks which can be loaded by getBlob
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Compare the directory with its node, parsing any new or modified files,
+     * and then regenerate the directory hash if anything changed. Is depth
+     * first, so subdirectory hashes are up to date first
+     *
+     * @param dir
+     * @param node
+     * @return - true if anything was changed
+     */
+    private boolean scanDirectory(File dir, DirNode node) throws IOException {
+        if (Utils.ignored(dir)) {
+            return false;
+        }
+        registerWatchDir(dir);
+
+        File[] children = dir.listFiles();
+        if (children == null) {
+            log.trace("No children of: " + dir.getAbsolutePath());
+            return false;
+        }
+        Map<String, File> mapOfFiles = Utils.toMap(children);
+        boolean changed = false;
+        for (File child : children) {
+            if (child.isDirectory() && !Utils.ignored(child)) {
+                DirNode childNode = node.dirs.get(child.getName());
+                if (childNode == null) {
+                    childNode = new DirNode(child.getName(), node);
+                    node.dirs.put(child.getName(), childNode);
+                }
+                if (scanDirectory(child, childNode)) {
+                    changed = true;
+                }
+            }
+        }
+
+        // remove any that no longer exist
+        for (DirNode childNode : new ArrayList<>(node.dirs.values())) {
+            File f = mapOfFiles.get(childNode.name);
+            if (f == null || !f.isDirectory() || Utils.ignored(f)) {
+                log.trace("detected change, directory removed: " + childNode.name);
+                node.dirs.remove(childNode.name);
+                removeChunks(childNode);
+                changed = true;
+            }
+        }
+        for (FileNode r : new ArrayList<>(node.files.values())) {
+            File f = mapOfFiles.get(r.name);
+            if (f == null || !f.isFile()) {
+                log.trace("detected change, file removed: " + r.name);
+                node.files.remove(r.name);
+                removeChunks(r);
+                changed = true;
+            }
+        }
+
+        for (File f : children) {
+            if (f.isFile()) {
+                FileNode r = node.files.get(f.getName());
+                if (r == null || r.modified != f.lastModified()) {
+                    log.trace("detected change, new or modified file: " + f.getAbsolutePath());
+                    scanFile(f, node, r);
+                    changed = true;
+                }
+            }
+        }
+
+        if (changed || node.hash == null) {
+            List<ITriplet> triplets = node.toTriplets();
+            hashCalc.sort(triplets);
+            node.hash = hashCalc.calcHash(triplets);
+            node.modified = dir.lastModified();
+            dirty = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void scanFile(File f, DirNode parent, FileNode oldRecord) {
+        currentChunkHashes = new ByteArrayOutputStream();
+        currentChunkLengths = new ArrayList<>();
+        long modified = f.lastModified();
+        String crc;
+        try {
+            crc = Parser.parse(f, this, new NullHashStore()); // will call setBlob for each chunk
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Couldnt parse file, will ignore it: " + f.getAbsolutePath(), e);
+            if (oldRecord != null) {
+                parent.files.remove(oldRecord.name);
+                removeChunks(oldRecord);
+            }
+            return;
+        }
+        byte[] hashes = currentChunkHashes.toByteArray();
+        int[] lengths = new int[currentChunkLengths.size()];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = currentChunkLengths.get(i);
+        }
+        currentChunkHashes = null;
+        currentChunkLengths = null;
+        if (oldRecord != null) {
+            removeChunks(oldRecord);
+        }
+        FileNode r = new FileNode(f.getName(), parent, crc, modified, hashes, lengths);
+        parent.files.put(r.name, r);
+        addChunks(r);
+    }
+
+    private void addChunks(FileNode r) {
+        for (int i = 0; i < r.chunkCount(); i++) {
+            chunks.put(r, i);
+        }
+    }
+
+    /**
+     * Remove chunk records which refer to the given file. Chunks which are
+     * also in other files might refer to them instead, and are left alone
+     */
+    private void removeChunks(FileNode r) {
+        for (int i = 0; i < r.chunkCount(); i++) {
+            chunks.remove(r, i);
+        }
+    }
+
+    private void removeChunks(DirNode node) {
+        for (FileNode r : node.files.values()) {
+            removeChunks(r);
+        }
+        for (DirNode child : node.dirs.values()) {
+            removeChunks(child);
+        }
+    }
+
+    private void clear() {
+        rootNode.dirs.clear();
+        rootNode.files.clear();
+        rootNode.hash = null;
+        chunks.clear();
+    }
+
+    private DirNode findNode(File dir) {
+        java.nio.file.Path rel = root.toPath().relativize(dir.toPath());
+        DirNode node = rootNode;
+        for (java.nio.file.Path p : rel) {
+            String name = p.toString();
+            if (name.length() == 0) {
+                continue;
+            }
+            node = node.dirs.get(name);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            log.error("Exception saving index: " + indexFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Write the index to a temporary file and then move it over the old one,
+     * so a crash while saving leaves the old index intact. The temporary file
+     * is synced once, before the move. Must hold the scanLock
+     */
+    private void save() throws IOException {
+        long tm = System.currentTimeMillis();
+        File tmp = new File(indexFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeDir(rootNode, out);
+            out.flush();
+            fout.getFD().sync();
+        }
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+        log.info("Saved index: " + indexFile.getAbsolutePath() + " size: " + indexFile.length() + " in " + (System.currentTimeMillis() - tm) + "ms");
+    }
+
+    private void load() throws IOException {
+        long tm = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a valid index file, or is from a different version");
+            }
+            readDir(rootNode, in);
+        }
+        log.info("Loaded index: " + indexFile.getAbsolutePath() + " files: " + getFileCount() + " chunks: " + chunks.size() + " in " + (System.currentTimeMillis() - tm) + "ms");
+    }
+
+    private void writeDir(DirNode node, DataOutputStream out) throws IOException {
+        writeHash(node.hash, out);
+        out.writeLong(node.modified);
+        out.writeInt(node.files.size());
+        for (FileNode r : node.files.values()) {
+            writeString(r.name, out);
+            writeHash(r.crc, out);
+            out.writeLong(r.modified);
+            out.writeInt(r.chunkCount());
+            out.write(r.chunkHashes);
+            for (int i = 0; i < r.chunkCount(); i++) {
+                out.writeInt(r.length(i));
+            }
+        }
+        out.writeInt(node.dirs.size());
+        for (DirNode child : node.dirs.values()) {
+            writeString(child.name, out);
+            writeDir(child, out);
+        }
+    }
+
+    private void readDir(DirNode node, DataInputStream in) throws IOException {
+        node.hash = readHash(in);
+        node.modified = in.readLong();
+        int numFiles = readCount(in);
+        for (int i = 0; i < numFiles; i++) {
+            String name = readString(in);
+            String crc = readHash(in);
+            long modified = in.readLong();
+            int numChunks = readCount(in);
+            byte[] hashes = new byte[numChunks * HASH_LENGTH];
+            in.readFully(hashes);
+            int[] lengths = new int[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                lengths[c] = in.readInt();
+            }
+            FileNode r = new FileNode(name, node, crc, modified, hashes, lengths);
+            node.files.put(name, r);
+            addChunks(r);
+        }
+        int numDirs = readCount(in);
+        for (int i = 0; i < numDirs; i++) {
+            DirNode child = new DirNode(readString(in), node);
+            node.dirs.put(child.name, child);
+            readDir(child, in);
+        }
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("Invalid count in index: " + n);
+        }
+        return n;
+    }
+
+    private static void writeString(String s, DataOutputStream out) throws IOException {
+        byte[] arr = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(arr.length);
+        out.write(arr);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] arr = new byte[readCount(in)];
+        in.readFully(arr);
+        return new String(arr, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * File and directory hashes are written with a leading byte of 0 for null,
+     * 1 if the hash is written as a string, or 2 if it is written as the 20
+     * bytes of a SHA1 hash
+     */
+    private static void writeHash(String hash, DataOutputStream out) throws IOException {
+        byte[] arr = new byte[HASH_LENGTH];
+        if (hash == null) {
+            out.writeByte(0);
+        } else if (fromHex(hash, arr, 0) && hash.equals(hash.toLowerCase())) { // so it reads back the same
+            out.writeByte(2);
+            out.write(arr);
+        } else {
+            out.writeByte(1);
+            writeString(hash, out);
+        }
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case 0:
+                return null;
+            case 1:
+                return readString(in);
+            case 2:
+                byte[] arr = new byte[HASH_LENGTH];
+                in.readFully(arr);
+                char[] chars = new char[HASH_LENGTH * 2];
+                for (int i = 0; i < HASH_LENGTH; i++) {
+                    int v = arr[i] & 0xff;
+                    chars[i * 2] = Character.forDigit(v >> 4, 16);
+                    chars[i * 2 + 1] = Character.forDigit(v & 0xf, 16);
+                }
+                return new String(chars);
+            default:
+                throw new IOException("Invalid hash type: " + type);
+        }
+    }
+
+    /**
+     * Parse a 40 character hex hash into dest
+     *
+     * @return - false if the string is not a hex SHA1 hash
+     */
+    private static boolean fromHex(String hex, byte[] dest, int offset) {
+        if (hex.length() != HASH_LENGTH * 2) {
+            return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return false;
+            }
+            dest[offset + i] = (byte) ((hi << 4) | lo);
+        }
+        return true;
+    }
+
+    private void registerWatchDir(final File dir) throws IOException {
+        final java.nio.file.Path path = FileSystems.getDefault().getPath(dir.getAbsolutePath());
+        // will only watch specified directory, not subdirectories
+        path.register(watchService, events);
+    }
+
+    private void scanFsEvents() throws IOException {
+        WatchKey watchKey = watchService.poll();
+        if (watchKey == null) {
+            return;
+        }
+        java.nio.file.Path watchedPath = (java.nio.file.Path) watchKey.watchable();
+        // events in one directory all cause the same rescan, so only do it once
+        if (!watchKey.pollEvents().isEmpty()) {
+            scanDirTx(watchedPath.toFile());
+        }
+        // if the watched directed gets deleted, stop watching it
+        if (!watchKey.reset()) {
+            log.info("Watch is no longer valid");
+            watchKey.cancel();
+        }
+    }
+
+    /**
+     * Rescan the directory, and then update the hashes of its parents
+     */
+    private void scanDirTx(final File dir) throws IOException {
+        log.info("scanDirTx: " + dir.getAbsolutePath());
+        boolean changed;
+        synchronized (scanLock) {
+            DirNode node = findNode(dir);
+            if (node == null) {
+                // parent will have an event for this, or it isnt under the root
+                return;
+            }
+            changed = scanDirectory(dir, node);
+            if (changed) {
+                File parentDir = dir;
+                DirNode parent = node.parent;
+                while (parent != null) {
+                    parentDir = parentDir.getParentFile();
+                    List<ITriplet> triplets = parent.toTriplets();
+                    hashCalc.sort(triplets);
+                    parent.hash = hashCalc.calcHash(triplets);
+                    parent.modified = parentDir.lastModified();
+                    parent = parent.parent;
+                }
+            }
+        }
+        if (changed) {
+            EventUtils.fireQuietly(eventManager, new FileChangedEvent());
+        }
+    }
+
+    public long getSaveIntervalMillis() {
+        return saveIntervalMillis;
+    }
+
+    /**
+     * Minimum time between saves of the index while there are changes. Must be
+     * set before start
+     *
+     * @param saveIntervalMillis
+     */
+    public void setSaveIntervalMillis(long saveIntervalMillis) {
+        this.saveIntervalMillis = saveIntervalMillis;
+    }
+
+    private static class DirNode {
+
+        final String name;
+        final DirNode parent;
+        final Map<String, FileNode> files = new ConcurrentHashMap<>();
+        final Map<String, DirNode> dirs = new ConcurrentHashMap<>();
+        volatile String hash;
+        long modified;
+
+        DirNode(String name, DirNode parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        /**
+         * Subdirectories are only listed once their hash has been calculated
+         */
+        List<ITriplet> toTriplets() {
+            List<ITriplet> list = new ArrayList<>(files.size() + dirs.size());
+            for (FileNode r : files.values()) {
+                list.add(triplet(r.name, r.crc, "f"));
+            }
+            for (DirNode d : dirs.values()) {
+                String h = d.hash;
+                if (h != null) {
+                    list.add(triplet(d.name, h, "d"));
+                }
+            }
+            return list;
+        }
+
+        long countFiles() {
+            long n = files.size();
+            for (DirNode d : dirs.values()) {
+                n += d.countFiles();
+            }
+            return n;
+        }
+
+        private static Triplet triplet(String name, String hash, String type) {
+            Triplet t = new Triplet();
+            t.setName(name);
+            t.setHash(hash);
+            t.setType(type);
+            return t;
+        }
+    }
+
+    /**
+     * Immutable, a changed file gets a new FileNode. chunkHashes holds 20 bytes
+     * for each chunk, in the order the chunks appear in the file.
+     * chunkOffsets holds the offset of each chunk, and then the file length, so
+     * finding a chunk doesn't need to add up the lengths of the chunks before
+     * it
+     */
+    private static class FileNode {
+
+        final String name;
+        final DirNode parent;
+        final String crc;
+        final long modified;
+        final byte[] chunkHashes;
+        final long[] chunkOffsets;
+
+        FileNode(String name, DirNode parent, String crc, long modified, byte[] chunkHashes, int[] chunkLengths) {
+            this.name = name;
+            this.parent = parent;
+            this.crc = crc;
+            this.modified = modified;
+            this.chunkHashes = chunkHashes;
+            this.chunkOffsets = new long[chunkLengths.length + 1];
+            for (int i = 0; i < chunkLengths.length; i++) {
+                chunkOffsets[i + 1] = chunkOffsets[i] + chunkLengths[i];
+            }
+        }
+
+        int chunkCount() {
+            return chunkOffsets.length - 1;
+        }
+
+        int length(int chunk) {
+            return (int) (chunkOffsets[chunk + 1] - chunkOffsets[chunk]);
+        }
+
+        File toFile(File root) {
+            List<String> names = new ArrayList<>();
+            for (DirNode d = parent; d.parent != null; d = d.parent) {
+                names.add(d.name);
+            }
+            File f = root;
+            for (int i = names.size() - 1; i >= 0; i--) {
+                f = new File(f, names.get(i));
+            }
+            return new File(f, name);
+        }
+    }
+
+    private static class ChunkRef {
+
+        final FileNode file;
+        final int chunk;
+        final long offset;
+        final int length;
+
+        ChunkRef(FileNode file, int chunk) {
+            this.file = file;
+            this.chunk = chunk;
+            this.offset = file.chunkOffsets[chunk];
+            this.length = file.length(chunk);
+        }
+    }
+
+    /**
+     * Finds the file a chunk can be loaded from, given its hash.
+     *
+     * An open addressing table with linear probing. Each slot holds a file and
+     * the index of a chunk within it, and the key is read back from the file's
+     * packed hashes, so there is no object per chunk. SHA1 hashes are already
+     * evenly distributed, so their first 4 bytes are used as the hash code.
+     * If a chunk is in several files the last one added is found
+     */
+    private static class ChunkIndex {
+
+        private FileNode[] files;
+        private int[] chunks;
+        private int size;
+
+        ChunkIndex() {
+            init(1024);
+        }
+
+        private void init(int capacity) {
+            files = new FileNode[capacity];
+            chunks = new int[capacity];
+            size = 0;
+        }
+
+        synchronized ChunkRef get(byte[] hash) {
+            int slot = find(hash, 0);
+            if (files[slot] == null) {
+                return null;
+            }
+            return new ChunkRef(files[slot], chunks[slot]);
+        }
+
+        synchronized void put(FileNode file, int chunk) {
+            int slot = find(file.chunkHashes, chunk * HASH_LENGTH);
+            if (files[slot] == null) {
+                size++;
+            }
+            files[slot] = file;
+            chunks[slot] = chunk;
+            if (size * 4 > files.length * 3) {
+                resize();
+            }
+        }
+
+        /**
+         * Remove the chunk, if it is still found in the given file
+         */
+        synchronized void remove(FileNode file, int chunk) {
+            int slot = find(file.chunkHashes, chunk * HASH_LENGTH);
+            if (files[slot] != file || chunks[slot] != chunk) {
+                return;
+            }
+            files[slot] = null;
+            size--;
+            // shift back any following entries which could no longer be found
+            int mask = files.length - 1;
+            int free = slot;
+            for (int i = (slot + 1) & mask; files[i] != null; i = (i + 1) & mask) {
+                int home = home(files[i].chunkHashes, chunks[i] * HASH_LENGTH);
+                if (((i - home) & mask) >= ((i - free) & mask)) {
+                    files[free] = files[i];
+                    chunks[free] = chunks[i];
+                    files[i] = null;
+                    free = i;
+                }
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            init(1024);
+        }
+
+        /**
+         * @return - the slot holding the hash, or the empty slot where it
+         * would be added
+         */
+        private int find(byte[] hash, int offset) {
+            int mask = files.length - 1;
+            int i = home(hash, offset);
+            while (files[i] != null && !equal(files[i].chunkHashes, chunks[i] * HASH_LENGTH, hash, offset)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private int home(byte[] hash, int offset) {
+            int h = (hash[offset] & 0xff) << 24 | (hash[offset + 1] & 0xff) << 16 | (hash[offset + 2] & 0xff) << 8 | (hash[offset + 3] & 0xff);
+            return h & (files.length - 1);
+        }
+
+        private void resize() {
+            FileNode[] oldFiles = files;
+            int[] oldChunks = chunks;
+            init(oldFiles.length * 2);
+            for (int i = 0; i < oldFiles.length; i++) {
+                if (oldFiles[i] != null) {
+                    int slot = find(oldFiles[i].chunkHashes, oldChunks[i] * HASH_LENGTH);
+                    files[slot] = oldFiles[i];
+                    chunks[slot] = oldChunks[i];
+                    size++;
+                }
+            }
+        }
+
+        private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset) {
+            for (int i = 0; i < HASH_LENGTH; i++) {
+                if (a[aOffset + i] != b[bOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -64,8 +64,7 @@ public class JdbcLocalTripletStore implements TripletStore, BlobStore {
     private final EventManager eventManager;
     private File currentScanFile;
     private long currentOffset;
-    private String lastBlobHash;
-    private byte[] lastBlob;
+    private volatile LastBlob lastBlob; // hash and bytes are set together so they always match
     private boolean initialScanDone;
     private ScheduledFuture<?> futureScan;
     private final ScheduledExecutorService scheduledExecutorService;
@@ -151,8 +150,9 @@ public class JdbcLocalTripletStore implements TripletStore, BlobStore {
     @Override
     public byte[] getBlob(String hash) {
         try {
-            if (hash.equals(lastBlobHash) ) {  // this will often happen because hasBlob will be called first for same hash
-                return lastBlob;
+            LastBlob last = lastBlob;
+            if (last != null && hash.equals(last.hash) ) {  // this will often happen because hasBlob will be called first for same hash
+                return last.bytes;
             }
             List<BlobVector> list = blobDao.listBlobsByHash(con(), hash);
 
@@ -160,8 +160,7 @@ public class JdbcLocalTripletStore implements TripletStore, BlobStore {
                 try {
                     byte[] blob = BlobUtils.loadAndVerify(currentScanFile, v);
                     if (blob != null) {
-                        lastBlobHash = hash;
-                        lastBlob = blob;
+                        lastBlob = new LastBlob(hash, blob);
                     }
                     return blob;
                 } catch (IOException e) {
@@ -435,4 +434,14 @@ public class JdbcLocalTripletStore implements TripletStore, BlobStore {
         });
     }
 
+    private static class LastBlob {
+
+        final String hash;
+        final byte[] bytes;
+
+        LastBlob(String hash, byte[] bytes) {
+            this.hash = hash;
+            this.bytes = bytes;
+        }
+    }
 }
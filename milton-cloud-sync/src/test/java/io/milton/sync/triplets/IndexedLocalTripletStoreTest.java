@@ -0,0 +1,146 @@
+package io.milton.sync.triplets;
+
+import io.milton.cloud.common.ITriplet;
+import io.milton.common.Path;
+import io.milton.event.EventManagerImpl;
+import io.milton.sync.DbInitialiser;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author brad
+ */
+public class IndexedLocalTripletStoreTest {
+
+    private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(IndexedLocalTripletStoreTest.class);
+    private File tmp;
+
+    @After
+    public void tearDown() throws IOException {
+        if (tmp != null) {
+            FileUtils.deleteDirectory(tmp);
+        }
+    }
+
+    @Test
+    public void testReloadFromIndex() throws IOException {
+        File root = createTree(3, 4);
+        File indexFile = new File(tmp, "index");
+        IndexedLocalTripletStore store = new IndexedLocalTripletStore(root, indexFile, new EventManagerImpl());
+        List<ITriplet> rootTriplets = store.getTriplets(Path.root());
+        assertEquals(3, rootTriplets.size());
+        store.stop();
+        assertTrue(indexFile.exists());
+
+        IndexedLocalTripletStore reloaded = new IndexedLocalTripletStore(root, indexFile, new EventManagerImpl());
+        assertEquals(12, reloaded.getFileCount());
+        assertEquals(store.getChunkCount(), reloaded.getChunkCount());
+        assertEquals(toMap(rootTriplets), toMap(reloaded.getTriplets(Path.root())));
+        for (int d = 0; d < 3; d++) {
+            Path p = Path.path("dir" + d);
+            assertEquals(toMap(store.getTriplets(p)), toMap(reloaded.getTriplets(p)));
+        }
+    }
+
+    @Test
+    public void testCorruptIndexIsRebuilt() throws IOException {
+        File root = createTree(1, 2);
+        File indexFile = new File(tmp, "index");
+        FileUtils.writeStringToFile(indexFile, "not an index");
+        IndexedLocalTripletStore store = new IndexedLocalTripletStore(root, indexFile, new EventManagerImpl());
+        assertEquals(0, store.getFileCount());
+        assertEquals(2, store.getTriplets(Path.path("dir0")).size());
+        assertEquals(2, store.getFileCount());
+    }
+
+    /**
+     * Compares the time taken by JdbcLocalTripletStore and this store to scan
+     * 5000 files, to rescan them unchanged (for this store, after a restart
+     * which reloads its index) and to list every directory. Takes a while, so
+     * is only run by hand
+     */
+    @Ignore
+    @Test
+    public void testCompareWithJdbcStore() throws IOException {
+        int dirs = 100;
+        int filesPerDir = 50;
+        File root = createTree(dirs, filesPerDir);
+
+        DbInitialiser dbInit = new DbInitialiser(new File(tmp, "db"));
+        JdbcLocalTripletStore jdbcStore = new JdbcLocalTripletStore(dbInit.getUseConnection(), dbInit.getDialect(), root, new EventManagerImpl());
+        long tm = System.currentTimeMillis();
+        jdbcStore.scan();
+        long jdbcScan = System.currentTimeMillis() - tm;
+        tm = System.currentTimeMillis();
+        jdbcStore.scan();
+        long jdbcRescan = System.currentTimeMillis() - tm;
+        long jdbcList = listAll(jdbcStore, dirs);
+
+        File indexFile = new File(tmp, "index");
+        tm = System.currentTimeMillis();
+        IndexedLocalTripletStore store = new IndexedLocalTripletStore(root, indexFile, new EventManagerImpl());
+        store.getTriplets(Path.root());
+        long indexedScan = System.currentTimeMillis() - tm;
+        store.stop();
+        tm = System.currentTimeMillis();
+        store = new IndexedLocalTripletStore(root, indexFile, new EventManagerImpl());
+        store.getTriplets(Path.root());
+        long indexedRescan = System.currentTimeMillis() - tm;
+        long indexedList = listAll(store, dirs);
+
+        for (int d = 0; d < dirs; d++) {
+            Path p = Path.path("dir" + d);
+            assertEquals(toMap(jdbcStore.getTriplets(p)), toMap(store.getTriplets(p)));
+        }
+        log.info("files=" + (dirs * filesPerDir) + " index size=" + indexFile.length());
+        log.info("jdbc: scan=" + jdbcScan + "ms rescan=" + jdbcRescan + "ms list=" + jdbcList + "ms");
+        log.info("indexed: scan=" + indexedScan + "ms restart and rescan=" + indexedRescan + "ms list=" + indexedList + "ms");
+    }
+
+    private File createTree(int dirs, int filesPerDir) throws IOException {
+        tmp = new File(System.getProperty("java.io.tmpdir"), "triplet-store-" + System.currentTimeMillis());
+        File root = new File(tmp, "root");
+        Random rnd = new Random(1);
+        for (int d = 0; d < dirs; d++) {
+            File dir = new File(root, "dir" + d);
+            dir.mkdirs();
+            for (int f = 0; f < filesPerDir; f++) {
+                byte[] data = new byte[1000 + rnd.nextInt(20000)];
+                rnd.nextBytes(data);
+                try (FileOutputStream out = new FileOutputStream(new File(dir, "file" + f + ".bin"))) {
+                    out.write(data);
+                }
+            }
+        }
+        return root;
+    }
+
+    private long listAll(TripletStore store, int dirs) {
+        long tm = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            for (int d = 0; d < dirs; d++) {
+                assertNotNull(store.getTriplets(Path.path("dir" + d)));
+            }
+        }
+        return System.currentTimeMillis() - tm;
+    }
+
+    private Map<String, String> toMap(List<ITriplet> triplets) {
+        Map<String, String> map = new HashMap<>();
+        for (ITriplet t : triplets) {
+            map.put(t.getName(), t.getHash());
+        }
+        return map;
+    }
+}
@@ -1,24 +1,66 @@
 package io.milton.vfs.content;
 
+import io.milton.cloud.common.HashBloomFilter;
+import io.milton.cloud.common.store.ChunkOffsetStore;
+import io.milton.cloud.common.store.ChunkOffsets;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.hashsplit4j.api.Fanout;
-import org.hashsplit4j.api.HashStore;
 import io.milton.vfs.db.FanoutHash;
 import io.milton.vfs.db.utils.SessionManager;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 
 /**
+ * Stores fanouts in the database.
+ *
+ * Existence checks are answered from memory where possible. Hashes recently
+ * found to exist are held in a bounded positive cache.
+ *
+ * Optionally a bloom filter of all fanout hashes can be used, so checking a new
+ * hash (the common case when uploading) does not need a query. It is loaded in
+ * the background on first use, using the sessionManager, and every hash is
+ * treated as possibly present until loading has finished. It is updated on each
+ * insert, so it assumes this is the only server inserting fanouts, which is why
+ * it is off by default
+ *
+ * The ChunkOffsets index for a file is built when the file fanout is inserted,
+ * from its chunk fanouts which must already have been set. Files inserted
+ * before the index existed, or whose chunk fanouts could not be found, have no
+ * index, so callers fall back to walking the chunk fanouts from the start
  *
  * @author brad
  */
-public class DbHashStore implements HashStore{
- 
-    
+public class DbHashStore implements ChunkOffsetStore {
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DbHashStore.class);
+
+    private boolean useBloomFilter;
+    private SessionManager sessionManager;
+    private long expectedFanouts = 10000000;
+    private int maxKnownHashes = 100000;
+    private final AtomicBoolean bloomFilterStarted = new AtomicBoolean();
+    private volatile HashBloomFilter loadingBloomFilter;
+    private volatile HashBloomFilter bloomFilter;
+    private final Map<String, Boolean> knownHashes = new LinkedHashMap<String, Boolean>(1000, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > maxKnownHashes;
+        }
+    };
+
     @Override
     public void setChunkFanout(String hash, List<String> childCrcs, long actualContentLength) {
         if( hasChunk(hash)) {
             return ;
         }
         FanoutHash.insertFanout("c", hash, childCrcs, actualContentLength, SessionManager.session());
+        added("c", hash);
     }
 
     @Override
@@ -28,7 +70,7 @@ public class DbHashStore implements HashStore{
 
     @Override
     public boolean hasChunk(String hash) {
-        return getFanout(hash, "c") != null;
+        return exists(hash, "c");
     }
 
 
@@ -37,7 +79,14 @@ public class DbHashStore implements HashStore{
         if( hasFile(hash)) {
             return ;
         }
-        FanoutHash.insertFanout("f", hash, fanoutHashes, actualContentLength, SessionManager.session());
+        String offsets = null;
+        try {
+            offsets = ChunkOffsets.format(ChunkOffsets.calc(fanoutHashes, this));
+        } catch (RuntimeException e) {
+            log.warn("Couldnt build chunk offsets for file: " + hash + " - " + e.getMessage());
+        }
+        FanoutHash.insertFanout("f", hash, fanoutHashes, actualContentLength, offsets, SessionManager.session());
+        added("f", hash);
     }
 
     @Override
@@ -47,10 +96,169 @@ public class DbHashStore implements HashStore{
 
     @Override
     public boolean hasFile(String fileHash) {
-        return getFileFanout(fileHash) != null;
-    }    
-    
+        return exists(fileHash, "f");
+    }
+
+    @Override
+    public long[] getChunkOffsets(String fileHash) {
+        if (!mightExist(fileHash, "f")) {
+            return null;
+        }
+        Session session = SessionManager.session();
+        FanoutHash f = FanoutHash.findByHashAndType(fileHash, "f", session);
+        if (f == null) {
+            return null;
+        }
+        if (f.getChunkOffsets() == null) {
+            // an older file. Calculating it would load every chunk fanout, which
+            // is slower than the linear walk for a seek near the start
+            return null;
+        }
+        return ChunkOffsets.parse(f.getChunkOffsets());
+    }
+
     private Fanout getFanout(String hash, String type) {
-        return FanoutHash.findByHashAndType(hash, type, SessionManager.session());
-    }         
+        if (!mightExist(hash, type)) {
+            return null;
+        }
+        FanoutHash f = FanoutHash.findByHashAndType(hash, type, SessionManager.session());
+        if (f != null) {
+            known(type, hash);
+        }
+        return f;
+    }
+
+    private boolean exists(String hash, String type) {
+        synchronized (knownHashes) {
+            if (knownHashes.containsKey(type + hash)) {
+                return true;
+            }
+        }
+        return getFanout(hash, type) != null;
+    }
+
+    private boolean mightExist(String hash, String type) {
+        HashBloomFilter f = bloomFilter();
+        if (f == null) {
+            return true;
+        }
+        return f.mightContain(type + hash);
+    }
+
+    /**
+     * Not added to the known hashes until it is read back, since the
+     * transaction might yet be rolled back. Added to the bloom filter even while
+     * it is loading, since the scroll might not see this insert
+     */
+    private void added(String type, String hash) {
+        HashBloomFilter f = loadingBloomFilter;
+        if (f == null) {
+            f = bloomFilter;
+        }
+        if (f != null) {
+            f.add(type + hash);
+        }
+    }
+
+    private void known(String type, String hash) {
+        synchronized (knownHashes) {
+            knownHashes.put(type + hash, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Returns the bloom filter if it is in use and has finished loading, or
+     * null. Starts loading it on the first call
+     */
+    private HashBloomFilter bloomFilter() {
+        if (!useBloomFilter) {
+            return null;
+        }
+        HashBloomFilter f = bloomFilter;
+        if (f == null && bloomFilterStarted.compareAndSet(false, true)) {
+            if (sessionManager == null) {
+                log.warn("No sessionManager, so cant load the fanout bloom filter");
+            } else {
+                Thread t = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        loadBloomFilter();
+                    }
+                }, "fanout-bloom-filter");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+        return f;
+    }
+
+    private void loadBloomFilter() {
+        long tm = System.currentTimeMillis();
+        HashBloomFilter f = new HashBloomFilter(expectedFanouts, 10);
+        loadingBloomFilter = f;
+        long count = 0;
+        Session session = sessionManager.open();
+        try {
+            ScrollableResults rs = FanoutHash.scrollTypesAndHashes(session);
+            try {
+                while (rs.next()) {
+                    f.add(rs.getString(0) + rs.getString(1));
+                    count++;
+                }
+            } finally {
+                rs.close();
+            }
+            bloomFilter = f;
+            log.info("Loaded fanout bloom filter with " + count + " hashes in " + (System.currentTimeMillis() - tm) + "ms");
+        } catch (RuntimeException e) {
+            log.error("Couldnt load the fanout bloom filter, so it will not be used", e);
+        } finally {
+            loadingBloomFilter = null;
+            sessionManager.close();
+        }
+    }
+
+    public boolean isUseBloomFilter() {
+        return useBloomFilter;
+    }
+
+    /**
+     * Only set this if this is the only server inserting fanouts. Requires the
+     * sessionManager to load the filter
+     *
+     * @param useBloomFilter
+     */
+    public void setUseBloomFilter(boolean useBloomFilter) {
+        this.useBloomFilter = useBloomFilter;
+    }
+
+    public SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public long getExpectedFanouts() {
+        return expectedFanouts;
+    }
+
+    /**
+     * Used to size the bloom filter, which takes about 10 bits per fanout
+     *
+     * @param expectedFanouts
+     */
+    public void setExpectedFanouts(long expectedFanouts) {
+        this.expectedFanouts = expectedFanouts;
+    }
+
+    public int getMaxKnownHashes() {
+        return maxKnownHashes;
+    }
+
+    public void setMaxKnownHashes(int maxKnownHashes) {
+        this.maxKnownHashes = maxKnownHashes;
+    }
 }
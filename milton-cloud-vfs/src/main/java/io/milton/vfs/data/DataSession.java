@@ -17,16 +17,21 @@ package io.milton.vfs.data;
 import io.milton.cloud.common.HashCalc;
 import io.milton.cloud.common.CurrentDateService;
 import io.milton.cloud.common.ITriplet;
+import io.milton.cloud.common.store.BatchBlobStore;
+import io.milton.cloud.common.store.ContentWriter;
+import io.milton.cloud.common.store.StreamingBlobStore;
 import io.milton.common.Path;
 import io.milton.vfs.db.Branch;
 import io.milton.vfs.db.Commit;
 import io.milton.vfs.db.Profile;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.hashsplit4j.api.*;
 import org.hibernate.Session;
 import org.slf4j.Logger;
@@ -45,11 +50,17 @@ import org.slf4j.LoggerFactory;
 public class DataSession {
 
     private static final Logger log = LoggerFactory.getLogger(DataSession.class);
+    private static final HashCalc.ITripletComparator COMPARATOR = new HashCalc.ITripletComparator();
+    /**
+     * Shared by all sessions to rehash dirty directories in parallel
+     */
+    private static final ForkJoinPool hashPool = new ForkJoinPool();
     private DirectoryNode rootDataNode;
     private final Session session;
     private final HashStore hashStore;
     private final BlobStore blobStore;
     private final HashCalc hashCalc = HashCalc.getInstance();
+    private final DirectoryListingCache listingCache = DirectoryListingCache.getInstance();
     private final CurrentDateService currentDateService;
     private final Branch branch;
 
@@ -91,18 +102,28 @@ public class DataSession {
         return blobStore.hasBlob(hash);
     }
 
+    /**
+     * Find the directory listing for the given hash. Listings are immutable,
+     * so they are cached across sessions in the DirectoryListingCache
+     *
+     * @param hash
+     * @return - an unmodifiable list of triplets, or null if not found
+     */
     public List<ITriplet> find(String hash) {
-        //return DataItem.findByHash(hash, session);
+        List<ITriplet> list = listingCache.get(hash);
+        if (list != null) {
+            return list;
+        }
         byte[] arr = blobStore.getBlob(hash);
         if (arr == null) {
             return null;
         }
-        ByteArrayInputStream bin = new ByteArrayInputStream(arr);
         try {
-            return hashCalc.parseTriplets(bin);
+            list = hashCalc.parseTriplets(arr);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
+        return listingCache.put(hash, list);
     }
 
     /**
@@ -131,24 +152,94 @@ public class DataSession {
         return rootDataNode.hash;
     }
 
+    /**
+     * Recalculates the hashes of all dirty directories, bottom up. Dirty
+     * sibling directories are independent so are rehashed in parallel, and the
+     * new directory listings are written to the blob store together at the end
+     *
+     * Loading members uses the session and the blob store, so all dirty
+     * directories are loaded on this thread first. The worker threads only
+     * hash what is already in memory
+     *
+     * @param item
+     * @throws IOException
+     */
     private void recalcHashes(DataNode item) throws IOException {
-        if (item.dirty == null) {
-            return; // not dirty, which means no children are dirty
+        loadDirty(item);
+        Map<String, byte[]> newBlobs = new ConcurrentHashMap<>();
+        try {
+            hashPool.invoke(new RecalcHashesTask(item, newBlobs));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        if (blobStore instanceof BatchBlobStore) {
+            ((BatchBlobStore) blobStore).setBlobs(newBlobs);
+        } else {
+            for (Map.Entry<String, byte[]> e : newBlobs.entrySet()) {
+                blobStore.setBlob(e.getKey(), e.getValue());
+            }
         }
-        // only directories have derived hashes        
-        if (item instanceof DirectoryNode) {
+    }
+
+    private void loadDirty(DataNode item) {
+        if (item.dirty == null || !(item instanceof DirectoryNode)) {
+            return;
+        }
+        for (DataNode child : (DirectoryNode) item) {
+            loadDirty(child);
+        }
+    }
+
+    /**
+     * Rehashes a dirty directory after first rehashing its dirty
+     * subdirectories. Members are always kept sorted, so no sorting is needed
+     * here. The members of dirty directories must already have been loaded, see
+     * loadDirty
+     */
+    private class RecalcHashesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final DataNode item;
+        private final Map<String, byte[]> newBlobs;
+
+        RecalcHashesTask(DataNode item, Map<String, byte[]> newBlobs) {
+            this.item = item;
+            this.newBlobs = newBlobs;
+        }
+
+        @Override
+        protected void compute() {
+            if (item.dirty == null) {
+                return; // not dirty, which means no children are dirty
+            }
+            // only directories have derived hashes
+            if (!(item instanceof DirectoryNode)) {
+                return;
+            }
             DirectoryNode dirNode = (DirectoryNode) item;
-            for (DataNode child : dirNode) {
-                recalcHashes(child);
+            if (dirNode.members == null) {
+                throw new RuntimeException("Members not loaded for dirty directory: " + item.name);
+            }
+            List<RecalcHashesTask> tasks = new ArrayList<>();
+            for (DataNode child : dirNode.members) {
+                if (child.dirty != null && child instanceof DirectoryNode) {
+                    tasks.add(new RecalcHashesTask(child, newBlobs));
+                }
             }
+            invokeAll(tasks);
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            hashCalc.sort(dirNode.getChildren());
-            String newHash = hashCalc.calcHash(dirNode, bout);
+            String newHash;
+            try {
+                newHash = hashCalc.calcHash(dirNode.members, bout);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
             item.setHash(newHash);
-            byte[] arrTriplets = bout.toByteArray();
-            blobStore.setBlob(newHash, arrTriplets);
+            newBlobs.put(newHash, bout.toByteArray());
             log.info("recalcHashes: " + item.name + " children:" + dirNode.members.size() + " hash=" + newHash);
-
         }
     }
 
@@ -193,24 +284,26 @@ public class DataSession {
         public void move(DirectoryNode newParent, String newName) {
             DirectoryNode oldParent = this.getParent();
             if (oldParent != newParent) {
+                newParent.checkNameAvailable(newName, this);
+                oldParent.removeMember(this);
                 this.setParent(newParent);
-                if (oldParent.members != null) {
-                    oldParent.members.remove(this);
+                if (!newName.equals(name)) {
+                    setName(newName);
                 }
-                newParent.getChildren().add(this);
+                newParent.addMember(this);
                 setDirty();
                 newParent.setDirty();
                 oldParent.setDirty();
-            }
-            if (!newName.equals(name)) {
+            } else if (!newName.equals(name)) {
+                parent.checkNameAvailable(newName, this);
+                parent.removeMember(this);
                 setName(newName);
+                parent.addMember(this); // to keep the sort order
             }
-            parent.checkConsistency(this);
         }
 
         public void delete() {
-            parent.getChildren().remove(this);
-            parent.checkConsistency(parent);
+            parent.removeMember(this);
             setDirty();
         }
 
@@ -270,6 +363,7 @@ public class DataSession {
     public class DirectoryNode extends DataNode implements Iterable<DataNode> {
 
         private List<DataNode> members;
+        private Map<String, DataNode> membersByName;
 
         public DirectoryNode(DirectoryNode parent, String name, String hash) {
             super(parent, name, "d", hash);
@@ -283,9 +377,11 @@ public class DataSession {
         private List<DataNode> getChildren() {
             if (members == null) {
                 members = new ArrayList<>();
+                membersByName = new HashMap<>();
                 if (hash != null) {
                     List<ITriplet> list = find(hash);
                     if (list != null) {
+                        ((ArrayList<DataNode>) members).ensureCapacity(list.size());
                         for (ITriplet i : list) {
                             DataNode c;
                             if (i.getType().equals("d")) {
@@ -294,6 +390,10 @@ public class DataSession {
                                 c = new FileNode(this, i.getName(), i.getHash());
                             }
                             members.add(c);
+                            membersByName.put(c.getName(), c);
+                        }
+                        if (!isSorted(members)) {
+                            hashCalc.sort(members); // members must be kept sorted, see addMember
                         }
                     }
                 }
@@ -309,15 +409,16 @@ public class DataSession {
         public FileNode addFile(String name, String hash) {
             log.info("addFile: " + name + " - " + hash);
             FileNode item = new FileNode(this, name, hash);
-            getChildren().add(item);
-            checkConsistency(item);
+            checkNameAvailable(name, item);
+            addMember(item);
             setDirty();
             return item;
         }
 
         public DirectoryNode addDirectory(String name, String hash) {
             DirectoryNode item = new DirectoryNode(this, name, hash);
-            getChildren().add(item);
+            checkNameAvailable(name, item);
+            addMember(item);
             setDirty();
             return item;
         }
@@ -335,7 +436,7 @@ public class DataSession {
         }
 
         public boolean contains(DataNode o) {
-            return getChildren().contains(o);
+            return o != null && get(o.getName()) == o;
         }
 
         @Override
@@ -344,37 +445,70 @@ public class DataSession {
         }
 
         public DataNode get(String name) {
-            for (DataNode i : getChildren()) {
-                if (i.getName().equals(name)) {
-                    return i;
-                }
-            }
-            return null;
+            getChildren();
+            return membersByName.get(name);
         }
 
         /**
-         * called after modifying the list. It checks that names within the list
-         * are unique, and that every item has this item as its parent
+         * Check that the given name can be used by the item in this directory,
+         * ie that no other member already has that name
          *
+         * @param name
          * @param newItem
          */
-        private void checkConsistency(DataNode newItem) {
-            if (members == null) {
-                return; // nothing changed
+        private void checkNameAvailable(String name, DataNode newItem) {
+            DataNode existing = get(name);
+            if (existing != null && existing != newItem) {
+                throw new RuntimeException("Found duplicate name: " + name + " when adding item: " + newItem.getName() + " to directory: " + getName());
             }
-            Set<String> names = new HashSet<>();
-            for (DataNode item : members) {
-                if (names.contains(item.getName())) {
-                    if (newItem != null) {
-                        throw new RuntimeException("Found duplicate name: " + item.getName() + " when adding item: " + newItem.getName() + " to directory: " + getName());
-                    } else {
-                        throw new RuntimeException("Found duplicate name: " + item.getName() + " in parent: " + getName());
-                    }
-                }
-                if (item.getParent() != this) {
-                    throw new RuntimeException("Found item in this set which does not have this item as its parent: " + item.getName() + ". Its parent is: " + item.getParent().getName() + " and my name is : " + this.getName());
+        }
+
+        /**
+         * Add to both the member list and the name index. Names must have been
+         * checked with checkNameAvailable.
+         *
+         * The item is inserted in sorted position, so the list never needs to
+         * be re-sorted before hashing
+         */
+        private void addMember(DataNode item) {
+            if (item.getParent() != this) {
+                throw new RuntimeException("Attempt to add an item which does not have this item as its parent: " + item.getName() + ". Its parent is: " + item.getParent().getName() + " and my name is : " + this.getName());
+            }
+            List<DataNode> list = getChildren();
+            int pos = Collections.binarySearch(list, item, COMPARATOR);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            list.add(pos, item);
+            membersByName.put(item.getName(), item);
+        }
+
+        private boolean isSorted(List<DataNode> list) {
+            for (int i = 1; i < list.size(); i++) {
+                if (COMPARATOR.compare(list.get(i - 1), list.get(i)) > 0) {
+                    return false;
                 }
-                names.add(item.getName());
+            }
+            return true;
+        }
+
+        /**
+         * Remove from both the member list and the name index. Must be called
+         * before the item's name is changed, since the name is used to find it
+         */
+        private void removeMember(DataNode item) {
+            if (members == null) {
+                return; // not loaded, so nothing to remove
+            }
+            if (membersByName.get(item.getName()) != item) {
+                return; // not a member
+            }
+            membersByName.remove(item.getName());
+            int pos = Collections.binarySearch(members, item, COMPARATOR);
+            if (pos >= 0 && members.get(pos) == item) {
+                members.remove(pos);
+            } else {
+                members.remove(item); // shouldnt happen, members are kept sorted
             }
         }
     }
@@ -409,25 +543,31 @@ public class DataSession {
         }
 
         public void writeContent(OutputStream out) throws IOException {
-            Combiner combiner = new Combiner();
             List<String> fanoutCrcs = getFanout().getHashes();
+            if (blobStore instanceof StreamingBlobStore) {
+                // avoids loading each blob into memory
+                new ContentWriter(hashStore, blobStore).write(fanoutCrcs, out, 0, null);
+                return;
+            }
+            Combiner combiner = new Combiner();
             combiner.combine(fanoutCrcs, hashStore, blobStore, out);
             out.flush();
         }
 
         /**
-         * Write partial content, only
+         * Write partial content, only. Chunks before start are skipped without
+         * reading them
          *
          * @param out
-         * @param start
-         * @param finish
+         * @param start - first byte to write, or null to write the last
+         * "finish" bytes, as for an HTTP suffix range
+         * @param finish - last byte to write (inclusive), or null for the end
+         * of the file
          * @throws IOException
          */
-        public void writeContent(OutputStream out, long start, Long finish) throws IOException {
-            Combiner combiner = new Combiner();
-            List<String> fanoutCrcs = getFanout().getHashes();
-            combiner.combine(fanoutCrcs, hashStore, blobStore, out, start, finish);
-            out.flush();
+        public void writeContent(OutputStream out, Long start, Long finish) throws IOException {
+            Fanout fanout = getFanout();
+            new ContentWriter(hashStore, blobStore).writeRange(getHash(), fanout.getHashes(), fanout.getActualContentLength(), out, start, finish);
         }
 
         public long getContentLength() {
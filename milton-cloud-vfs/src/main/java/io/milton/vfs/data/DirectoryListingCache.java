@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.vfs.data;
+
+import io.milton.cloud.common.CacheStats;
+import io.milton.cloud.common.ITriplet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of parsed directory listings, keyed by the directory
+ * hash.
+ *
+ * Because a directory hash is the hash of its listing, a cached listing can
+ * never become stale, so there is no invalidation. The cache is bounded by the
+ * total number of triplets held (each listing also counts as one), so a few
+ * huge folders cannot silently hold many times the intended memory.
+ *
+ * Listings are returned unmodifiable, since they are shared across all
+ * DataSession instances and threads.
+ *
+ * Hits, misses and evictions are logged periodically by CacheStats
+ *
+ * @author brad
+ */
+public class DirectoryListingCache {
+
+    private static final DirectoryListingCache directoryListingCache = new DirectoryListingCache();
+
+    public static DirectoryListingCache getInstance() {
+        return directoryListingCache;
+    }
+    private final LinkedHashMap<String, List<ITriplet>> map = new LinkedHashMap<>(1000, 0.75f, true);
+    private final CacheStats stats = new CacheStats("DirectoryListingCache");
+    private long maxWeight = 500000;
+    private long weight;
+
+    /**
+     *
+     * @param hash
+     * @return - the cached listing, or null if not present
+     */
+    public List<ITriplet> get(String hash) {
+        List<ITriplet> list;
+        synchronized (map) {
+            list = map.get(hash);
+        }
+        if (list == null) {
+            stats.miss();
+        } else {
+            stats.hit();
+        }
+        return list;
+    }
+
+    /**
+     * Add the listing to the cache, evicting least recently used listings as
+     * required to stay within maxWeight
+     *
+     * @param hash
+     * @param list
+     * @return - an unmodifiable view of the given list, which is what is
+     * cached
+     */
+    public List<ITriplet> put(String hash, List<ITriplet> list) {
+        List<ITriplet> cached = Collections.unmodifiableList(list);
+        long w = weigh(cached);
+        if (w > maxWeight) {
+            return cached; // would evict everything else, so don't bother
+        }
+        synchronized (map) {
+            List<ITriplet> previous = map.put(hash, cached);
+            if (previous != null) {
+                weight -= weigh(previous);
+            }
+            weight += w;
+            Iterator<Map.Entry<String, List<ITriplet>>> it = map.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Map.Entry<String, List<ITriplet>> eldest = it.next();
+                weight -= weigh(eldest.getValue());
+                it.remove();
+                stats.evicted();
+            }
+        }
+        return cached;
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    public int getSize() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public long getWeight() {
+        synchronized (map) {
+            return weight;
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * The maximum total number of triplets to hold, plus one for each listing
+     *
+     * @param maxWeight
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    private long weigh(List<ITriplet> list) {
+        return list.size() + 1;
+    }
+}
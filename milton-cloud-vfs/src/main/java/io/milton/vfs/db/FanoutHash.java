@@ -9,15 +9,19 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Lob;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
 import org.hashsplit4j.api.Fanout;
 import org.hibernate.Criteria;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.criterion.Expression;
+import org.hibernate.criterion.Projections;
 
 /**
  * Represents either a list of other fanout hashes, or a list of blob hashes
@@ -40,21 +44,52 @@ uniqueConstraints = {
 public class FanoutHash implements Serializable, Fanout {
 
     public static void insertFanout(String type, String hash, List<String> childCrcs, long actualContentLength, Session session) {
+        insertFanout(type, hash, childCrcs, actualContentLength, null, session);
+    }
+
+    /**
+     *
+     * @param type
+     * @param hash
+     * @param childCrcs
+     * @param actualContentLength
+     * @param chunkOffsets - formatted ChunkOffsets for a file fanout, or null
+     * @param session
+     */
+    public static void insertFanout(String type, String hash, List<String> childCrcs, long actualContentLength, String chunkOffsets, Session session) {
         FanoutHash fanout = new FanoutHash();
         fanout.setType(type);
         fanout.setFanoutHash(hash);
         fanout.setActualContentLength(actualContentLength);
-        List<FanoutEntry> list = new ArrayList<>(childCrcs.size());
-        for (String l : childCrcs) {
-            FanoutEntry fe = new FanoutEntry();
-            fe.setChunkHash(l);
-            fe.setFanout(fanout);
-            list.add(fe);
-        }
-        fanout.setFanoutEntrys(list);
+        fanout.setPackedHashes(pack(childCrcs));
+        fanout.setChunkOffsets(chunkOffsets);
+        fanout.setFanoutEntrys(new ArrayList<FanoutEntry>());
         session.save(fanout);
     }
 
+    /**
+     * Iterate over the type and hash of every fanout, without loading entities
+     *
+     * @param session
+     * @return - results with type at index 0 and hash at index 1
+     */
+    public static ScrollableResults scrollTypesAndHashes(Session session) {
+        Criteria crit = session.createCriteria(FanoutHash.class);
+        crit.setProjection(Projections.projectionList().add(Projections.property("type")).add(Projections.property("fanoutHash")));
+        return crit.scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    private static String pack(List<String> hashes) {
+        StringBuilder sb = new StringBuilder(hashes.size() * 41);
+        for (String s : hashes) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
     /**
      *
      * @param hash
@@ -74,6 +109,8 @@ public class FanoutHash implements Serializable, Fanout {
     private String type; // c=chunk, f=file    
     private long actualContentLength;
     private List<FanoutEntry> fanoutEntrys;
+    private String packedHashes;
+    private String chunkOffsets;
 
     @Id
     @GeneratedValue
@@ -131,9 +168,54 @@ public class FanoutHash implements Serializable, Fanout {
         this.fanoutEntrys = fanoutEntrys;
     }
 
+    /**
+     * The child hashes, newline separated. Fanouts inserted before this column
+     * existed have null here and use FanoutEntry rows instead
+     *
+     * @return
+     */
+    @Lob
+    @Column(nullable = true)
+    public String getPackedHashes() {
+        return packedHashes;
+    }
+
+    public void setPackedHashes(String packedHashes) {
+        this.packedHashes = packedHashes;
+    }
+
+    /**
+     * For file fanouts only, the ChunkOffsets index of the chunk fanouts,
+     * comma seperated. Built the first time it is needed
+     *
+     * @return
+     */
+    @Lob
+    @Column(nullable = true)
+    public String getChunkOffsets() {
+        return chunkOffsets;
+    }
+
+    public void setChunkOffsets(String chunkOffsets) {
+        this.chunkOffsets = chunkOffsets;
+    }
+
     @Override
     @javax.persistence.Transient
     public List<String> getHashes() {
+        if (packedHashes != null) {
+            List<String> list = new ArrayList<>(packedHashes.length() / 41 + 1);
+            int start = 0;
+            while (start < packedHashes.length()) {
+                int end = packedHashes.indexOf('\n', start);
+                if (end < 0) {
+                    end = packedHashes.length();
+                }
+                list.add(packedHashes.substring(start, end));
+                start = end + 1;
+            }
+            return list;
+        }
         List<String> list = new ArrayList<>();
         for (FanoutEntry fe : fanoutEntrys) {
             list.add(fe.getChunkHash());
@@ -16,6 +16,7 @@
  */
 package io.milton.vfs.db;
 
+import io.milton.vfs.db.utils.ChangeVersion;
 import io.milton.vfs.db.utils.DbUtils;
 import io.milton.vfs.db.utils.SessionManager;
 import java.io.Serializable;
@@ -54,6 +55,25 @@ public class Group implements Serializable, VfsAcceptor {
     public static String REGO_MODE_OPEN = "o";
     public static String REGO_MODE_ADMIN_REVIEW = "a";
     public static String REGO_MODE_CLOSED = "c";
+    private static final ChangeVersion accessVersion = new ChangeVersion();
+
+    /**
+     * 
+     * @return - changes whenever group memberships or group roles might have
+     * changed
+     */
+    public static ChangeVersion getAccessVersion() {
+        return accessVersion;
+    }
+
+    /**
+     * Record that group memberships or roles have changed
+     * 
+     * @param session 
+     */
+    public static void accessChanged(Session session) {
+        accessVersion.changedAfterCommit(session);
+    }
 
     public static List<Group> findByOrg(Organisation org, Session session) {
         Criteria crit = session.createCriteria(Group.class);
@@ -198,6 +218,7 @@ public class Group implements Serializable, VfsAcceptor {
                 } else {
                     session.delete(gr);
                     getGroupRoles().remove(gr);
+                    accessChanged(session);
                 }
                 return;
             }
@@ -207,6 +228,7 @@ public class Group implements Serializable, VfsAcceptor {
         gr.setRoleName(roleName);
         session.save(gr);
         getGroupRoles().add(gr);
+        accessChanged(session);
     }
 
     public boolean hasRole(String roleName) {
@@ -138,6 +138,7 @@ public class GroupMembership implements Serializable{
             }
         }
         session.delete(this);
+        Group.accessChanged(session);
     }
     
 }
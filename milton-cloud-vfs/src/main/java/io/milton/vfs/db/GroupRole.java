@@ -82,6 +82,7 @@ public class GroupRole implements Serializable{
 
     public void delete(Session session) {
         session.delete(this);
+        Group.accessChanged(session);
     }
 
     
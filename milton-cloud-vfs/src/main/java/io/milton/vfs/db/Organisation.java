@@ -153,6 +153,7 @@ public class Organisation extends BaseEntity implements VfsAcceptor {
         w.setCurrentBranch(Branch.TRUNK);
         w.setRepository(r);
         session.save(w);
+        Website.domainsChanged(session);
 
         return w;
     }
@@ -173,6 +174,7 @@ public class Organisation extends BaseEntity implements VfsAcceptor {
         o.setCreatedDate(new Date());
         o.setModifiedDate(new Date());
         session.save(o);
+        Website.domainsChanged(session);
         return o;
     }
 
@@ -221,6 +223,7 @@ public class Organisation extends BaseEntity implements VfsAcceptor {
             childOrg.delete(session);
         }
         session.delete(this);
+        Website.domainsChanged(session);
 
     }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.vfs.db;
+
+import io.milton.vfs.db.utils.DbUtils;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import javax.persistence.*;
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Expression;
+import org.hibernate.criterion.Order;
+
+/**
+ * Records that a process instance is in a time dependent state, so must be
+ * scanned every intervalMillis. The next scan is due at dueDate
+ *
+ * @author brad
+ */
+@Entity
+public class ProcessTimer implements Serializable {
+
+    public static ProcessTimer find(BaseProcess process, Session session) {
+        Criteria crit = session.createCriteria(ProcessTimer.class);
+        crit.add(Expression.eq("process", process));
+        return DbUtils.unique(crit);
+    }
+
+    /**
+     * Find a page of timers, in id order
+     *
+     * @param afterId - only timers with a greater id are returned
+     * @param limit
+     * @param session
+     * @return
+     */
+    public static List<ProcessTimer> findAfter(long afterId, int limit, Session session) {
+        Criteria crit = session.createCriteria(ProcessTimer.class);
+        crit.add(Expression.gt("id", afterId));
+        crit.addOrder(Order.asc("id"));
+        crit.setMaxResults(limit);
+        return DbUtils.toList(crit, ProcessTimer.class);
+    }
+
+    /**
+     * Move the timer's due date on to next, but only if it is still due at the
+     * date it was loaded with. When several servers share the database only
+     * one of them can claim each firing of the timer. The row stays locked
+     * until the transaction completes
+     *
+     * @param t
+     * @param next
+     * @param session
+     * @return - false if another transaction has already changed the due date
+     */
+    public static boolean claim(ProcessTimer t, Date next, Session session) {
+        int updated = session.createQuery("update ProcessTimer set dueDate = :next where id = :id and dueDate = :due")
+                .setTimestamp("next", next)
+                .setLong("id", t.getId())
+                .setTimestamp("due", t.getDueDate())
+                .executeUpdate();
+        return updated == 1;
+    }
+    private long id;
+    private BaseProcess process;
+    private long intervalMillis;
+    private Date dueDate;
+    private Date createdDate;
+
+    @Id
+    @GeneratedValue
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @OneToOne(optional = false)
+    @JoinColumn(unique = true)
+    public BaseProcess getProcess() {
+        return process;
+    }
+
+    public void setProcess(BaseProcess process) {
+        this.process = process;
+    }
+
+    @Column(nullable = false)
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Temporal(javax.persistence.TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    public Date getDueDate() {
+        return dueDate;
+    }
+
+    public void setDueDate(Date dueDate) {
+        this.dueDate = dueDate;
+    }
+
+    @Temporal(javax.persistence.TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    public Date getCreatedDate() {
+        return createdDate;
+    }
+
+    public void setCreatedDate(Date createdDate) {
+        this.createdDate = createdDate;
+    }
+}
@@ -121,6 +121,7 @@ public class Profile extends BaseEntity implements VfsAcceptor {
                 session.delete(m);
             }
             setMemberships(null);
+            Group.accessChanged(session);
         }
         super.delete(session);
     }
@@ -245,6 +246,7 @@ public class Profile extends BaseEntity implements VfsAcceptor {
         gm.setWithinOrg(hasGroupInOrg);
         gm.setModifiedDate(new Date());
         session.save(gm);
+        Group.accessChanged(session);
         
         // Need to create a subordinate record for each parent organisation
         Organisation subordinateTo = hasGroupInOrg;
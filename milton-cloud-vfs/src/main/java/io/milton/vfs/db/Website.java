@@ -16,6 +16,7 @@
  */
 package io.milton.vfs.db;
 
+import io.milton.vfs.db.utils.ChangeVersion;
 import io.milton.vfs.db.utils.DbUtils;
 import java.io.Serializable;
 import java.util.Date;
@@ -43,6 +44,26 @@ import org.hibernate.criterion.Expression;
 )
 public class Website implements Serializable, VfsAcceptor {
 
+    private static final ChangeVersion domainsVersion = new ChangeVersion();
+
+    /**
+     * 
+     * @return - changes whenever the mapping from names or domain names to
+     * websites (or orgId's to organisations) might have changed
+     */
+    public static ChangeVersion getDomainsVersion() {
+        return domainsVersion;
+    }
+
+    /**
+     * Record that website names, domain names or aliases have changed
+     * 
+     * @param session 
+     */
+    public static void domainsChanged(Session session) {
+        domainsVersion.changedAfterCommit(session);
+    }
+
     public static List<Website> findByRepository(Repository repository, Session session) {
         Criteria crit = session.createCriteria(Website.class);
         crit.add(Expression.eq("repository", repository));
@@ -65,6 +86,18 @@ public class Website implements Serializable, VfsAcceptor {
         return w;
     }
     
+    /**
+     * Find all websites which have a domain name, including aliases
+     *
+     * @param session
+     * @return
+     */
+    public static List<Website> findWithDomainName(Session session) {
+        Criteria crit = session.createCriteria(Website.class);
+        crit.add(Expression.isNotNull("domainName"));
+        return DbUtils.toList(crit, Website.class);
+    }
+
     public static Website findByDomainNameDirect(String domainName, Session session) {
         Criteria crit = session.createCriteria(Website.class);
         crit.add(Expression.eq("domainName", domainName));
@@ -281,6 +314,7 @@ public class Website implements Serializable, VfsAcceptor {
 
     public void delete(Session session) {
         session.delete(this);
+        domainsChanged(session);
     }
 
     public Website createAlias(String aliasDnsName, Session session) {
@@ -293,6 +327,7 @@ public class Website implements Serializable, VfsAcceptor {
         aliasWebsite.setCurrentBranch(Branch.TRUNK);
         aliasWebsite.setAliasTo(this);
         session.save(aliasWebsite);
+        domainsChanged(session);
         return aliasWebsite;
 
     }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.vfs.db.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.transaction.Synchronization;
+import org.hibernate.Session;
+
+/**
+ * A number which changes whenever some set of entities might have changed, so
+ * that anything caching information derived from them can tell when to discard
+ * it.
+ *
+ * Entity classes call changedAfterCommit when they modify the entities. The
+ * version is incremented immediately, and again when the transaction completes,
+ * so anything cached from the uncommitted state in the meantime is also
+ * discarded. Caches are held in a VersionedCache, which clears itself when the
+ * version moves and only accepts values calculated without a change in
+ * between.
+ *
+ * Note that the version is only held in memory, so only changes made through
+ * this JVM are seen. If several servers share a database, changes made by the
+ * others won't invalidate caches here, so caches must be invalidated some other
+ * way, or disabled
+ *
+ * @author brad
+ */
+public class ChangeVersion {
+
+    private final AtomicLong version = new AtomicLong();
+
+    public long get() {
+        return version.get();
+    }
+
+    /**
+     * Record that the entities have changed in the session's transaction
+     *
+     * @param session
+     */
+    public void changedAfterCommit(Session session) {
+        version.incrementAndGet();
+        if (session.getTransaction().isActive()) {
+            session.getTransaction().registerSynchronization(new Synchronization() {
+
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    version.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    /**
+     *
+     * @param maxSize - the cache is cleared when it reaches this size
+     * @return - a new cache which is discarded when this version changes
+     */
+    public <K, V> VersionedCache<K, V> newCache(int maxSize) {
+        return new VersionedCache<>(this, maxSize);
+    }
+
+    /**
+     * A cache which is cleared whenever its ChangeVersion changes. Callers
+     * get the version before calculating a value, and pass it to
+     * cacheIfUnchanged
+     *
+     * @param <K>
+     * @param <V>
+     */
+    public static class VersionedCache<K, V> {
+
+        private final ChangeVersion changeVersion;
+        private final Map<K, V> map = new ConcurrentHashMap<>();
+        private volatile long cacheVersion = -1;
+        private volatile int maxSize;
+
+        private VersionedCache(ChangeVersion changeVersion, int maxSize) {
+            this.changeVersion = changeVersion;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Clear the cache if the version has changed since it was filled
+         *
+         * @return - the version the cache now corresponds to
+         */
+        public long checkVersion() {
+            long version = changeVersion.get();
+            if (version != cacheVersion) {
+                synchronized (this) {
+                    if (version != cacheVersion) {
+                        map.clear();
+                        cacheVersion = version;
+                    }
+                }
+            }
+            return version;
+        }
+
+        public V get(K key) {
+            return map.get(key);
+        }
+
+        /**
+         * Dont cache if anything changed while the value was being calculated
+         *
+         * @param key
+         * @param value
+         * @param version - as returned from checkVersion before the value was
+         * calculated
+         */
+        public synchronized void cacheIfUnchanged(K key, V value, long version) {
+            if (version == changeVersion.get() && version == cacheVersion) {
+                if (map.size() >= maxSize) {
+                    map.clear();
+                }
+                map.put(key, value);
+            }
+        }
+
+        public void remove(K key) {
+            map.remove(key);
+        }
+
+        /**
+         * Discard everything, and anything being calculated now
+         */
+        public synchronized void clear() {
+            map.clear();
+            cacheVersion = -1;
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 McEvoy Software Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package io.milton.vfs.data;
+
+import io.milton.vfs.data.DataSession.DirectoryNode;
+import io.milton.vfs.db.Branch;
+import org.hashsplit4j.api.NullBlobStore;
+import org.hashsplit4j.api.NullHashStore;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ * Adds and removes many files in a single directory, to show that bulk
+ * uploads scale linearly with the number of files. Each run adds 4 times as
+ * many files as the last, so the times logged should also grow by about 4 times
+ *
+ * The benchmark is ignored by default, remove the Ignore to run it
+ *
+ * @author brad
+ */
+public class DirectoryNodeBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryNodeBenchmarkTest.class);
+
+    @Ignore
+    @Test
+    public void testBulkAddScaling() {
+        for (int n = 5000; n <= 80000; n = n * 4) {
+            DataSession dataSession = new DataSession(new Branch(), null, new NullHashStore(), new NullBlobStore(), null);
+            DirectoryNode dir = dataSession.getRootDataNode();
+            long tm = System.currentTimeMillis();
+            for (int i = 0; i < n; i++) {
+                dir.addFile("file" + i + ".txt", null);
+            }
+            long addTime = System.currentTimeMillis() - tm;
+            tm = System.currentTimeMillis();
+            for (int i = 0; i < n; i++) {
+                assertNotNull(dir.get("file" + i + ".txt"));
+            }
+            long lookupTime = System.currentTimeMillis() - tm;
+            assertEquals(n, dir.size());
+            tm = System.currentTimeMillis();
+            for (int i = 0; i < n; i++) {
+                dir.get("file" + i + ".txt").delete();
+            }
+            long deleteTime = System.currentTimeMillis() - tm;
+            assertTrue(dir.isEmpty());
+            log.info("DirectoryNodeBenchmark: files=" + n + " add=" + addTime + "ms lookup=" + lookupTime + "ms delete=" + deleteTime + "ms");
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDuplicateNameRejected() {
+        DataSession dataSession = new DataSession(new Branch(), null, new NullHashStore(), new NullBlobStore(), null);
+        DirectoryNode dir = dataSession.getRootDataNode();
+        dir.addFile("a.txt");
+        dir.addFile("a.txt");
+    }
+
+    @Test
+    public void testRenameUpdatesIndex() {
+        DataSession dataSession = new DataSession(new Branch(), null, new NullHashStore(), new NullBlobStore(), null);
+        DirectoryNode dir = dataSession.getRootDataNode();
+        DataSession.FileNode f = dir.addFile("a.txt");
+        f.move(dir, "b.txt");
+        assertNull(dir.get("a.txt"));
+        assertSame(f, dir.get("b.txt"));
+        DirectoryNode sub = dir.addDirectory("sub");
+        f.move(sub, "c.txt");
+        assertNull(dir.get("b.txt"));
+        assertSame(f, sub.get("c.txt"));
+        assertEquals(1, dir.size());
+    }
+
+    @Test
+    public void testDeleteUpdatesIndex() {
+        DataSession dataSession = new DataSession(new Branch(), null, new NullHashStore(), new NullBlobStore(), null);
+        DirectoryNode dir = dataSession.getRootDataNode();
+        DataSession.FileNode a = dir.addFile("a.txt");
+        DataSession.FileNode b = dir.addFile("b.txt");
+        a.delete();
+        assertNull(dir.get("a.txt"));
+        assertFalse(dir.contains(a));
+        assertSame(b, dir.iterator().next());
+        a.delete(); // already removed, so no effect
+        assertEquals(1, dir.size());
+    }
+}